@@ -6,6 +6,7 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
+import top.guoziyang.mydb.backend.dm.DMConfig;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.server.Server;
 import top.guoziyang.mydb.backend.tbm.TableManager;
@@ -30,21 +31,37 @@ public class Launcher {
     public static final long KB = 1 << 10;
 	public static final long MB = 1 << 20;
 	public static final long GB = 1 << 30;
+    /**
+     * 后台清理的默认间隔（秒），默认不在后台清理
+     */
+    public static final long DEFAULT_VACUUM_SECONDS = 0;
 
     public static void main(String[] args) throws ParseException {
         Options options = new Options();
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("policy", true, "-policy clock|lru-k");
+        options.addOption("pageSize", true, "-pageSize 8KB (page size of a new database, a power of two from 4KB to 64KB, used with -create)");
+        options.addOption("pageIo", true, "-pageIo file|mmap (mmap maps the data file into memory, for read-mostly workloads)");
+        options.addOption("logDelay", true, "-logDelay 200 (group commit delay in microseconds)");
+        options.addOption("logBatch", true, "-logBatch 64KB");
+        options.addOption("checkpoint", true, "-checkpoint 32MB (log growth between checkpoints, 0KB to disable)");
+        options.addOption("lockTimeout", true, "-lockTimeout 10000 (lock wait timeout in milliseconds, 0 to wait forever)");
+        options.addOption("vacuum", true, "-vacuum 60 (background vacuum interval in seconds, off by default)");
+        options.addOption("vacuumIo", true, "-vacuumIo 1000 (pages per second vacuum may touch when freeing space, 0 for no limit)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
+        DMConfig config = parseConfig(cmd);
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            long lockTimeout = cmd.hasOption("lockTimeout") ? Long.parseLong(cmd.getOptionValue("lockTimeout")) : VersionManagerImpl.DEFAULT_LOCK_TIMEOUT_MILLIS;
+            long vacuumSeconds = cmd.hasOption("vacuum") ? Long.parseLong(cmd.getOptionValue("vacuum")) : DEFAULT_VACUUM_SECONDS;
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), config, lockTimeout, vacuumSeconds);
             return;
         }
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), config);
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
@@ -54,9 +71,9 @@ public class Launcher {
      * 创建数据库
      * @param path  数据库所在路径
      */
-    private static void createDB(String path) {
+    private static void createDB(String path, DMConfig config) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm, config);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
         tm.close();
@@ -67,23 +84,68 @@ public class Launcher {
      * 打开数据库，监听端口等待指令
      * @param path  数据库所在路径
      * @param mem
+     * @param config
+     * @param lockTimeout 锁等待超时时间（毫秒）
+     * @param vacuumSeconds 后台清理间隔（秒），0 表示不清理
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, DMConfig config, long lockTimeout, long vacuumSeconds) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
-        VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager tbm = TableManager.open(path, vm, dm);
+        DataManager dm = DataManager.open(path, mem, tm, config);
+        VersionManagerImpl vm = new VersionManagerImpl(tm, dm);
+        vm.setLockTimeout(lockTimeout);
+        TableManager tbm = TableManager.open(path, vm, dm, vacuumSeconds * 1000);
         new Server(port, tbm).start();
     }
 
+    /**
+     * 解析数据管理器的缓存与日志参数
+     * @param cmd
+     * @return
+     */
+    private static DMConfig parseConfig(CommandLine cmd) {
+        DMConfig config = new DMConfig();
+        if(cmd.hasOption("policy")) {
+            config.evictionPolicy = cmd.getOptionValue("policy");
+        }
+        if(cmd.hasOption("pageSize")) {
+            config.pageSize = (int)parseSize(cmd.getOptionValue("pageSize"), config.pageSize);
+        }
+        if(cmd.hasOption("pageIo")) {
+            config.pageIo = cmd.getOptionValue("pageIo");
+        }
+        if(cmd.hasOption("logDelay")) {
+            config.logFlushDelayMicros = Long.parseLong(cmd.getOptionValue("logDelay"));
+        }
+        if(cmd.hasOption("logBatch")) {
+            config.logBatchSize = (int)parseSize(cmd.getOptionValue("logBatch"), config.logBatchSize);
+        }
+        if(cmd.hasOption("checkpoint")) {
+            config.checkpointLogBytes = parseSize(cmd.getOptionValue("checkpoint"), config.checkpointLogBytes);
+        }
+        if(cmd.hasOption("vacuumIo")) {
+            config.vacuumPagesPerSecond = Integer.parseInt(cmd.getOptionValue("vacuumIo"));
+        }
+        return config;
+    }
+
     /**
      * 解析内存大小
      * @param memStr
      * @return
      */
     private static long parseMem(String memStr) {
+        return parseSize(memStr, DEFALUT_MEM);
+    }
+
+    /**
+     * 解析带单位（KB/MB/GB）的大小
+     * @param memStr
+     * @param defaultSize 未指定时的默认值
+     * @return
+     */
+    private static long parseSize(String memStr, long defaultSize) {
         if(memStr == null || "".equals(memStr)) {
-            return DEFALUT_MEM;
+            return defaultSize;
         }
         if(memStr.length() < 2) {
             Panic.panic(Error.InvalidMemException);
@@ -100,6 +162,6 @@ public class Launcher {
             default:
                 Panic.panic(Error.InvalidMemException);
         }
-        return DEFALUT_MEM;
+        return defaultSize;
     }
 }
@@ -2,29 +2,53 @@ package top.guoziyang.mydb.backend.common;
 
 import top.guoziyang.mydb.common.Error;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * AbstractCache实现了一个引用计数策略的缓存
+ * <p/>
+ * 缓存项存放在 ConcurrentHashMap 中，每个缓存项持有一个加载 future 和一个原子引用计数：
+ * 命中时只对引用计数做 CAS，不获取任何全局锁；
+ * 同一 key 的并发未命中只会有一个线程执行 getForCache，其余线程挂起在该 future 上等待；
+ * 引用计数归零时在该 key 所在的桶锁内完成驱逐，保证驱逐与重新加载不会交错。
+ * <p/>
+ * 如果指定了驱逐策略，引用计数归零的元素会继续驻留在缓存中，
+ * 直到缓存满时才由驱逐策略从未被引用的元素中挑选牺牲者；所有元素都被引用时，请求会等待其他线程释放。
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    private final ConcurrentHashMap<Long, CacheEntry<T>> cache;    // 实际缓存的数据及其引用个数
 
-    private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private final int maxResource;                                 // 缓存的最大缓存资源数
+    private final AtomicInteger count = new AtomicInteger(0);      // 缓存中元素的个数
+    private final EvictionPolicy policy;                           // 驱逐策略，为 null 时引用归零立即驱逐
+
+    private final LongAdder hits = new LongAdder();                // 命中次数
+    private final LongAdder misses = new LongAdder();              // 未命中次数
+    private final LongAdder evictions = new LongAdder();           // 驱逐次数
+
+    private static final long FULL_WAIT_MS = 5000;                 // 缓存被全部引用时最长的等待时间
+    private final Lock fullLock = new ReentrantLock();
+    private final Condition unpinned = fullLock.newCondition();
+    private final AtomicInteger fullWaiters = new AtomicInteger(0);
 
     public AbstractCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    public AbstractCache(int maxResource, EvictionPolicy policy) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.policy = maxResource > 0 ? policy : null;
+        cache = new ConcurrentHashMap<>();
     }
 
     /**
@@ -35,57 +59,154 @@ public abstract class AbstractCache<T> {
      */
     protected T get(long key) throws Exception {
         while (true) {
-            lock.lock();
-
-            // 请求的资源正在被其他线程获取，则等待
-            if (getting.containsKey(key)) {
-                lock.unlock();
-                try {
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            CacheEntry<T> entry = cache.get(key);
+            if (entry != null) {
+                // 资源在缓存中或正在被其他线程获取，持有引用后等待其加载完成
+                if (!entry.retain()) {
+                    // 该资源正在被驱逐，putIfAbsent 会在驱逐结束后重新加载
+                    entry = null;
+                } else {
+                    T obj = entry.await();
+                    if (obj != null) {
+                        hits.increment();
+                        if (policy != null) {
+                            policy.access(key);
+                        }
+                        return obj;
+                    }
+                    // 其他线程加载失败，重试
                     continue;
                 }
-                continue;
             }
 
-            // 资源在缓存中，直接返回
-            if (cache.containsKey(key)) {
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+            CacheEntry<T> fresh = new CacheEntry<>();
+            CacheEntry<T> prev = cache.putIfAbsent(key, fresh);
+            if (prev != null) {
+                continue;
             }
+            return load(key, fresh);
+        }
+    }
 
-            // 尝试获取该资源
-            if (maxResource > 0 && count == maxResource) {
-                lock.unlock();
-                throw Error.CacheFullException;
-            }
-            count++;
-            getting.put(key, true);
-            lock.unlock();
-            break;
+    /**
+     * 由抢到缓存项的线程执行实际的加载，并唤醒所有等待者
+     */
+    private T load(long key, CacheEntry<T> entry) throws Exception {
+        misses.increment();
+        if (!reserve()) {
+            cache.remove(key, entry);
+            entry.fail(Error.CacheFullException);
+            throw Error.CacheFullException;
         }
 
-        T obj = null;
+        T obj;
         try {
             obj = getForCache(key);
         } catch (Exception e) {
-            lock.lock();
-            count--;
-            getting.remove(key);
-            lock.unlock();
+            count.decrementAndGet();
+            cache.remove(key, entry);
+            entry.fail(e);
             throw e;
         }
+        entry.complete(obj);
+        if (policy != null) {
+            policy.admit(key);
+        }
+        return obj;
+    }
 
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+    /**
+     * 为新的缓存项占用一个名额，缓存满时尝试驱逐或等待
+     */
+    private boolean reserve() throws InterruptedException {
+        if (maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        long deadline = 0;
+        while (true) {
+            int c = count.get();
+            if (c < maxResource) {
+                if (count.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+                continue;
+            }
+            if (policy == null) {
+                return false;
+            }
+            if (evictOne()) {
+                continue;
+            }
+            // 所有元素都被引用，等待其他线程释放
+            long now = System.nanoTime();
+            if (deadline == 0) {
+                deadline = now + TimeUnit.MILLISECONDS.toNanos(FULL_WAIT_MS);
+            } else if (now >= deadline) {
+                return false;
+            }
+            awaitUnpinned();
+        }
+    }
 
-        return obj;
+    /**
+     * 由驱逐策略选出一个未被引用的元素并驱逐
+     * 从驱逐策略中移除与从缓存中移除在同一个桶锁内完成，重新加载只能发生在这之后，
+     * 不会出现新加载的元素被随后的 remove 从驱逐策略中摘掉、再也无法驱逐的情况
+     * @return 是否驱逐成功
+     */
+    @SuppressWarnings("unchecked")
+    private boolean evictOne() {
+        while (true) {
+            long key = policy.victim(this::isUnpinned);
+            if (key == EvictionPolicy.NO_VICTIM) {
+                return false;
+            }
+            Object[] evicted = new Object[1];
+            cache.computeIfPresent(key, (k, e) -> {
+                if (!e.references.compareAndSet(0, -1)) {
+                    return e;
+                }
+                releaseForCache(e.obj);
+                policy.remove(k);
+                evicted[0] = e.obj;
+                return null;
+            });
+            if (evicted[0] != null) {
+                count.decrementAndGet();
+                evictions.increment();
+                afterRelease((T) evicted[0]);
+                return true;
+            }
+        }
+    }
+
+    private boolean isUnpinned(long key) {
+        CacheEntry<T> entry = cache.get(key);
+        return entry != null && entry.references.get() == 0;
+    }
+
+    private void awaitUnpinned() throws InterruptedException {
+        fullLock.lock();
+        fullWaiters.incrementAndGet();
+        try {
+            // 释放与等待之间可能错过通知，因此只做短暂等待后重新尝试驱逐
+            unpinned.await(10, TimeUnit.MILLISECONDS);
+        } finally {
+            fullWaiters.decrementAndGet();
+            fullLock.unlock();
+        }
+    }
+
+    private void signalUnpinned() {
+        if (fullWaiters.get() > 0) {
+            fullLock.lock();
+            try {
+                unpinned.signalAll();
+            } finally {
+                fullLock.unlock();
+            }
+        }
     }
 
     /**
@@ -93,19 +214,32 @@ public abstract class AbstractCache<T> {
      * @param key  键
      */
     protected void release(long key) {
-        lock.lock();
-        try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {
-                releaseForCache(cache.get(key));
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            } else {
-                references.put(key, ref);
+        CacheEntry<T> entry = cache.get(key);
+        if (entry == null || entry.releaseShared()) {
+            return;
+        }
+        if (policy != null) {
+            // 引用归零后继续驻留，等待缓存满时由驱逐策略处理
+            entry.references.decrementAndGet();
+            signalUnpinned();
+            return;
+        }
+        // 可能是最后一个引用，在桶锁内完成计数归零和驱逐
+        boolean[] evicted = new boolean[1];
+        cache.computeIfPresent(key, (k, e) -> {
+            // 计数在此期间可能被其他线程增加，此时退回共享释放
+            while (!e.references.compareAndSet(1, -1)) {
+                if (e.releaseShared()) {
+                    return e;
+                }
             }
-        } finally {
-            lock.unlock();
+            releaseForCache(e.obj);
+            count.decrementAndGet();
+            evicted[0] = true;
+            return null;
+        });
+        if (evicted[0]) {
+            afterRelease(entry.obj);
         }
     }
 
@@ -113,19 +247,44 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                releaseForCache(cache.get(key));
-                references.remove(key);
-                cache.remove(key);
+        for (Map.Entry<Long, CacheEntry<T>> e : cache.entrySet()) {
+            CacheEntry<T> entry = e.getValue();
+            if (cache.remove(e.getKey(), entry) && entry.obj != null) {
+                releaseForCache(entry.obj);
+                count.decrementAndGet();
+                if (policy != null) {
+                    policy.remove(e.getKey());
+                }
+                afterRelease(entry.obj);
             }
-        } finally {
-            lock.unlock();
         }
     }
 
+    /**
+     * 遍历所有已加载到缓存中的元素，包括正在被引用和正在被驱逐的元素
+     */
+    protected void forEachResident(Consumer<T> action) {
+        for (CacheEntry<T> entry : cache.values()) {
+            if (entry.obj != null) {
+                action.accept(entry.obj);
+            }
+        }
+    }
+
+    /**
+     * key 是否在缓存中，没有驱逐策略时即是否仍被引用
+     */
+    protected boolean isCached(long key) {
+        return cache.containsKey(key);
+    }
+
+    /**
+     * 获取缓存的命中统计
+     */
+    public CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), count.get(), maxResource);
+    }
+
 
     /**
      * 当资源不在缓存时的获取行为
@@ -133,7 +292,74 @@ public abstract class AbstractCache<T> {
     protected abstract T getForCache(long key) throws Exception;
 
     /**
-     * 当资源被驱逐时的写回行为
+     * 当资源被驱逐时的写回行为，在 key 所在的桶锁内调用，不能阻塞
      */
     protected abstract void releaseForCache(T obj);
+
+    /**
+     * 资源被驱逐之后、桶锁之外调用，可以在这里等待写回等阻塞的操作
+     */
+    protected void afterRelease(T obj) {
+    }
+
+    /**
+     * 缓存项：加载 future + 原子引用计数
+     * 引用计数为 0 表示该项未被引用（仅在有驱逐策略时驻留），为 -1 表示已被驱逐，不能再被持有
+     */
+    private static final class CacheEntry<T> {
+        private final CompletableFuture<T> loading = new CompletableFuture<>();
+        private final AtomicInteger references = new AtomicInteger(1);   // 加载线程持有第一个引用
+        private volatile T obj;
+
+        /**
+         * 引用计数不小于 0 时加一，否则说明已被驱逐
+         */
+        boolean retain() {
+            while (true) {
+                int ref = references.get();
+                if (ref < 0) {
+                    return false;
+                }
+                if (references.compareAndSet(ref, ref + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 引用计数大于 1 时直接减一；返回 false 表示可能是最后一个引用，需要走驱逐路径
+         */
+        boolean releaseShared() {
+            while (true) {
+                int ref = references.get();
+                if (ref <= 1) {
+                    return false;
+                }
+                if (references.compareAndSet(ref, ref - 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * 挂起等待加载完成，加载失败时返回 null
+         */
+        T await() {
+            try {
+                return loading.join();
+            } catch (CompletionException e) {
+                return null;
+            }
+        }
+
+        void complete(T value) {
+            obj = value;
+            loading.complete(value);
+        }
+
+        void fail(Exception e) {
+            references.set(-1);
+            loading.completeExceptionally(e);
+        }
+    }
 }
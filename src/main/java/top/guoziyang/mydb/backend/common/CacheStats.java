@@ -0,0 +1,31 @@
+package top.guoziyang.mydb.backend.common;
+
+/**
+ * 缓存命中统计，用于根据实际负载调整缓存大小
+ */
+public class CacheStats {
+    public final long hits;
+    public final long misses;
+    public final long evictions;
+    public final int resident;
+    public final int capacity;
+
+    public CacheStats(long hits, long misses, long evictions, int resident, int capacity) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.resident = resident;
+        this.capacity = capacity;
+    }
+
+    public double hitRatio() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d, misses=%d, evictions=%d, hitRatio=%.4f, resident=%d/%d",
+                hits, misses, evictions, hitRatio(), resident, capacity);
+    }
+}
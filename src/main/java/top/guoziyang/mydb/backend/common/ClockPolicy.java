@@ -0,0 +1,105 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK 驱逐策略
+ * 每个缓存帧带一个访问位，命中时只置位访问位；
+ * 选择牺牲者时时钟指针扫过所有帧，访问位为 1 的清零后跳过，遇到访问位为 0 且未被引用的帧则将其驱逐
+ */
+public class ClockPolicy implements EvictionPolicy {
+
+    private Frame[] ring;
+    private final Deque<Integer> free;
+    private final ConcurrentHashMap<Long, Frame> frames;
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        ring = new Frame[capacity];
+        free = new ArrayDeque<>(capacity);
+        for (int i = 0; i < capacity; i++) {
+            free.push(i);
+        }
+        frames = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 元素已在环上时只置位访问位；环已满时扩容，保证每个驻留的元素都能被驱逐
+     */
+    @Override
+    public synchronized void admit(long key) {
+        Frame old = frames.get(key);
+        if (old != null) {
+            old.referenced = true;
+            return;
+        }
+        if (free.isEmpty()) {
+            grow();
+        }
+        int slot = free.pop();
+        Frame f = new Frame(key, slot);
+        ring[slot] = f;
+        frames.put(key, f);
+    }
+
+    private void grow() {
+        int size = ring.length;
+        ring = Arrays.copyOf(ring, Math.max(1, size * 2));
+        for (int i = ring.length - 1; i >= size; i--) {
+            free.push(i);
+        }
+    }
+
+    @Override
+    public void access(long key) {
+        Frame f = frames.get(key);
+        if (f != null) {
+            f.referenced = true;
+        }
+    }
+
+    @Override
+    public synchronized void remove(long key) {
+        Frame f = frames.remove(key);
+        if (f != null) {
+            ring[f.slot] = null;
+            free.push(f.slot);
+        }
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        // 最多扫两圈：第一圈清除访问位，第二圈一定能遇到访问位为 0 的帧
+        for (int i = 0; i < ring.length * 2; i++) {
+            Frame f = ring[hand];
+            hand = (hand + 1) % ring.length;
+            if (f == null) {
+                continue;
+            }
+            if (f.referenced) {
+                f.referenced = false;
+                continue;
+            }
+            if (evictable.test(f.key)) {
+                return f.key;
+            }
+        }
+        return NO_VICTIM;
+    }
+
+    private static class Frame {
+        final long key;
+        final int slot;
+        volatile boolean referenced;
+
+        Frame(long key, int slot) {
+            this.key = key;
+            this.slot = slot;
+            this.referenced = true;
+        }
+    }
+}
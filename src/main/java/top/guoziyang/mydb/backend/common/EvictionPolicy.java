@@ -0,0 +1,55 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存的驱逐策略
+ * 只在缓存满时由 AbstractCache 调用 victim 选择牺牲者，命中路径上的 access 不应获取全局锁
+ */
+public interface EvictionPolicy {
+    /**
+     * 没有可驱逐的元素
+     */
+    long NO_VICTIM = Long.MIN_VALUE;
+
+    String CLOCK = "clock";
+    String LRU_K = "lru-k";
+
+    /**
+     * 根据名字创建驱逐策略
+     * @param name     策略名，clock 或 lru-k
+     * @param capacity 缓存容量
+     * @return
+     */
+    static EvictionPolicy of(String name, int capacity) {
+        if (name == null || CLOCK.equals(name)) {
+            return new ClockPolicy(capacity);
+        }
+        if (LRU_K.equals(name)) {
+            return new LruKPolicy(LruKPolicy.DEFAULT_K);
+        }
+        throw new IllegalArgumentException("Unknown eviction policy: " + name);
+    }
+
+    /**
+     * 元素被加载进缓存
+     */
+    void admit(long key);
+
+    /**
+     * 元素被命中
+     */
+    void access(long key);
+
+    /**
+     * 元素被驱逐出缓存
+     */
+    void remove(long key);
+
+    /**
+     * 选出一个牺牲者
+     * @param evictable 判断元素当前是否可以被驱逐（未被引用）
+     * @return 牺牲者的键，没有则返回 NO_VICTIM
+     */
+    long victim(LongPredicate evictable);
+}
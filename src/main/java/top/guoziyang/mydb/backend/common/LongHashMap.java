@@ -0,0 +1,123 @@
+package top.guoziyang.mydb.backend.common;
+
+/**
+ * 以 long 为键的哈希表，开放定址、线性探测，键不装箱
+ * 非线程安全，由调用方加锁
+ */
+public class LongHashMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+
+    public LongHashMap() {
+        keys = new long[DEFAULT_CAPACITY];
+        values = new Object[DEFAULT_CAPACITY];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key, mask); values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return (V) values[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 放入键值对，value 不能为 null
+     * @param key
+     * @param value
+     * @return 原来的值
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if ((size + 1) << 1 > keys.length) {
+            resize(keys.length << 1);
+        }
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int mask = keys.length - 1;
+        int i = slot(key, mask);
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) values[i];
+                shiftBack(i, mask);
+                size--;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 删除 i 处的元素后，把后面探测链上的元素前移，保证查找不会提前遇到空槽
+     */
+    private void shiftBack(int i, int mask) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (values[j] == null) {
+                break;
+            }
+            int home = slot(keys[j], mask);
+            // home 不在 (i, j] 之间时，j 处的元素可以移到 i
+            if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        values[i] = null;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        int mask = capacity - 1;
+        for (int k = 0; k < oldKeys.length; k++) {
+            if (oldValues[k] == null) {
+                continue;
+            }
+            int i = slot(oldKeys[k], mask);
+            while (values[i] != null) {
+                i = (i + 1) & mask;
+            }
+            keys[i] = oldKeys[k];
+            values[i] = oldValues[k];
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+}
@@ -0,0 +1,166 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * LRU-K 驱逐策略
+ * 为每个元素记录最近 K 次访问的逻辑时间，驱逐倒数第 K 次访问最早的元素；
+ * 访问不足 K 次的元素视为距离无穷大，优先驱逐，它们之间按最早一次访问排序。
+ * 这样只被扫描过一次的页面不会把反复访问的热点页面挤出缓存。
+ * 选择牺牲者时不是每次都扫描全部元素：一次扫描选出最该驱逐的一批候选者，之后的驱逐依次从中取出，
+ * 取出时发现候选者在选出之后又被访问过或已被移除则跳过，候选者用完后再重新扫描
+ */
+public class LruKPolicy implements EvictionPolicy {
+
+    static final int DEFAULT_K = 2;
+    /**
+     * 一次扫描至少选出的候选者数，同时不少于元素数的 1/CANDIDATE_RATIO
+     */
+    private static final int MIN_CANDIDATES = 16;
+    private static final int CANDIDATE_RATIO = 8;
+
+    private final int k;
+    private final AtomicLong clock;
+    private final ConcurrentHashMap<Long, History> histories;
+    /**
+     * 按驱逐顺序排列的候选者，由 victim 的锁保护
+     */
+    private final ArrayDeque<Candidate> candidates;
+
+    public LruKPolicy(int k) {
+        this.k = k;
+        this.clock = new AtomicLong(0);
+        this.histories = new ConcurrentHashMap<>();
+        this.candidates = new ArrayDeque<>();
+    }
+
+    @Override
+    public void admit(long key) {
+        histories.computeIfAbsent(key, x -> new History(k)).record(clock.incrementAndGet());
+    }
+
+    @Override
+    public void access(long key) {
+        History h = histories.get(key);
+        if (h != null) {
+            h.record(clock.incrementAndGet());
+        }
+    }
+
+    @Override
+    public void remove(long key) {
+        histories.remove(key);
+    }
+
+    @Override
+    public synchronized long victim(LongPredicate evictable) {
+        for (int round = 0; round < 2; round++) {
+            Candidate c;
+            while ((c = candidates.poll()) != null) {
+                History h = histories.get(c.key);
+                if (h == null) {
+                    continue;
+                }
+                long latest;
+                synchronized (h) {
+                    latest = h.latest();
+                }
+                if (latest == c.latest && evictable.test(c.key)) {
+                    return c.key;
+                }
+            }
+            if (round == 0) {
+                refill(evictable);
+            }
+        }
+        return NO_VICTIM;
+    }
+
+    /**
+     * 扫描全部元素，按驱逐顺序选出一批当前可以驱逐的候选者
+     */
+    private void refill(LongPredicate evictable) {
+        int limit = Math.max(MIN_CANDIDATES, histories.size() / CANDIDATE_RATIO);
+        // 大顶堆，堆顶是已选出的候选者中最不该驱逐的一个
+        PriorityQueue<Candidate> heap = new PriorityQueue<>(limit + 1, (a, b) -> Long.compare(b.rank, a.rank));
+        for (Map.Entry<Long, History> e : histories.entrySet()) {
+            History h = e.getValue();
+            long rank;
+            long latest;
+            synchronized (h) {
+                // 访问满 K 次的比较倒数第 K 次访问，不足 K 次的比较第一次访问，并排在所有满 K 次的元素之前
+                rank = h.count >= k ? h.kth() : h.times[0] + Long.MIN_VALUE;
+                latest = h.latest();
+            }
+            if (heap.size() == limit && rank >= heap.peek().rank) {
+                continue;
+            }
+            if (!evictable.test(e.getKey())) {
+                continue;
+            }
+            heap.add(new Candidate(e.getKey(), rank, latest));
+            if (heap.size() > limit) {
+                heap.poll();
+            }
+        }
+        Candidate[] sorted = heap.toArray(new Candidate[0]);
+        Arrays.sort(sorted, (a, b) -> Long.compare(a.rank, b.rank));
+        candidates.addAll(Arrays.asList(sorted));
+    }
+
+    private static class Candidate {
+        final long key;
+        final long rank;
+        /**
+         * 选出时最近一次访问的时间，与当前不同说明之后又被访问过
+         */
+        final long latest;
+
+        Candidate(long key, long rank, long latest) {
+            this.key = key;
+            this.rank = rank;
+            this.latest = latest;
+        }
+    }
+
+    /**
+     * 最近 K 次访问时间的环形记录
+     */
+    private static class History {
+        final long[] times;
+        int count;
+        int next;
+
+        History(int k) {
+            times = new long[k];
+        }
+
+        synchronized void record(long now) {
+            times[next] = now;
+            next = (next + 1) % times.length;
+            if (count < times.length) {
+                count++;
+            }
+        }
+
+        /**
+         * 倒数第 K 次访问的时间，调用者需持有锁且 count == K
+         */
+        long kth() {
+            return times[next];
+        }
+
+        /**
+         * 最近一次访问的时间，调用者需持有锁
+         */
+        long latest() {
+            return times[(next + times.length - 1) % times.length];
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package top.guoziyang.mydb.backend.dm;
+
+import top.guoziyang.mydb.backend.common.EvictionPolicy;
+import top.guoziyang.mydb.backend.dm.logger.LoggerImpl;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+
+/**
+ * 数据管理器的可调参数，由 Launcher 从命令行解析得到
+ */
+public class DMConfig {
+    /**
+     * 页面缓存的驱逐策略，clock 或 lru-k
+     */
+    public String evictionPolicy = EvictionPolicy.CLOCK;
+    /**
+     * 页面 I/O 方式，file 或 mmap
+     */
+    public String pageIo = PageCache.IO_FILE;
+    /**
+     * 创建数据库时选用的页大小，打开已有数据库时以文件头中记录的为准
+     */
+    public int pageSize = PageCache.PAGE_SIZE;
+    /**
+     * 组提交攒批的最长等待时间（微秒）
+     */
+    public long logFlushDelayMicros = LoggerImpl.DEFAULT_FLUSH_DELAY_MICROS;
+    /**
+     * 组提交的批大小（字节）
+     */
+    public int logBatchSize = LoggerImpl.DEFAULT_BATCH_SIZE;
+    /**
+     * 日志每增长这么多字节做一次检查点，0 表示只在关闭时做检查点
+     */
+    public long checkpointLogBytes = DataManagerImpl.DEFAULT_CHECKPOINT_LOG_BYTES;
+    /**
+     * VACUUM 释放空间时每秒最多处理的页数，0 表示不限速
+     */
+    public int vacuumPagesPerSecond = DataManagerImpl.DEFAULT_VACUUM_PAGES_PER_SECOND;
+}
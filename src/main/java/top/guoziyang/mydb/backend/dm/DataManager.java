@@ -4,8 +4,11 @@ import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 
+import java.util.function.LongSupplier;
+
 public interface DataManager {
     /**
      * 创建一个数据管理器实例
@@ -15,11 +18,26 @@ public interface DataManager {
      * @return 数据管理器实例
      */
     static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
-        Logger lg = Logger.create(path);
+        return create(path, mem, tm, new DMConfig());
+    }
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+    /**
+     * 使用指定参数创建一个数据管理器实例
+     * @param path 数据管理器文件路径
+     * @param mem 数据管理器内存大小
+     * @param tm 事务管理器
+     * @param config 缓存与日志参数
+     * @return 数据管理器实例
+     */
+    static DataManager create(String path, long mem, TransactionManager tm, DMConfig config) {
+        PageCache pc = PageCache.create(path, mem, config.evictionPolicy, config.pageIo, config.pageSize);
+        Logger lg = Logger.create(path, config.logFlushDelayMicros, config.logBatchSize);
+        FreeSpaceMap fsm = FreeSpaceMap.create(path, pc.getPageSize());
+
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
+        dm.setVacuumBudget(config.vacuumPagesPerSecond);
         dm.initPageOne();
+        dm.startCheckpointer(config.checkpointLogBytes);
 
         return dm;
     }
@@ -32,18 +50,40 @@ public interface DataManager {
      * @return 数据管理器实例
      */
     static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
-        Logger lg = Logger.open(path);
+        return open(path, mem, tm, new DMConfig());
+    }
+
+    /**
+     * 使用指定参数打开一个数据管理器实例
+     * @param path 数据管理器文件路径
+     * @param mem 数据管理器内存大小
+     * @param tm 事务管理器
+     * @param config 缓存与日志参数
+     * @return 数据管理器实例
+     */
+    static DataManager open(String path, long mem, TransactionManager tm, DMConfig config) {
+        PageCache pc = PageCache.open(path, mem, config.evictionPolicy, config.pageIo);
+        Logger lg = Logger.open(path, config.logFlushDelayMicros, config.logBatchSize);
+        FreeSpaceMap fsm = FreeSpaceMap.open(path, pc.getPageSize());
 
-        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
+        DataManagerImpl dm = new DataManagerImpl(pc, lg, tm, fsm);
+        dm.setVacuumBudget(config.vacuumPagesPerSecond);
+        // FSM 只在正常关闭后可信，缺失或崩溃后需要读取所有页面重建
+        boolean rebuild = fsm.isNew();
         // 保证在系统崩溃后恢复数据一致性
         if (!dm.loadCheckPageOne()) {
-            Recover.recover(tm, lg, pc);
+            dm.recoveryStats = Recover.recover(tm, lg, pc, PageOne.getCheckpointLsn(dm.pageOne));
+            // 恢复时的修改不在脏页表中，先全部写回
+            pc.flushDirtyPages();
+            rebuild = true;
         }
-        // 获取所有页面并填充 PageIndex
-        dm.fillPageIndex();
+        // 崩溃时未结束的事务和预留未用的 XID 都视为已回滚
+        tm.abortActive();
+        // 填充 PageIndex
+        dm.fillPageIndex(rebuild);
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer(config.checkpointLogBytes);
 
         return dm;
     }
@@ -52,5 +92,27 @@ public interface DataManager {
 
     long insert(long xid, byte[] data) throws Exception;
 
+    /**
+     * 释放不再被引用的数据项：标记为已释放并记录日志，之后 read 返回 null，空间可以被新的插入复用。
+     * 按页分批处理，每处理完一页把回收的空间交还 PageIndex，页的处理速度受 I/O 预算限制
+     * @param uids
+     * @throws Exception
+     */
+    void free(long[] uids) throws Exception;
+
+    /**
+     * 设置复用空洞的界限。释放时在数据项中记录下一个将被分配的 XID，
+     * 界限越过它之后，释放前开始的事务都已结束，不会再有人持有指向该空洞的 UID，空洞才可以被复用。
+     * 默认以下一个 XID 为界限，VM 会换成它的清理界限
+     * @param horizon
+     */
+    void setReuseHorizon(LongSupplier horizon);
+
+    /**
+     * 数据文件的页大小，上层据此决定 B+ 树节点的大小
+     * @return
+     */
+    int getPageSize();
+
     void close();
 }
@@ -8,27 +8,80 @@ import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.dm.pageIndex.FreeSpaceMap;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Types;
 import top.guoziyang.mydb.common.Error;
 
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    /**
+     * 检查点线程检查日志增长的间隔
+     */
+    private static final long CHECKPOINT_POLL_MS = 1000;
+    /**
+     * 默认日志每增长 32MB 做一次检查点
+     */
+    public static final long DEFAULT_CHECKPOINT_LOG_BYTES = 32L << 20;
+    /**
+     * 默认 VACUUM 每秒最多处理 1000 页
+     */
+    public static final int DEFAULT_VACUUM_PAGES_PER_SECOND = 1000;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
 
-    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
+    /**
+     * 活跃事务表：XID -> 该事务第一条日志的 LSN 下界，检查点时清除已结束的事务
+     */
+    private final Map<Long, Long> activeXids = new ConcurrentHashMap<>();
+    private final Lock checkpointLock = new ReentrantLock();
+    private volatile long lastCheckpointLsn;
+    private Thread checkpointer;
+    private final Object checkpointerSignal = new Object();
+    private volatile boolean closed;
+    /**
+     * 打开时执行的故障恢复的统计，正常打开时为 null
+     */
+    RecoveryStats recoveryStats;
+    /**
+     * VACUUM 处理相邻两页的最小间隔，0 表示不限速
+     */
+    private long vacuumIntervalNanos;
+    private long nextVacuumNanos;
+    private final Object vacuumLock = new Object();
+    private volatile LongSupplier reuseHorizon;
+    /**
+     * 有空洞暂时不能复用的页，每轮释放开始时和新建页面之前重新计算它们的空闲空间
+     */
+    private final Set<Integer> pendingPages = ConcurrentHashMap.newKeySet();
+
+    public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm, FreeSpaceMap fsm) {
         super(0);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
-        this.pIndex = new PageIndex();
+        this.reuseHorizon = tm::nextXid;
+        this.pIndex = new PageIndex(fsm, pc.getPageSize());
+        pc.setLogger(logger);
     }
 
     /**
@@ -48,10 +101,131 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return di;
     }
 
+    @Override
+    public void free(long[] uids) throws Exception {
+        long[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        // 上一轮释放的空洞可能已经越过界限
+        recheckPendingPages(0);
+        // 调用方已经删除了指向这些数据项的索引项，此后开始的事务不会再拿到它们的 UID
+        long nextXid = tm.nextXid();
+        for (int i = 0; i < sorted.length; ) {
+            int pgno = (int) (sorted[i] >>> 32);
+            throttle();
+            for (; i < sorted.length && (int) (sorted[i] >>> 32) == pgno; i++) {
+                freeItem(sorted[i], nextXid);
+            }
+            Page pg = pc.getPage(pgno);
+            try {
+                pIndex.update(pgno, freeSpace(pg));
+            } finally {
+                pg.release();
+            }
+        }
+    }
+
+    /**
+     * 页面可以复用的空闲空间，有空洞暂时不能复用时记下页号
+     */
+    private int freeSpace(Page pg) {
+        int space = PageX.getFreeSpace(pg, reuseHorizon(), this::isCached);
+        if (space < PageX.getFreeSpace(pg)) {
+            pendingPages.add(pg.getPageNumber());
+        }
+        return space;
+    }
+
+    /**
+     * 重新计算 pendingPages 中各页的空闲空间，空洞全部可以复用的页移出集合
+     * @param size 需要的空间
+     * @return 是否有页面的空闲空间不小于 size
+     */
+    private boolean recheckPendingPages(int size) throws Exception {
+        boolean found = false;
+        for (Iterator<Integer> it = pendingPages.iterator(); it.hasNext(); ) {
+            int pgno = it.next();
+            Page pg = pc.getPage(pgno);
+            try {
+                int space = PageX.getFreeSpace(pg, reuseHorizon(), this::isCached);
+                if (space == PageX.getFreeSpace(pg)) {
+                    it.remove();
+                }
+                pIndex.update(pgno, space);
+                found |= space >= size;
+            } finally {
+                pg.release();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * 不足 8 字节的数据项放不下释放时的 XID，保持原样不释放
+     */
+    private void freeItem(long uid, long nextXid) throws Exception {
+        DataItemImpl di = (DataItemImpl) super.get(uid);
+        try {
+            if (DataItem.isDataItemRawFreed(di.getRaw()) || di.data().end - di.data().start < 8) {
+                return;
+            }
+            di.before();
+            DataItem.setDataItemRawFreed(di.getRaw(), nextXid);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
+    @Override
+    public void setReuseHorizon(LongSupplier horizon) {
+        this.reuseHorizon = horizon;
+    }
+
+    /**
+     * 复用空洞的界限，只在页内遇到已释放的数据项时计算一次
+     */
+    private LongSupplier reuseHorizon() {
+        LongSupplier horizon = reuseHorizon;
+        long[] cached = {-1};
+        return () -> {
+            if (cached[0] < 0) {
+                cached[0] = horizon.getAsLong();
+            }
+            return cached[0];
+        };
+    }
+
+    /**
+     * 按 I/O 预算限速，两次调用之间至少间隔 vacuumIntervalNanos
+     */
+    private void throttle() {
+        if (vacuumIntervalNanos <= 0) {
+            return;
+        }
+        long wait;
+        synchronized (vacuumLock) {
+            long now = System.nanoTime();
+            long slot = Math.max(nextVacuumNanos, now);
+            nextVacuumNanos = slot + vacuumIntervalNanos;
+            wait = slot - now;
+        }
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    /**
+     * @param pagesPerSecond VACUUM 每秒最多处理的页数，0 表示不限速
+     */
+    void setVacuumBudget(int pagesPerSecond) {
+        vacuumIntervalNanos = pagesPerSecond > 0 ? 1000000000L / pagesPerSecond : 0;
+    }
+
     /**
      * 插入数据。
      * 1、在 pageIndex 中获取一个足以存储插入内容的页面的页号；
-     * 2、获取页面后，写入插入日志；
+     *    没有合适的页面时，先重新检查有空洞暂时不能复用的页，再新建页面；
+     * 2、获取页面后，在页内找到插入位置（尾部或已释放的空洞），写入插入日志；
      * 3、通过 pageX 插入数据，并返回插入位置的偏移；
      * 4、将页面信息重新插入 pageIndex
      * @param xid
@@ -62,49 +236,94 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     @Override
     public long insert(long xid, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);
-        if (raw.length > PageX.MAX_FREE_SPACE) {
+        int maxFreeSpace = PageX.maxFreeSpace(pc.getPageSize());
+        if (raw.length > maxFreeSpace) {
             throw Error.DataTooLargeException;
         }
 
-        PageInfo pi = null;
+        boolean rechecked = false;
         for (int i = 0; i < 5; i++) {
-            pi = pIndex.select(raw.length);
-            if (pi != null) {
-                break;
-            } else {
-                int newPgno = pc.newPage(PageX.initRaw());
-                pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+            PageInfo pi = pIndex.select(raw.length);
+            if (pi == null) {
+                if (!rechecked) {
+                    rechecked = true;
+                    if (recheckPendingPages(raw.length)) {
+                        continue;
+                    }
+                }
+                int newPgno = pc.newPage(PageX.initRaw(pc.getPageSize()));
+                pIndex.add(newPgno, maxFreeSpace);
+                continue;
+            }
+            long uid = insertInto(pi.pgno, xid, raw);
+            if (uid != 0) {
+                return uid;
             }
         }
-        if (pi == null) {
-            throw Error.DatabaseBusyException;
-        }
+        throw Error.DatabaseBusyException;
+    }
 
+    /**
+     * 在选出的页面中插入，空洞仍被引用等原因导致页内实际没有足够空间时返回 0
+     */
+    private long insertInto(int pgno, long xid, byte[] raw) throws Exception {
         Page pg = null;
-        int freeSpace = 0;
         try {
-            pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-
-            short offset = PageX.insert(pg, raw);
+            pg = pc.getPage(pgno);
+            LongSupplier horizon = reuseHorizon();
+            PageX.Space space = PageX.allocate(pg, raw, horizon, this::isCached);
+            if (space == null) {
+                return 0;
+            }
+            byte[] log = Recover.insertLog(xid, pg, space.offset, space.raw);
 
-            pg.release();
-            return Types.addressToUid(pi.pgno, offset);
+            // 日志追加与页面修改在同一个修改区间内，修改区间结束后再等待日志落盘
+            noteXid(xid);
+            beginModify(pg);
+            long lsn = 0;
+            try {
+                lsn = logger.append(log);
+                PageX.insert(pg, space);
+            } finally {
+                pg.endModify(lsn);
+            }
+            logger.flush(lsn);
+            return Types.addressToUid(pgno, space.offset);
 
         } finally {
             // 将取出的pg重新插入pIndex
             if (pg != null) {
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
+                pIndex.add(pgno, freeSpace(pg));
+                pg.release();
             } else {
-                pIndex.add(pi.pgno, freeSpace);
+                pIndex.add(pgno, 0);
             }
         }
     }
 
+    @Override
+    public int getPageSize() {
+        return pc.getPageSize();
+    }
+
     @Override
     public void close() {
+        // 先停止检查点线程，返回之后不会再有后台线程改写日志文件
+        if (checkpointer != null) {
+            synchronized (checkpointerSignal) {
+                closed = true;
+                checkpointerSignal.notifyAll();
+            }
+            try {
+                checkpointer.join();
+            } catch (InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
         super.close();
+        // 关闭前做一次检查点，回收日志空间
+        checkpoint();
+        pIndex.close();
         logger.close();
 
         PageOne.setVcClose(pageOne);
@@ -115,7 +334,97 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        noteXid(xid);
+        long lsn = 0;
+        try {
+            lsn = logger.append(log);
+        } finally {
+            di.page().endModify(lsn);
+        }
+        logger.flush(lsn);
+    }
+
+    /**
+     * 开始修改页面，recLsn 取当前日志末尾，不大于这次修改日志的 LSN
+     * @param pg
+     */
+    public void beginModify(Page pg) {
+        pg.beginModify(logger.nextLsn());
+    }
+
+    /**
+     * 在写第一条日志之前登记活跃事务
+     * @param xid
+     */
+    private void noteXid(long xid) {
+        if (xid != TransactionManagerImpl.SUPER_XID && !activeXids.containsKey(xid)) {
+            activeXids.putIfAbsent(xid, logger.nextLsn());
+        }
+    }
+
+    /**
+     * 模糊检查点：不阻塞事务，记录活跃事务表与脏页表。
+     * 1、写回当前空闲的脏页，缩小脏页表；
+     * 2、记下日志末尾 BeginLsn，之后才收集活跃事务表和脏页表，
+     *    收集期间新产生的日志都不小于 BeginLsn，恢复时会被扫描到；
+     * 3、检查点日志落盘后，把它的 LSN 写入 PageOne；
+     * 4、丢弃恢复起点之前的日志
+     */
+    public void checkpoint() {
+        checkpointLock.lock();
+        try {
+            pc.flushDirtyPages();
+            pIndex.flush();
+            long beginLsn = logger.nextLsn();
+            activeXids.keySet().removeIf(xid -> !tm.isActive(xid));
+            Map<Long, Long> att = new HashMap<>(activeXids);
+            Map<Integer, Long> dpt = pc.dirtyPages();
+
+            long lsn = logger.log(Recover.checkpointLog(beginLsn, pc.getPageNumber(), att, dpt));
+            PageOne.setCheckpointLsn(pageOne, lsn);
+            pc.flushPage(pageOne);
+            lastCheckpointLsn = beginLsn;
+
+            logger.truncateBefore(Recover.scanStart(beginLsn, att, dpt));
+        } finally {
+            checkpointLock.unlock();
+        }
+    }
+
+    /**
+     * 启动检查点线程，日志每增长 logBytes 字节做一次检查点
+     * @param logBytes 为 0 时不启动
+     */
+    void startCheckpointer(long logBytes) {
+        lastCheckpointLsn = logger.nextLsn();
+        if (logBytes <= 0) {
+            return;
+        }
+        checkpointer = new Thread(() -> {
+            while (true) {
+                synchronized (checkpointerSignal) {
+                    try {
+                        if (!closed) {
+                            checkpointerSignal.wait(CHECKPOINT_POLL_MS);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                if (logger.nextLsn() - lastCheckpointLsn >= logBytes) {
+                    checkpoint();
+                }
+            }
+        }, "checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    public RecoveryStats getRecoveryStats() {
+        return recoveryStats;
     }
 
     public void releaseDataItem(DataItem di) {
@@ -130,7 +439,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     protected DataItem getForCache(long uid) throws Exception {
-        short offset = (short) (uid & ((1L << 16) - 1));
+        int offset = (int) (uid & ((1L << 32) - 1));
         uid >>>= 32;
         int pgno = (int) (uid & ((1L << 32) - 1));
         Page pg = pc.getPage(pgno);
@@ -151,7 +460,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * 在创建文件时初始化PageOne
      */
     void initPageOne() {
-        int pgno = pc.newPage(PageOne.InitRaw());
+        int pgno = pc.newPage(PageOne.InitRaw(pc.getPageSize()));
         assert pgno == 1;
         try {
             pageOne = pc.getPage(pgno);
@@ -175,10 +484,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     /**
-     * 初始化pageIndex
+     * 初始化pageIndex。FSM 可信时不读取数据页，由 PageIndex 按需从 FSM 载入；
+     * 否则读取所有页面，重建 PageIndex 的同时写入 FSM
+     * @param rebuild
      */
-    void fillPageIndex() {
+    void fillPageIndex(boolean rebuild) {
         int pageNumber = pc.getPageNumber();
+        if (!rebuild) {
+            pIndex.loadLazily(pageNumber);
+            return;
+        }
         for (int i = 2; i <= pageNumber; i++) {
             try {
                 Page pg = pc.getPage(i);
@@ -188,6 +503,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 Panic.panic(e);
             }
         }
+        pIndex.flush();
     }
 
 }
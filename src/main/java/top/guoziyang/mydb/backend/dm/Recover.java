@@ -10,10 +10,21 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
+/**
+ * 故障恢复
+ * 只读一遍日志：按页号收集需要重做的日志，按 XID 收集需要撤销的日志；
+ * 不同页面的重做互不依赖，在 ForkJoinPool 上按页号并行执行，同一页面内保持日志顺序；
+ * LSN 不大于页 LSN 的日志已经随页面写回，重做时跳过，重做后的页面记下最后应用的日志的 LSN；
+ * 最后逆序撤销未完成的事务
+ */
 public class Recover {
     /**
      * insertLog:
@@ -25,6 +36,12 @@ public class Recover {
      * [LogType] [XID] [UID] [OldRaw] [NewRaw]
      */
     private static final byte LOG_TYPE_UPDATE = 1;
+    /**
+     * checkpointLog:
+     * [LogType] [BeginLsn] [PageCount] [ATTSize] [XID FirstLsn]* [DPTSize] [Pgno RecLsn]*
+     * BeginLsn 为开始检查点时日志的末尾，ATT 为活跃事务表，DPT 为脏页表
+     */
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
     /**
      * 重做日志
      */
@@ -32,21 +49,43 @@ public class Recover {
     /**
      * 撤销日志
      */
-    private static final int UNDO = 1;
+    static final int UNDO = 1;
+    /**
+     * 并行重做时每个任务至少处理的页数
+     */
+    private static final int REDO_PAGES_PER_TASK = 4;
 
     static class InsertLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int offset;
         byte[] raw;
     }
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        int offset;
         byte[] oldRaw;
         byte[] newRaw;
     }
+    /**
+     * 待重做的日志及其 LSN
+     */
+    static class RedoLog {
+        final long lsn;
+        final byte[] log;
+
+        RedoLog(long lsn, byte[] log) {
+            this.lsn = lsn;
+            this.log = log;
+        }
+    }
+    static class CheckpointLogInfo {
+        long beginLsn;
+        int pageCount;
+        Map<Long, Long> activeXids;
+        Map<Integer, Long> dirtyPages;
+    }
 
 
     /**
@@ -55,144 +94,238 @@ public class Recover {
      * @param lg
      * @param pc
      */
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
-        System.out.println("Recovering...");
-
-        // 找到日志文件中最大的页号，并截断日志文件
-        int maxPgno = handleBadPaperCache(lg, pc);
-        System.out.println("Truncate to " + maxPgno + " pages.");
-
-        // 执行重做操作，回滚已完成的事务
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        // 执行撤销操作，撤销未完成的事务
-        undoTranscations(tm, lg, pc);
-        System.out.println("Undo Transactions Over.");
-
-        System.out.println("Recovery Over.");
+    public static RecoveryStats recover(TransactionManager tm, Logger lg, PageCache pc) {
+        return recover(tm, lg, pc, 0);
     }
 
     /**
-     * 截断日志文件
+     * 从最近的检查点开始故障重启
+     * 只需要扫描检查点记录的活跃事务和脏页所需的最早日志之后的部分
+     * @param tm
      * @param lg
      * @param pc
-     * @return
+     * @param checkpointLsn 最近一次检查点日志的 LSN，0 表示扫描全部日志
+     * @return 恢复各阶段的统计信息
      */
-    private static int handleBadPaperCache(Logger lg, PageCache pc) {
-        // 重置日志文件指针到起始位置
-        lg.rewind();
-        // 初始化最大页号为0
+    public static RecoveryStats recover(TransactionManager tm, Logger lg, PageCache pc, long checkpointLsn) {
+        System.out.println("Recovering...");
+        RecoveryStats stats = new RecoveryStats();
+        long begin = System.nanoTime();
+
+        long start = 0;
         int maxPgno = 0;
-        // 循环读取日志直到没有更多日志可读
+        CheckpointLogInfo ci = readCheckpoint(lg, checkpointLsn);
+        if (ci != null) {
+            start = scanStart(ci.beginLsn, ci.activeXids, ci.dirtyPages);
+            maxPgno = ci.pageCount;
+        }
+
+        // 读一遍日志，已结束事务的日志按页号分组，活跃事务的日志按 XID 分组
+        Map<Integer, List<RedoLog>> redoLogs = new HashMap<>();
+        Map<Long, List<byte[]>> undoLogs = new HashMap<>();
+        seekStart(lg, start);
         while (true) {
             byte[] log = lg.next();
-            if (log == null) break; // 如果没有更多的日志，退出循环
-            int pgno;
-            // 判断日志类型是插入还是更新
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            // 更新最大页号
+            if (log == null) break;
+            if (isCheckpointLog(log)) continue;
+            stats.records++;
+            int pgno = pgnoOf(log);
             if (pgno > maxPgno) {
                 maxPgno = pgno;
             }
+            long xid = xidOf(log);
+            if (tm.isActive(xid)) {
+                undoLogs.computeIfAbsent(xid, k -> new ArrayList<>()).add(log);
+            } else {
+                redoLogs.computeIfAbsent(pgno, k -> new ArrayList<>()).add(new RedoLog(lg.readLsn(), log));
+            }
         }
-        // 如果没有找到任何日志，设置最大页号为1
         if (maxPgno == 0) {
             maxPgno = 1;
         }
         // 根据最大页号截断文件，丢弃损坏数据
         pc.truncateByBgno(maxPgno);
-        return maxPgno;
+        long scanned = System.nanoTime();
+        stats.scanMillis = (scanned - begin) / 1000000;
+        System.out.println("Truncate to " + maxPgno + " pages.");
+
+        // 按页号并行重做
+        stats.parallelism = redoParallelism(pc);
+        stats.redoPages = redoLogs.size();
+        List<List<RedoLog>> pages = new ArrayList<>(redoLogs.values());
+        for (List<RedoLog> logs : pages) {
+            stats.redoRecords += logs.size();
+        }
+        ForkJoinPool pool = new ForkJoinPool(stats.parallelism);
+        try {
+            stats.redoSkipped = pool.invoke(new RedoTask(pc, pages, 0, pages.size()));
+        } finally {
+            pool.shutdown();
+        }
+        long redone = System.nanoTime();
+        stats.redoMillis = (redone - scanned) / 1000000;
+        System.out.println("Redo Transactions Over.");
+
+        // 逆序撤销未完成的事务
+        for (Entry<Long, List<byte[]>> entry : undoLogs.entrySet()) {
+            List<byte[]> logs = entry.getValue();
+            for (int i = logs.size() - 1; i >= 0; i--) {
+                byte[] log = logs.get(i);
+                if (isInsertLog(log)) {
+                    doInsertLog(pc, log, UNDO);
+                } else {
+                    doUpdateLog(pc, log, UNDO);
+                }
+            }
+            stats.undoRecords += logs.size();
+            tm.abort(entry.getKey());
+        }
+        stats.undoTransactions = undoLogs.size();
+        long end = System.nanoTime();
+        stats.undoMillis = (end - redone) / 1000000;
+        stats.totalMillis = (end - begin) / 1000000;
+        System.out.println("Undo Transactions Over.");
+
+        System.out.println("Recovery Over. " + stats);
+        return stats;
     }
+
     /**
-     * 重做所有已完成事务
-     * @param tm
-     * @param lg
-     * @param pc
+     * 恢复需要扫描的第一条日志：检查点开始时的日志末尾、活跃事务的第一条日志、脏页的 recLsn 中最小的一个，
+     * 这之前的日志在检查点之后都可以丢弃
      */
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
-                }
-            }
+    static long scanStart(long beginLsn, Map<Long, Long> activeXids, Map<Integer, Long> dirtyPages) {
+        long start = beginLsn;
+        for (long lsn : activeXids.values()) {
+            start = Math.min(start, lsn);
+        }
+        for (long lsn : dirtyPages.values()) {
+            start = Math.min(start, lsn);
         }
+        return start;
     }
 
     /**
-     * 撤销所有未完成事务
-     * @param tm
-     * @param lg
-     * @param pc
+     * 读取检查点日志
+     * @return checkpointLsn 为 0 时返回 null
      */
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        // 存储每个事务的日志列表
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
+    static CheckpointLogInfo readCheckpoint(Logger lg, long checkpointLsn) {
+        if (checkpointLsn == 0) {
+            return null;
+        }
+        lg.seek(checkpointLsn);
+        byte[] log = lg.next();
+        if (log == null || !isCheckpointLog(log)) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        CheckpointLogInfo ci = parseCheckpointLog(log);
+        System.out.println("Recover from checkpoint " + checkpointLsn + ", scan from "
+                + scanStart(ci.beginLsn, ci.activeXids, ci.dirtyPages) + ".");
+        return ci;
+    }
 
-        // 重置日志文件指针到起始位置
-        lg.rewind();
+    /**
+     * 并行度不超过 CPU 核数，并给页面缓存留出余量
+     */
+    private static int redoParallelism(PageCache pc) {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        return Math.max(1, Math.min(cpus, pc.getStats().capacity / 2));
+    }
 
-        // 循环读取日志直到没有更多日志可读
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break; // 如果没有更多的日志，退出循环
-
-            // 如果是插入日志
-            if (isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                // 如果事务是活动状态，将日志存入缓存
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
-                }
-            } else {
-                // 如果是更新日志
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                // 如果事务是活动状态，将日志存入缓存
-                if (tm.isActive(xid)) {
-                    if (!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+    /**
+     * 重做一组页面，每个页面只获取一次，按日志顺序应用该页的全部日志，返回跳过的日志条数
+     */
+    private static class RedoTask extends RecursiveTask<Long> {
+        private final PageCache pc;
+        private final List<List<RedoLog>> pages;
+        private final int lo, hi;
+
+        RedoTask(PageCache pc, List<List<RedoLog>> pages, int lo, int hi) {
+            this.pc = pc;
+            this.pages = pages;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        @Override
+        protected Long compute() {
+            if (hi - lo <= REDO_PAGES_PER_TASK) {
+                long skipped = 0;
+                for (int i = lo; i < hi; i++) {
+                    skipped += redoPage(pc, pages.get(i));
                 }
+                return skipped;
             }
+            int mid = (lo + hi) >>> 1;
+            RedoTask left = new RedoTask(pc, pages, lo, mid);
+            left.fork();
+            long skipped = new RedoTask(pc, pages, mid, hi).compute();
+            return skipped + left.join();
         }
+    }
 
-        // 对所有活动事务的日志进行逆序撤销操作
-        for (Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if (isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
-                } else {
-                    doUpdateLog(pc, log, UNDO);
+    /**
+     * @return 页 LSN 表明已经写入页面而跳过的日志条数
+     */
+    private static int redoPage(PageCache pc, List<RedoLog> logs) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgnoOf(logs.get(0).log));
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        int skipped = 0;
+        try {
+            long pageLsn = PageX.getPageLsn(pg);
+            for (RedoLog rl : logs) {
+                if (rl.lsn <= pageLsn) {
+                    skipped++;
+                    continue;
                 }
+                redo(pg, rl.log, rl.lsn);
             }
-            // 终止事务
-            tm.abort(entry.getKey());
+        } finally {
+            pg.release();
+        }
+        return skipped;
+    }
+
+    /**
+     * 把一条日志的新值写入页面，并把页 LSN 推进到该日志
+     */
+    static void redo(Page pg, byte[] log, long lsn) {
+        if (isInsertLog(log)) {
+            InsertLogInfo li = parseInsertLog(log);
+            PageX.recoverInsert(pg, li.raw, li.offset);
+        } else {
+            UpdateLogInfo xi = parseUpdateLog(log);
+            PageX.recoverUpdate(pg, xi.newRaw, xi.offset);
+        }
+        PageX.setPageLsn(pg, lsn);
+    }
+
+    /**
+     * 不解析整条日志，直接读出 XID
+     */
+    static long xidOf(byte[] log) {
+        return ByteBuffer.wrap(log).getLong(OF_XID);
+    }
+
+    /**
+     * 不解析整条日志，直接读出页号
+     */
+    static int pgnoOf(byte[] log) {
+        if (isInsertLog(log)) {
+            return ByteBuffer.wrap(log).getInt(OF_INSERT_PGNO);
+        }
+        return (int) (ByteBuffer.wrap(log).getLong(OF_UPDATE_UID) >>> 32);
+    }
+
+    static void seekStart(Logger lg, long start) {
+        if (start == 0) {
+            lg.rewind();
+        } else {
+            lg.seek(start);
         }
     }
 
@@ -201,7 +334,7 @@ public class Recover {
      * @param log
      * @return
      */
-    private static boolean isInsertLog(byte[] log) {
+    static boolean isInsertLog(byte[] log) {
         return log[0] == LOG_TYPE_INSERT;
     }
 
@@ -214,6 +347,55 @@ public class Recover {
         return log[0] == LOG_TYPE_UPDATE;
     }
 
+    static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
+    /**
+     * 生成检查点日志
+     * @param beginLsn   开始检查点时日志的末尾
+     * @param pageCount  数据文件的页数
+     * @param activeXids 活跃事务表：XID -> 该事务第一条日志的 LSN 下界
+     * @param dirtyPages 脏页表：页号 -> 使该页变脏的第一条日志的 LSN 下界
+     * @return
+     */
+    public static byte[] checkpointLog(long beginLsn, int pageCount, Map<Long, Long> activeXids, Map<Integer, Long> dirtyPages) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 4 + 4 + activeXids.size() * 16 + 4 + dirtyPages.size() * 12);
+        buf.put(LOG_TYPE_CHECKPOINT).putLong(beginLsn).putInt(pageCount);
+        buf.putInt(activeXids.size());
+        for (Entry<Long, Long> e : activeXids.entrySet()) {
+            buf.putLong(e.getKey()).putLong(e.getValue());
+        }
+        buf.putInt(dirtyPages.size());
+        for (Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            buf.putInt(e.getKey()).putLong(e.getValue());
+        }
+        return buf.array();
+    }
+
+    /**
+     * 解析检查点日志
+     * @param log
+     * @return
+     */
+    private static CheckpointLogInfo parseCheckpointLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log, 1, log.length - 1);
+        CheckpointLogInfo ci = new CheckpointLogInfo();
+        ci.beginLsn = buf.getLong();
+        ci.pageCount = buf.getInt();
+        int attSize = buf.getInt();
+        ci.activeXids = new HashMap<>();
+        for (int i = 0; i < attSize; i++) {
+            ci.activeXids.put(buf.getLong(), buf.getLong());
+        }
+        int dptSize = buf.getInt();
+        ci.dirtyPages = new HashMap<>();
+        for (int i = 0; i < dptSize; i++) {
+            ci.dirtyPages.put(buf.getInt(), buf.getLong());
+        }
+        return ci;
+    }
+
 
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
@@ -242,11 +424,11 @@ public class Recover {
      * @param log
      * @return
      */
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
+    static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
         long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
-        li.offset = (short)(uid & ((1L << 16) - 1));
+        li.offset = (int)(uid & ((1L << 32) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
         int length = (log.length - OF_UPDATE_RAW) / 2;
@@ -255,9 +437,9 @@ public class Recover {
         return li;
     }
 
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
+    static void doUpdateLog(PageCache pc, byte[] log, int flag) {
         int pgno;
-        short offset;
+        int offset;
         byte[] raw;
         if(flag == REDO) {
             UpdateLogInfo xi = parseUpdateLog(log);
@@ -283,7 +465,7 @@ public class Recover {
         }
     }
 
-    // [LogType] [XID] [Pgno] [Offset] [Raw]
+    // [LogType] [XID] [Pgno] [Offset] [Raw]，Offset 为无符号 2 字节，页大小最大 64KB
     private static final int OF_INSERT_PGNO = OF_XID+8;
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
@@ -296,10 +478,22 @@ public class Recover {
      * @return
      */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
+        return insertLog(xid, pg, PageX.getFSO(pg), raw);
+    }
+
+    /**
+     * 插入到页内指定位置的日志，用于复用已释放的空间
+     * @param xid
+     * @param pg
+     * @param offset
+     * @param raw
+     * @return
+     */
+    public static byte[] insertLog(long xid, Page pg, int offset, byte[] raw) {
         byte[] logTypeRaw = {LOG_TYPE_INSERT};
         byte[] xidRaw = Parser.long2Byte(xid);
         byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
+        byte[] offsetRaw = Parser.short2Byte((short) offset);
         return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
     }
 
@@ -308,16 +502,16 @@ public class Recover {
      * @param log
      * @return
      */
-    private static InsertLogInfo parseInsertLog(byte[] log) {
+    static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
         li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
         li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
+        li.offset = Parser.parseShort(log, OF_INSERT_OFFSET) & 0xffff;
         li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    static void doInsertLog(PageCache pc, byte[] log, int flag) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -0,0 +1,27 @@
+package top.guoziyang.mydb.backend.dm;
+
+/**
+ * 一次故障恢复的统计信息
+ */
+public class RecoveryStats {
+    public long records;            // 扫描的日志条数
+    public int redoPages;           // 重做涉及的页数
+    public long redoRecords;        // 重做的日志条数
+    public long redoSkipped;        // 其中已经写入页面、按页 LSN 跳过的条数
+    public int undoTransactions;    // 撤销的事务数
+    public long undoRecords;        // 撤销的日志条数
+    public int parallelism;         // 重做的并行度
+
+    public long scanMillis;         // 读日志与截断的耗时
+    public long redoMillis;         // 重做的耗时
+    public long undoMillis;         // 撤销的耗时
+    public long totalMillis;        // 总耗时
+
+    @Override
+    public String toString() {
+        return String.format("records=%d, redo=%d records/%d pages (parallelism %d, %d skipped), undo=%d records/%d xids, " +
+                        "scan=%dms, redo=%dms, undo=%dms, total=%dms",
+                records, redoRecords, redoPages, parallelism, redoSkipped, undoRecords, undoTransactions,
+                scanMillis, redoMillis, undoMillis, totalMillis);
+    }
+}
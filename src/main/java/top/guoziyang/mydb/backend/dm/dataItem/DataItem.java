@@ -4,11 +4,10 @@ import com.google.common.primitives.Bytes;
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.Types;
 
-import java.util.Arrays;
-
 /**
  * 一条记录的接口
  * DataItem 是 DataManager 向上层提供的数据抽象。
@@ -16,8 +15,9 @@ import java.util.Arrays;
  * DataItem的结构：
  * | valid | size | data |
  * valid：数据是否可以被覆盖
- * size：数据长度
+ * size：数据长度，无符号 2 字节
  * data：数据
+ * DataItem 留在 DM 缓存期间持有所在页面的引用，data() 指向的页帧在此期间不会被驱逐和复用
  */
 public interface DataItem {
 
@@ -33,18 +33,31 @@ public interface DataItem {
     }
 
     // 从页面的offset处解析处DataItem
-    static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    static DataItem parseDataItem(Page pg, int offset, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);
+        int size = Parser.parseShort(raw, offset + DataItemImpl.OF_SIZE) & 0xffff;
+        int length = size + DataItemImpl.OF_DATA;
         long uid = Types.addressToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], pg, uid, dm);
+        return new DataItemImpl(new SubArray(raw, offset, offset + length), pg, uid, dm);
     }
 
     static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte) 1;
     }
 
+    /**
+     * 标记为已释放，并在数据开头记录释放时下一个将被分配的 XID
+     * 复用界限越过这个 XID 之后，所在空间才可以被之后的插入复用
+     */
+    static void setDataItemRawFreed(SubArray raw, long nextXid) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = PageX.ITEM_FREED;
+        System.arraycopy(Parser.long2Byte(nextXid), 0, raw.raw, raw.start + DataItemImpl.OF_DATA, 8);
+    }
+
+    static boolean isDataItemRawFreed(SubArray raw) {
+        return raw.raw[raw.start + DataItemImpl.OF_VALID] == PageX.ITEM_FREED;
+    }
+
     SubArray data();
 
     void before();
@@ -63,6 +76,19 @@ public interface DataItem {
 
     void rUnLock();
 
+    /**
+     * 开始一次乐观读，返回当前版本号；正在被修改时返回 -1
+     * @return
+     */
+    long tryOptimisticRead();
+
+    /**
+     * 乐观读结束后校验版本号，期间没有被修改则返回 true
+     * @param version
+     * @return
+     */
+    boolean validate(long version);
+
     Page page();
 
     long getUid();
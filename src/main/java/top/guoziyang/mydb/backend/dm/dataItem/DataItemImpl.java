@@ -4,6 +4,7 @@ import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManagerImpl;
 import top.guoziyang.mydb.backend.dm.page.Page;
 
+import java.lang.invoke.VarHandle;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -22,16 +23,22 @@ public class DataItemImpl implements DataItem {
     static final int OF_DATA = 3;
 
     private final SubArray raw;
-    private final byte[] oldRaw;
+    /**
+     * 修改前的数据，第一次修改时才分配，只读的数据项不占用额外的内存
+     */
+    private byte[] oldRaw;
     private final Lock rLock;
     private final Lock wLock;
     private final DataManagerImpl dm;
     private final long uid;
     private final Page pg;
+    /**
+     * 写锁持有期间为奇数，每次加写锁和解写锁各加一，用于乐观读的校验
+     */
+    private volatile long version;
 
-    public DataItemImpl(SubArray raw, byte[] oldRaw, Page pg, long uid, DataManagerImpl dm) {
+    public DataItemImpl(SubArray raw, Page pg, long uid, DataManagerImpl dm) {
         this.raw = raw;
-        this.oldRaw = oldRaw;
         ReadWriteLock lock = new ReentrantReadWriteLock();
         rLock = lock.readLock();
         wLock = lock.writeLock();
@@ -55,7 +62,11 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
-        pg.setDirty(true);
+        version++;
+        dm.beginModify(pg);
+        if (oldRaw == null) {
+            oldRaw = new byte[raw.end - raw.start];
+        }
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
@@ -65,6 +76,8 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.endModify(0);
+        version++;
         wLock.unlock();
     }
 
@@ -75,6 +88,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        version++;
         wLock.unlock();
     }
 
@@ -86,10 +100,12 @@ public class DataItemImpl implements DataItem {
     @Override
     public void lock() {
         wLock.lock();
+        version++;
     }
 
     @Override
     public void unlock() {
+        version++;
         wLock.unlock();
     }
 
@@ -103,6 +119,19 @@ public class DataItemImpl implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        long v = version;
+        return (v & 1) == 0 ? v : -1;
+    }
+
+    @Override
+    public boolean validate(long v) {
+        // 保证之前对数据的读取不会被重排到版本号的读取之后
+        VarHandle.acquireFence();
+        return version == v;
+    }
+
     @Override
     public Page page() {
         return pg;
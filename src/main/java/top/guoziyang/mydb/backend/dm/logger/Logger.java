@@ -1,14 +1,12 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 public interface Logger {
@@ -40,16 +38,29 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
         try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
+            LoggerImpl.writeHeader(fc);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(raf, fc, path);
+        lg.init();
+
+        return lg;
+    }
+
+    /**
+     * 数据库初始化时，创建使用指定组提交参数的日志文件
+     * @param path
+     * @param flushDelayMicros 组提交攒批的最长等待时间（微秒）
+     * @param batchSize        组提交的批大小（字节）
+     * @return
+     */
+    static Logger create(String path, long flushDelayMicros, int batchSize) {
+        LoggerImpl lg = (LoggerImpl) create(path);
+        lg.setGroupCommit(flushDelayMicros, batchSize);
+        return lg;
     }
 
     /**
@@ -58,6 +69,8 @@ public interface Logger {
      * @return
      */
     static Logger open(String path) {
+        // 旧格式的日志文件先迁移到新格式
+        LoggerImpl.upgradeIfLegacy(path);
         File f = new File(path + LoggerImpl.LOG_SUFFIX);
         if (!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -75,19 +88,77 @@ public interface Logger {
             Panic.panic(e);
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(raf, fc, path);
         lg.init();
 
         return lg;
     }
 
-    void log(byte[] data);
+    /**
+     * 打开已有的日志文件，并使用指定的组提交参数
+     * @param path
+     * @param flushDelayMicros 组提交攒批的最长等待时间（微秒）
+     * @param batchSize        组提交的批大小（字节）
+     * @return
+     */
+    static Logger open(String path, long flushDelayMicros, int batchSize) {
+        LoggerImpl lg = (LoggerImpl) open(path);
+        lg.setGroupCommit(flushDelayMicros, batchSize);
+        return lg;
+    }
+
+    /**
+     * 写入一条日志，返回时日志已经落盘
+     * @param data
+     * @return 该日志的 LSN
+     */
+    long log(byte[] data);
+
+    /**
+     * 把日志追加到缓冲区，不等待落盘
+     * @param data
+     * @return 该日志的 LSN
+     */
+    long append(byte[] data);
+
+    /**
+     * 等待 LSN 为 lsn 的日志及其之前的日志落盘
+     * @param lsn
+     */
+    void flush(long lsn);
+
+    /**
+     * 下一条日志将获得的 LSN
+     */
+    long nextLsn();
+
+    /**
+     * 已经落盘的日志的末尾，LSN 小于它的日志都已落盘
+     */
+    long flushedLsn();
 
     void truncate(long x) throws Exception;
 
+    /**
+     * 丢弃 LSN 小于 lsn 的日志，用于检查点之后回收日志空间
+     * @param lsn
+     */
+    void truncateBefore(long lsn);
+
     byte[] next();
 
+    /**
+     * 上一次 next 返回的日志的 LSN
+     */
+    long readLsn();
+
     void rewind();
 
+    /**
+     * 把读指针移动到 LSN 为 lsn 的日志
+     * @param lsn
+     */
+    void seek(long lsn);
+
     void close();
 }
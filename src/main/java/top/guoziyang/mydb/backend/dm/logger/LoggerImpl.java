@@ -1,33 +1,56 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * 实现了日志文件
  * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 是后续所有日志计算的校验和，用于校验后续所有日志是否损坏
+ * [Header] [Log1] [Log2] ... [LogN] [BadTail]
+ * Header 为文件头，记录格式版本、第一条日志的 LSN 以及正常关闭时的日志末尾
  * Log1 ~ LogN 是常规的日志数据
  * BadTail 是在数据库崩溃时，没有来得及写完的日志数据，BadTail 不一定存在
  * <p/>
- * XChecksum 用于计算后续所有日志的Checksum，校验日志文件是否损坏
+ * 文件头格式为：
+ * [Magic] [Version] [StartLsn] [CleanEnd]
+ * Magic、Version：各 4 字节，标识日志格式
+ * StartLsn：8 字节，文件中第一条日志的 LSN
+ * CleanEnd：8 字节，正常关闭时日志的有效末尾，运行期间为 0
  * <p/>
  * 每条正确日志的格式为：
- * [Size] [Checksum] [Data]
+ * [Size] [Checksum] [LSN] [Data]
  * Size：标识Data长度
- * Checksum：校验当前日志文件是否损坏
+ * Checksum：对 Size、LSN 和 Data 计算的 CRC32C，单条日志自校验
+ * LSN：日志序列号，即该日志在整个日志流中的偏移
  * Data：日志数据
+ * <p/>
+ * 坏尾只依靠单条日志的校验和 LSN 识别，写日志时不再改写文件头；
+ * 正常关闭的日志文件在打开时不需要扫描全文件。
+ * 旧格式（[XChecksum] [Log1] ... ）的日志文件在打开时被迁移到新格式。
+ * <p/>
+ * 写日志采用组提交：log() 把日志追加到共享的内存缓冲区后等待，
+ * 由后台刷盘线程把一批日志一次写入文件并只调用一次 force，
+ * 然后唤醒所有日志已经落盘的等待者
+ * <p/>
+ * 检查点之后，LSN 小于恢复起点的日志可以通过 truncateBefore 从文件头部截掉，
+ * 新文件头的 StartLsn 记录剩余第一条日志的 LSN，因此 LSN 在截断前后保持不变
  */
 public class LoggerImpl implements Logger {
     /**
@@ -35,9 +58,29 @@ public class LoggerImpl implements Logger {
      */
     public static final String LOG_SUFFIX = ".log";
     /**
-     * 计算日志校验和一个的种子，如果修改，可能无法读取历史日志和日志文件
+     * 旧格式日志迁移后保留的备份文件后缀
      */
-    private static final int SEED = 13331;
+    static final String LEGACY_SUFFIX = ".log.v1";
+    /**
+     * 迁移过程中生成的临时文件后缀
+     */
+    static final String MIGRATE_TMP_SUFFIX = ".log.tmp";
+    /**
+     * 截断日志头部时生成的临时文件后缀
+     */
+    static final String TRUNCATE_TMP_SUFFIX = ".log.trunc";
+
+    /**
+     * 文件头："MYLG" 与格式版本
+     */
+    private static final int MAGIC = 0x4D594C47;
+    private static final int VERSION = 2;
+    private static final int OF_MAGIC = 0;
+    private static final int OF_VERSION = OF_MAGIC + 4;
+    private static final int OF_START_LSN = OF_VERSION + 4;
+    private static final int OF_CLEAN_END = OF_START_LSN + 8;
+    static final int HEADER_SIZE = OF_CLEAN_END + 8;
+
     /**
      * 日志大小的偏移量
      */
@@ -46,25 +89,73 @@ public class LoggerImpl implements Logger {
      * 日志校验和的偏移量
      */
     private static final int OF_CHECKSUM = OF_SIZE + 4;
+    /**
+     * 日志 LSN 的偏移量
+     */
+    private static final int OF_LSN = OF_CHECKSUM + 4;
     /**
      * 日志数据的偏移量
      */
-    private static final int OF_DATA = OF_CHECKSUM + 4;
+    private static final int OF_DATA = OF_LSN + 8;
+
+    /**
+     * 旧格式计算日志校验和的种子，仅用于迁移旧日志
+     */
+    private static final int LEGACY_SEED = 13331;
+    private static final int LEGACY_OF_CHECKSUM = 4;
+    private static final int LEGACY_OF_DATA = 8;
+
+    /**
+     * 默认的组提交等待时间（微秒），刷盘线程最多等待这么久来攒一批日志
+     */
+    public static final long DEFAULT_FLUSH_DELAY_MICROS = 0;
+    /**
+     * 默认的组提交批大小，缓冲区超过这个大小立即刷盘
+     */
+    public static final int DEFAULT_BATCH_SIZE = 1 << 16;
     private RandomAccessFile file;
     private FileChannel fc;
     private Lock lock;
+    /**
+     * 数据库路径（不含后缀），截断日志头部时用于重写文件
+     */
+    private String path;
+    /**
+     * 组提交的缓冲区与状态，由 bufferLock 保护
+     */
+    private final Lock bufferLock = new ReentrantLock();
+    private final Condition flushRequested = bufferLock.newCondition();
+    private final Condition flushDone = bufferLock.newCondition();
+    private List<byte[]> buffer = new ArrayList<>();
+    private int bufferBytes;
+    /**
+     * 已追加到缓冲区的日志末尾的 LSN，在 bufferLock 内修改
+     */
+    private volatile long appendedLsn;
+    /**
+     * 已经落盘的日志末尾的 LSN，在 bufferLock 内修改
+     */
+    private volatile long flushedLsn;
+    private boolean closed;
+    private long flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(DEFAULT_FLUSH_DELAY_MICROS);
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private Thread flusher;
     /**
      * 日志文件读到的位置偏移
      */
     private long position;
+    /**
+     * 上一次 next 返回的日志的 LSN
+     */
+    private long readLsn;
     /**
      * 日志文件的大小
      */
     private long fileSize;
     /**
-     * 所有日志计算的校验和
+     * 文件中第一条日志的 LSN
      */
-    private int xChecksum;
+    private long startLsn;
 
     public LoggerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
@@ -72,11 +163,25 @@ public class LoggerImpl implements Logger {
         lock = new ReentrantLock();
     }
 
-    public LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    public LoggerImpl(RandomAccessFile raf, FileChannel fc, String path) {
+        this(raf, fc);
+        this.path = path;
+    }
+
+    /**
+     * 为新建的日志文件写入文件头
+     * @param fc
+     */
+    static void writeHeader(FileChannel fc) throws IOException {
+        writeHeader(fc, HEADER_SIZE);
+    }
+
+    private static void writeHeader(FileChannel fc, long startLsn) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(startLsn).putLong(0);
+        header.flip();
+        fc.write(header, 0);
+        fc.force(false);
     }
 
     public void init() {
@@ -86,22 +191,73 @@ public class LoggerImpl implements Logger {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        if (size < 4) {
+        if (size < HEADER_SIZE) {
             Panic.panic(Error.BadLogFileException);
         }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
+        ByteBuffer raw = ByteBuffer.allocate(HEADER_SIZE);
         try {
-            fc.position(0);
-            fc.read(raw);
+            fc.read(raw, 0);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xChecksum = Parser.parseInt(raw.array());
+        raw.flip();
+        if (raw.getInt(OF_MAGIC) != MAGIC || raw.getInt(OF_VERSION) != VERSION) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        this.startLsn = raw.getLong(OF_START_LSN);
+        long cleanEnd = raw.getLong(OF_CLEAN_END);
         this.fileSize = size;
-        this.xChecksum = xChecksum;
 
-        checkAndRemoveTail();
+        if (cleanEnd != size) {
+            // 上次没有正常关闭，依靠单条日志的校验找到坏尾
+            checkAndRemoveTail();
+        }
+        position = size;
+        try {
+            // 运行期间清除 CleanEnd，崩溃后重新打开时会扫描坏尾
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(0)), OF_CLEAN_END);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        startFlusher(lsnOf(fileSize));
+        rewind();
+    }
+
+    /**
+     * 设置组提交参数
+     * @param flushDelayMicros 刷盘线程攒批的最长等待时间（微秒）
+     * @param batchSize        缓冲区达到该大小时立即刷盘
+     */
+    void setGroupCommit(long flushDelayMicros, int batchSize) {
+        bufferLock.lock();
+        try {
+            this.flushDelayNanos = TimeUnit.MICROSECONDS.toNanos(flushDelayMicros);
+            this.batchSize = batchSize;
+        } finally {
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * 启动后台刷盘线程，end 为当前日志的有效末尾
+     * @param end
+     */
+    private void startFlusher(long end) {
+        appendedLsn = end;
+        flushedLsn = end;
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    private long lsnOf(long offset) {
+        return startLsn + (offset - HEADER_SIZE);
+    }
+
+    private long offsetOf(long lsn) {
+        return lsn - startLsn + HEADER_SIZE;
     }
 
     /**
@@ -109,15 +265,9 @@ public class LoggerImpl implements Logger {
      */
     private void checkAndRemoveTail() {
         rewind();
-
-        int xCheck = 0;
         while (true) {
             byte[] log = internNext();
             if (log == null) break;
-            xCheck = calChecksum(xCheck, log);
-        }
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
         }
 
         // 去掉 BadTail日志数据，保证日志文件的一致性
@@ -126,13 +276,7 @@ public class LoggerImpl implements Logger {
         } catch (Exception e) {
             Panic.panic(e);
         }
-
-        try {
-            file.seek(position);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        rewind();
+        fileSize = position;
     }
 
     /**
@@ -151,94 +295,198 @@ public class LoggerImpl implements Logger {
     }
 
     /**
-     * 单条日志的校验和
-     * @param xCheck
-     * @param log
+     * 单条日志的校验和，覆盖 Size、LSN 和 Data
+     * @param log 完整的二进制日志
      * @return
      */
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
-        }
-        return xCheck;
+    private static int calChecksum(byte[] log) {
+        CRC32C crc = new CRC32C();
+        crc.update(log, OF_SIZE, 4);
+        crc.update(log, OF_LSN, log.length - OF_LSN);
+        return (int) crc.getValue();
     }
 
     /**
      * 向日志文件写入日志
+     * 日志被追加到共享缓冲区，返回时该日志已经落盘
      * @param data
+     * @return 该日志的 LSN
      */
     @Override
-    public void log(byte[] data) {
-        // 将数据包裹成日志格式，得到二进制格式的日志
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        byte[] log = Bytes.concat(size, checksum, data);
-        // 将日志写入日志文件
-        ByteBuffer buf = ByteBuffer.wrap(log);
-        lock.lock();
+    public long log(byte[] data) {
+        long lsn = append(data);
+        flush(lsn);
+        return lsn;
+    }
+
+    /**
+     * 把日志追加到共享缓冲区，不等待落盘
+     * @param data
+     * @return 该日志的 LSN
+     */
+    @Override
+    public long append(byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        System.arraycopy(Parser.int2Byte(data.length), 0, log, OF_SIZE, 4);
+
+        bufferLock.lock();
         try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            // LSN 在追加到缓冲区时分配，保证与文件中的位置一致
+            long lsn = appendedLsn;
+            System.arraycopy(Parser.long2Byte(lsn), 0, log, OF_LSN, 8);
+            System.arraycopy(Parser.int2Byte(calChecksum(log)), 0, log, OF_CHECKSUM, 4);
+
+            buffer.add(log);
+            bufferBytes += log.length;
+            appendedLsn += log.length;
+            flushRequested.signal();
+            return lsn;
         } finally {
-            lock.unlock();
+            bufferLock.unlock();
+        }
+    }
+
+    /**
+     * 等待刷盘线程把 LSN 为 lsn 的日志及其之前的日志落盘
+     * @param lsn
+     */
+    @Override
+    public void flush(long lsn) {
+        bufferLock.lock();
+        try {
+            while (flushedLsn <= lsn && flushedLsn < appendedLsn) {
+                flushDone.awaitUninterruptibly();
+            }
+        } finally {
+            bufferLock.unlock();
         }
-        updateXChecksum(log);
     }
 
     /**
-     * 更新日志文件的校验和
-     * @param log
+     * 下一条追加的日志将获得的 LSN
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    @Override
+    public long nextLsn() {
+        return appendedLsn;
+    }
+
+    @Override
+    public long flushedLsn() {
+        return flushedLsn;
+    }
+
+    /**
+     * 刷盘线程：每次取走缓冲区中的全部日志，一次写入、一次 force
+     */
+    private void flushLoop() {
+        while (true) {
+            List<byte[]> batch;
+            long target;
+            bufferLock.lock();
+            try {
+                while (buffer.isEmpty() && !closed) {
+                    flushRequested.awaitUninterruptibly();
+                }
+                if (buffer.isEmpty()) {
+                    return;
+                }
+                // 在等待时间内继续攒批，直到达到批大小
+                long nanos = flushDelayNanos;
+                while (nanos > 0 && bufferBytes < batchSize && !closed) {
+                    try {
+                        nanos = flushRequested.awaitNanos(nanos);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                batch = buffer;
+                target = appendedLsn;
+                buffer = new ArrayList<>();
+                bufferBytes = 0;
+            } finally {
+                bufferLock.unlock();
+            }
+
+            writeBatch(batch);
+
+            bufferLock.lock();
+            try {
+                flushedLsn = target;
+                flushDone.signalAll();
+            } finally {
+                bufferLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 将一批日志追加到文件末尾
+     * @param batch
+     */
+    private void writeBatch(List<byte[]> batch) {
+        int total = 0;
+        for (byte[] log : batch) {
+            total += log.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocate(total);
+        for (byte[] log : batch) {
+            buf.put(log);
+        }
+        buf.flip();
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
+            long offset = fileSize;
+            while (buf.hasRemaining()) {
+                offset += fc.write(buf, offset);
+            }
             fc.force(false);
+            fileSize += total;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            lock.unlock();
         }
     }
 
-
-
     /**
      * 获取下一个日志
      * Logger 被实现成迭代器模式，便于读取
      * @return
      */
     private byte[] internNext() {
-        if (position + OF_DATA >= fileSize) {
+        if (position + OF_DATA > fileSize) {
             return null;
         }
         ByteBuffer tmp = ByteBuffer.allocate(4);
         try {
-            fc.position(position);
-            fc.read(tmp);
+            fc.read(tmp, position);
         } catch (IOException e) {
             Panic.panic(e);
         }
         int size = Parser.parseInt(tmp.array());
-        if (position + size + OF_DATA > fileSize) {
+        if (size < 0 || position + size + OF_DATA > fileSize) {
             return null;
         }
 
         ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
         try {
-            fc.position(position);
-            fc.read(buf);
+            fc.read(buf, position);
         } catch (IOException e) {
             Panic.panic(e);
         }
 
         byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
+        int checkSum1 = calChecksum(log);
+        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_LSN));
         if (checkSum1 != checkSum2) {
             return null;
         }
+        // LSN 必须与所在位置一致，防止把残留的旧数据当作日志
+        long lsn = Parser.parseLong(Arrays.copyOfRange(log, OF_LSN, OF_DATA));
+        if (lsn != lsnOf(position)) {
+            return null;
+        }
         position += log.length;
         return log;
     }
@@ -251,30 +499,126 @@ public class LoggerImpl implements Logger {
     public byte[] next() {
         lock.lock();
         try {
+            long lsn = lsnOf(position);
             byte[] log = internNext();
             if (log == null) return null;
+            readLsn = lsn;
             return Arrays.copyOfRange(log, OF_DATA, log.length);
         } finally {
             lock.unlock();
         }
     }
 
+    @Override
+    public long readLsn() {
+        lock.lock();
+        try {
+            return readLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     /**
-     * 指针回复到校验和的位置
+     * 指针回复到第一条日志的位置
      * @return
      */
     @Override
     public void rewind() {
-        position = 4;
+        position = HEADER_SIZE;
+    }
+
+    /**
+     * 指针移动到 LSN 为 lsn 的日志
+     * @param lsn
+     */
+    @Override
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            long offset = offsetOf(lsn);
+            if (offset < HEADER_SIZE || offset > fileSize) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            position = offset;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃 LSN 小于 lsn 的日志
+     * 把剩余的日志复制到临时文件，文件头记录新的 StartLsn，再原子地替换原日志文件
+     * @param lsn 必须是一条已落盘日志的 LSN
+     */
+    @Override
+    public void truncateBefore(long lsn) {
+        if (path == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            if (lsn <= startLsn) {
+                return;
+            }
+            long from = offsetOf(lsn);
+            if (from > fileSize) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            File f = new File(path + LOG_SUFFIX);
+            File tmp = new File(path + TRUNCATE_TMP_SUFFIX);
+            long remain = fileSize - from;
+            try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+                FileChannel out = raf.getChannel();
+                out.truncate(0);
+                writeHeader(out, lsn);
+                long copied = 0;
+                while (copied < remain) {
+                    copied += fc.transferTo(from + copied, remain - copied, out.position(HEADER_SIZE + copied));
+                }
+                out.force(false);
+            }
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            fc.close();
+            file.close();
+            file = new RandomAccessFile(f, "rw");
+            fc = file.getChannel();
+
+            long readLsn = lsnOf(position);
+            startLsn = lsn;
+            fileSize = HEADER_SIZE + remain;
+            position = Math.max(HEADER_SIZE, offsetOf(readLsn));
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
      * 关闭日志的读写操作
+     * 刷完缓冲区后记录 CleanEnd，下次打开时不需要扫描
      * @return
      */
     @Override
     public void close() {
+        bufferLock.lock();
+        try {
+            closed = true;
+            flushRequested.signal();
+        } finally {
+            bufferLock.unlock();
+        }
         try {
+            if (flusher != null) {
+                flusher.join();
+            }
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+        try {
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(fileSize)), OF_CLEAN_END);
+            fc.force(false);
             fc.close();
             file.close();
         } catch (IOException e) {
@@ -282,4 +626,111 @@ public class LoggerImpl implements Logger {
         }
     }
 
+    /**
+     * 如果 path 对应的日志是旧格式，将其迁移到新格式。
+     * 旧日志会先写成临时文件，再把原文件改名为 .log.v1 备份，最后把临时文件改名为 .log，
+     * 中途崩溃时下次打开会从备份重新迁移
+     * @param path
+     */
+    static void upgradeIfLegacy(String path) {
+        File f = new File(path + LOG_SUFFIX);
+        File legacy = new File(path + LEGACY_SUFFIX);
+        File tmp = new File(path + MIGRATE_TMP_SUFFIX);
+        try {
+            if (!f.exists()) {
+                if (legacy.exists()) {
+                    // 上次迁移在改名之间崩溃
+                    migrate(legacy, tmp);
+                    Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                return;
+            }
+            if (!isLegacy(f)) {
+                return;
+            }
+            migrate(f, tmp);
+            Files.move(f.toPath(), legacy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private static boolean isLegacy(File f) throws IOException {
+        if (f.length() < HEADER_SIZE) {
+            return true;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            return raf.readInt() != MAGIC;
+        }
+    }
+
+    /**
+     * 按旧格式读取 from 中所有完整的日志，写成新格式的 to
+     * @param from
+     * @param to
+     */
+    private static void migrate(File from, File to) throws IOException {
+        List<byte[]> logs = readLegacy(from);
+        try (RandomAccessFile raf = new RandomAccessFile(to, "rw")) {
+            FileChannel fc = raf.getChannel();
+            fc.truncate(0);
+            writeHeader(fc);
+            long offset = HEADER_SIZE;
+            for (byte[] data : logs) {
+                byte[] log = new byte[OF_DATA + data.length];
+                System.arraycopy(Parser.int2Byte(data.length), 0, log, OF_SIZE, 4);
+                System.arraycopy(Parser.long2Byte(offset), 0, log, OF_LSN, 8);
+                System.arraycopy(data, 0, log, OF_DATA, data.length);
+                System.arraycopy(Parser.int2Byte(calChecksum(log)), 0, log, OF_CHECKSUM, 4);
+                ByteBuffer buf = ByteBuffer.wrap(log);
+                while (buf.hasRemaining()) {
+                    offset += fc.write(buf, offset);
+                }
+            }
+            fc.force(false);
+        }
+    }
+
+    /**
+     * 读取旧格式日志，并用旧的 XChecksum 校验
+     * @param f
+     * @return 所有完整日志的数据
+     */
+    private static List<byte[]> readLegacy(File f) throws IOException {
+        byte[] raw = Files.readAllBytes(f.toPath());
+        if (raw.length < 4) {
+            throw new IOException(Error.BadLogFileException.getMessage());
+        }
+        int xChecksum = Parser.parseInt(raw);
+        int xCheck = 0;
+        List<byte[]> logs = new ArrayList<>();
+        int pos = 4;
+        while (pos + LEGACY_OF_DATA < raw.length) {
+            int size = Parser.parseInt(Arrays.copyOfRange(raw, pos, pos + 4));
+            if (size < 0 || pos + LEGACY_OF_DATA + size > raw.length) {
+                break;
+            }
+            byte[] data = Arrays.copyOfRange(raw, pos + LEGACY_OF_DATA, pos + LEGACY_OF_DATA + size);
+            int checkSum = Parser.parseInt(Arrays.copyOfRange(raw, pos + LEGACY_OF_CHECKSUM, pos + LEGACY_OF_DATA));
+            if (legacyChecksum(0, data) != checkSum) {
+                break;
+            }
+            xCheck = legacyChecksum(xCheck, Arrays.copyOfRange(raw, pos, pos + LEGACY_OF_DATA + size));
+            logs.add(data);
+            pos += LEGACY_OF_DATA + size;
+        }
+        if (xCheck != xChecksum) {
+            throw new IOException(Error.BadLogFileException.getMessage());
+        }
+        return logs;
+    }
+
+    private static int legacyChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * LEGACY_SEED + b;
+        }
+        return xCheck;
+    }
+
 }
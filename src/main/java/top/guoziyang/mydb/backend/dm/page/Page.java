@@ -11,4 +11,16 @@ public interface Page {
     boolean isDirty();
     int getPageNumber();
     byte[] getData();
+
+    /**
+     * 开始一次带日志的修改，recLsnHint 不大于这次修改将要写入的日志的 LSN
+     * @param recLsnHint
+     */
+    void beginModify(long recLsnHint);
+
+    /**
+     * 结束修改，lsn 为这次修改对应日志的 LSN，没有写日志时为 0
+     * @param lsn
+     */
+    void endModify(long lsn);
 }
@@ -26,6 +26,18 @@ public class PageImpl implements Page {
      * PageCache 方便在拿到 Page 的引用时释放这个页面的缓存
      */
     private PageCache pc;
+    /**
+     * 正在进行中的修改数，不为 0 时页面数据可能还没有对应的日志，不能写回
+     */
+    private int modifying;
+    /**
+     * 使该页变脏的第一条日志的 LSN 的下界，0 表示没有未写回的日志修改，用于构造脏页表
+     */
+    private volatile long recLsn;
+    /**
+     * 该页最后一次修改对应的日志的 LSN，写回前需要保证日志已经落盘，同时记入页面数据中的页 LSN
+     */
+    private long lastLsn;
 
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
@@ -48,6 +60,9 @@ public class PageImpl implements Page {
 
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if (!dirty) {
+            recLsn = 0;
+        }
     }
 
     public boolean isDirty() {
@@ -62,4 +77,64 @@ public class PageImpl implements Page {
         return data;
     }
 
+    /**
+     * 交出页帧，页面被驱逐时由页面缓存调用，页帧随后会被其他页面复用。
+     * 此后页面数据为 null，驱逐之后仍在使用这个页面对象的代码会立即出错，而不是读到别的页面的数据
+     * @return
+     */
+    public byte[] detachFrame() {
+        byte[] frame = data;
+        data = null;
+        return frame;
+    }
+
+    public void beginModify(long recLsnHint) {
+        lock.lock();
+        try {
+            modifying++;
+            if (recLsn == 0) {
+                recLsn = recLsnHint;
+            }
+            dirty = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void endModify(long lsn) {
+        lock.lock();
+        try {
+            modifying--;
+            if (lsn > lastLsn) {
+                lastLsn = lsn;
+                PageX.setPageLsn(this, lsn);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 以下方法由 PageCache 在持有页锁时调用
+     */
+    public boolean isModifying() {
+        return modifying > 0;
+    }
+
+    public long getRecLsn() {
+        return recLsn;
+    }
+
+    public long getLastLsn() {
+        return lastLsn;
+    }
+
+    /**
+     * 从待写回的数据重新载入时，继承写回前的 LSN
+     */
+    public void setLsn(long recLsn, long lastLsn) {
+        this.recLsn = recLsn;
+        this.lastLsn = lastLsn;
+    }
+
 }
@@ -2,7 +2,7 @@ package top.guoziyang.mydb.backend.dm.page;
 
 import java.util.Arrays;
 
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
 
 /**
@@ -10,9 +10,18 @@ import top.guoziyang.mydb.backend.utils.RandomUtil;
  * 数据页的第一页用于一些页数用途，
  * 此项目中用于判断上一次数据库是否正常关闭，
  * 特殊页结构：
+ * 0~7 字节为文件头：4 字节魔数和 4 字节页大小，旧版本创建的文件这里全为 0，页大小为 8KB
  * db启动时在100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
+ * 116~123字节记录最近一次检查点日志的 LSN，0 表示还没有检查点
  */
 public class PageOne {
+    /**
+     * 文件头的长度，打开数据文件时先读这些字节得到页大小
+     */
+    public static final int HEADER_LENGTH = 8;
+    private static final int MAGIC = 0x4D594442;  // "MYDB"
+    private static final int OF_MAGIC = 0;
+    private static final int OF_PAGE_SIZE = OF_MAGIC + 4;
     /**
      * ValidCheck的起始位置
      */
@@ -22,15 +31,34 @@ public class PageOne {
      */
     private static final int LEN_VC = 8;
     /**
-     * 第一次创建表时，在100~107字节处填入一个随机字节
+     * 检查点 LSN 的起始位置
+     */
+    private static final int OF_CHECKPOINT = OF_VC + 2 * LEN_VC;
+    /**
+     * 第一次创建表时，写入文件头，并在100~107字节处填入一个随机字节
+     * @param pageSize
      * @return
      */
-    public static byte[] InitRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
+    public static byte[] InitRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        System.arraycopy(Parser.int2Byte(MAGIC), 0, raw, OF_MAGIC, 4);
+        System.arraycopy(Parser.int2Byte(pageSize), 0, raw, OF_PAGE_SIZE, 4);
         setVcOpen(raw);
         return raw;
     }
 
+    /**
+     * 从文件头中解析页大小
+     * @param header 数据文件开头的 HEADER_LENGTH 个字节
+     * @return 没有文件头的旧文件返回 0
+     */
+    public static int parsePageSize(byte[] header) {
+        if (Parser.parseInt(Arrays.copyOfRange(header, OF_MAGIC, OF_MAGIC + 4)) != MAGIC) {
+            return 0;
+        }
+        return Parser.parseInt(Arrays.copyOfRange(header, OF_PAGE_SIZE, OF_PAGE_SIZE + 4));
+    }
+
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
         setVcOpen(pg.getData());
@@ -58,6 +86,20 @@ public class PageOne {
     }
 
 
+    /**
+     * 记录最近一次检查点日志的 LSN
+     * @param pg
+     * @param lsn
+     */
+    public static void setCheckpointLsn(Page pg, long lsn) {
+        pg.setDirty(true);
+        System.arraycopy(Parser.long2Byte(lsn), 0, pg.getData(), OF_CHECKPOINT, 8);
+    }
+
+    public static long getCheckpointLsn(Page pg) {
+        return Parser.parseLong(pg.getData(), OF_CHECKPOINT);
+    }
+
     public static boolean checkVc(Page pg) {
         return checkVc(pg.getData());
     }
@@ -1,58 +1,167 @@
 package top.guoziyang.mydb.backend.dm.page;
 
 import java.util.Arrays;
+import java.util.function.LongPredicate;
+import java.util.function.LongSupplier;
 
-import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.utils.Types;
 
 /**
  * 管理普通页，
  * 普通页结构：
  * [FreeSpaceOffset] [Data]
- * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * FreeSpaceOffset: 空闲位置开始偏移，无符号数，页大小不超过 32KB 时占 2 字节，64KB 的页占 4 字节
+ * Data 由首尾相连的数据项 [ValidFlag] [DataSize] [Data] 组成。
+ * 新页面的第一个数据项是页 LSN 项 [3] [8] [PageLsn]，记录最后一次修改该页的日志的 LSN，恢复时跳过已经写入页面的日志；
+ * 没有页 LSN 项的旧页面照常重做全部日志。
+ * 页大小由页面数组的长度得到，同一套方法适用于各种页大小。
+ * UID 中带有数据项的页内偏移，数据项不能移动，被 VACUUM 释放的数据项留下的空洞由之后的插入原地复用。
+ * 已释放数据项的数据开头是释放时下一个将被分配的 XID，复用界限越过它之后才能复用，
+ * 此前开始的事务可能还持有指向它的 UID；插入时写下的填充没有 UID 指向，其中的 XID 为 0，不足 8 字节的填充直接复用
  */
 public class PageX {
     /**
      * 页面空闲位置的偏移量
      */
-    private static final short OF_FREE = 0;
+    private static final int OF_FREE = 0;
     /**
-     * 页面的数据位置的偏移量
+     * 数据项头部 [ValidFlag] [DataSize] 的长度
      */
-    private static final short OF_DATA = 2;
+    private static final int ITEM_HEADER = 3;
     /**
-     * 获取空闲位置偏移，页面空闲大小 = 页面大小 - 空闲位置偏移
+     * ValidFlag 的取值：0 有效，1 无效但可能仍被索引引用，2 已被释放，空间可以复用
      */
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    public static final byte ITEM_FREED = 2;
+    /**
+     * 页 LSN 项的 ValidFlag，该项不会被释放或复用
+     */
+    private static final byte ITEM_PAGE_LSN = 3;
+    /**
+     * 页 LSN 项的总长度
+     */
+    private static final int PAGE_LSN_ITEM = ITEM_HEADER + 8;
+    /**
+     * 已释放数据项中记录的释放时 XID 的长度
+     */
+    private static final int FREED_XID = 8;
+
+    /**
+     * 页内一段可写入的位置，raw 为实际写入的字节，末尾可能带有一个已释放的填充数据项
+     */
+    public static class Space {
+        public int offset;
+        public byte[] raw;
+
+        Space(int offset, byte[] raw) {
+            this.offset = offset;
+            this.raw = raw;
+        }
+    }
+
+    /**
+     * 页面的数据位置的偏移量，即 FreeSpaceOffset 的长度
+     * @param pageSize
+     * @return
+     */
+    private static int ofData(int pageSize) {
+        return pageSize > 0xffff ? 4 : 2;
+    }
+
+    /**
+     * 一页最多能放下的数据项总长度
+     * @param pageSize
+     * @return
+     */
+    public static int maxFreeSpace(int pageSize) {
+        return pageSize - ofData(pageSize) - PAGE_LSN_ITEM;
+    }
+
     /**
      * 初始化一个页面的字节数据
+     * @param pageSize
      * @return
      */
-    public static byte[] initRaw() {
-        byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+    public static byte[] initRaw(int pageSize) {
+        byte[] raw = new byte[pageSize];
+        initPageLsn(raw);
         return raw;
     }
+
+    /**
+     * 在数据区开头写入页 LSN 项，并把空闲位置设置到它之后
+     */
+    private static void initPageLsn(byte[] raw) {
+        int ofData = ofData(raw.length);
+        raw[ofData] = ITEM_PAGE_LSN;
+        raw[ofData + 1] = 0;
+        raw[ofData + 2] = 8;
+        Arrays.fill(raw, ofData + ITEM_HEADER, ofData + PAGE_LSN_ITEM, (byte) 0);
+        setFSO(raw, ofData + PAGE_LSN_ITEM);
+    }
+
+    /**
+     * 获取页 LSN，即已经写入该页的最后一条日志的 LSN
+     * @param pg
+     * @return 没有页 LSN 项的旧页面返回 0
+     */
+    public static long getPageLsn(Page pg) {
+        byte[] raw = pg.getData();
+        int ofData = ofData(raw.length);
+        if (!hasPageLsn(raw, ofData)) {
+            return 0;
+        }
+        return Parser.parseLong(raw, ofData + ITEM_HEADER);
+    }
+
+    /**
+     * 设置页 LSN，旧页面没有页 LSN 项，不做处理
+     * @param pg
+     * @param lsn
+     */
+    public static void setPageLsn(Page pg, long lsn) {
+        byte[] raw = pg.getData();
+        int ofData = ofData(raw.length);
+        if (hasPageLsn(raw, ofData)) {
+            System.arraycopy(Parser.long2Byte(lsn), 0, raw, ofData + ITEM_HEADER, 8);
+        }
+    }
+
+    private static boolean hasPageLsn(byte[] raw, int ofData) {
+        return raw[ofData] == ITEM_PAGE_LSN && raw[ofData + 1] == 0 && raw[ofData + 2] == 8;
+    }
+
     /**
      * 设置FreeSpaceOffset，即页面的空闲位置的偏移量
      * @param raw    数据页
      * @param ofData 新的空闲位置偏移量
      */
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(byte[] raw, int ofData) {
+        if (ofData(raw.length) == 4) {
+            System.arraycopy(Parser.int2Byte(ofData), 0, raw, OF_FREE, 4);
+        } else {
+            System.arraycopy(Parser.short2Byte((short) ofData), 0, raw, OF_FREE, 2);
+        }
     }
 
     // 获取pg的FSO
-    public static short getFSO(Page pg) {
+    public static int getFSO(Page pg) {
         return getFSO(pg.getData());
     }
     /**
      * 获取FreeSpaceOffset，即页面的空闲位置的偏移量
+     * 新页面异步写回，崩溃后文件中可能留下全零的页，视为带有页 LSN 项的空页
      * @param raw 数据页数据
      * @return 页面的空闲位置的偏移量
      */
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    private static int getFSO(byte[] raw) {
+        int ofData = ofData(raw.length);
+        int fso = rawFSO(raw);
+        return fso < ofData ? ofData + PAGE_LSN_ITEM : fso;
+    }
+
+    private static int rawFSO(byte[] raw) {
+        return ofData(raw.length) == 4 ? Parser.parseInt(raw, OF_FREE) : Parser.parseShort(raw, OF_FREE) & 0xffff;
     }
 
     /**
@@ -61,21 +170,149 @@ public class PageX {
      * @param raw  插入的数据
      * @return
      */
-    public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
+    public static int insert(Page pg, byte[] raw) {
+        int offset = getFSO(pg.getData());
+        recoverInsert(pg, raw, offset);
         return offset;
     }
 
     /**
-     * 获取页面的空闲空间大小
+     * 将 allocate 得到的数据写入页面，空闲位置偏移只增不减
+     * @param pg
+     * @param space
+     */
+    public static void insert(Page pg, Space space) {
+        recoverInsert(pg, space.raw, space.offset);
+    }
+
+    /**
+     * 为 raw 找到插入位置：尾部空间足够时直接追加；
+     * 否则复用第一段足够长的连续已释放数据项，多出的部分写成一个已释放的填充数据项，
+     * 使页内数据项仍然首尾相连。填充随插入日志一起记录，重做后页面结构一致。
+     * 空闲位置偏移从不回退，紧邻尾部的空洞与尾部空间合并使用
+     * @param pg
+     * @param raw
+     * @param horizon 复用界限，释放时的 XID 不小于它的数据项不能复用
+     * @param inUse 数据项是否仍被缓存引用，仍被引用的已释放数据项不能复用
+     * @return 没有足够的空间时返回 null
+     */
+    public static Space allocate(Page pg, byte[] raw, LongSupplier horizon, LongPredicate inUse) {
+        byte[] data = pg.getData();
+        int fso = getFSO(data);
+        if (data.length - fso >= raw.length) {
+            return new Space(fso, raw);
+        }
+        int runStart = -1;
+        for (int off = ofData(data.length); off < fso; ) {
+            int end = itemEnd(data, off, fso);
+            if (end < 0) {
+                break;
+            }
+            if (!isReusable(pg, off, horizon, inUse)) {
+                runStart = -1;
+                off = end;
+                continue;
+            }
+            if (runStart < 0) {
+                runStart = off;
+            }
+            int span = end - runStart;
+            if (span == raw.length) {
+                return new Space(runStart, raw);
+            }
+            if (span >= raw.length + ITEM_HEADER) {
+                return new Space(runStart, pad(raw, span));
+            }
+            if (end == fso) {
+                // 紧邻尾部，越过原来的空闲位置偏移写入
+                int length = span > raw.length ? raw.length + ITEM_HEADER : raw.length;
+                if (runStart + length <= data.length) {
+                    return new Space(runStart, pad(raw, length));
+                }
+            }
+            off = end;
+        }
+        return null;
+    }
+
+    /**
+     * 获取页面的空闲空间大小，即尾部空间与最长的一段连续已释放数据项中的较大者
      * @param pg
      * @return
      */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        return getFreeSpace(pg, () -> Long.MAX_VALUE, uid -> false);
+    }
+
+    /**
+     * 获取页面的空闲空间大小，不计算尚未越过复用界限或仍被引用的已释放数据项
+     * @param pg
+     * @param horizon
+     * @param inUse
+     * @return
+     */
+    public static int getFreeSpace(Page pg, LongSupplier horizon, LongPredicate inUse) {
+        byte[] data = pg.getData();
+        int fso = getFSO(data);
+        int tail = data.length - fso;
+        int max = tail;
+        int runStart = -1;
+        for (int off = ofData(data.length); off < fso; ) {
+            int end = itemEnd(data, off, fso);
+            if (end < 0) {
+                break;
+            }
+            if (isReusable(pg, off, horizon, inUse)) {
+                if (runStart < 0) {
+                    runStart = off;
+                }
+                int span = end - runStart;
+                max = Math.max(max, end == fso ? span + tail : span);
+            } else {
+                runStart = -1;
+            }
+            off = end;
+        }
+        return max;
+    }
+
+    /**
+     * 数据项的结束位置，头部损坏时返回 -1
+     */
+    private static int itemEnd(byte[] data, int off, int fso) {
+        if (off + ITEM_HEADER > fso) {
+            return -1;
+        }
+        int size = ((data[off + 1] & 0xff) << 8) | (data[off + 2] & 0xff);
+        int end = off + ITEM_HEADER + size;
+        return end <= fso ? end : -1;
+    }
+
+    private static boolean isReusable(Page pg, int off, LongSupplier horizon, LongPredicate inUse) {
+        byte[] data = pg.getData();
+        if (data[off] != ITEM_FREED) {
+            return false;
+        }
+        int size = ((data[off + 1] & 0xff) << 8) | (data[off + 2] & 0xff);
+        if (size >= FREED_XID && Parser.parseLong(data, off + ITEM_HEADER) >= horizon.getAsLong()) {
+            return false;
+        }
+        return !inUse.test(Types.addressToUid(pg.getPageNumber(), off));
+    }
+
+    /**
+     * 在 raw 之后追加一个已释放的填充数据项，使总长度为 length
+     */
+    private static byte[] pad(byte[] raw, int length) {
+        if (length == raw.length) {
+            return raw;
+        }
+        byte[] padded = Arrays.copyOf(raw, length);
+        int size = length - raw.length - ITEM_HEADER;
+        padded[raw.length] = ITEM_FREED;
+        padded[raw.length + 1] = (byte) (size >>> 8);
+        padded[raw.length + 2] = (byte) size;
+        return padded;
     }
 
     /**
@@ -84,13 +321,18 @@ public class PageX {
      * @param raw  插入的数据
      * @param offset
      */
-    public static void recoverInsert(Page pg, byte[] raw, short offset) {
+    public static void recoverInsert(Page pg, byte[] raw, int offset) {
         pg.setDirty(true);
+        int ofData = ofData(pg.getData().length);
+        if (rawFSO(pg.getData()) < ofData && offset >= ofData + PAGE_LSN_ITEM) {
+            // 初始内容没有写回的新页，先补上页 LSN 项
+            initPageLsn(pg.getData());
+        }
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
 
-        short rawFSO = getFSO(pg.getData());
+        int rawFSO = getFSO(pg.getData());
         if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+            setFSO(pg.getData(), offset+raw.length);
         }
     }
 
@@ -100,7 +342,7 @@ public class PageX {
      * @param raw  插入的数据
      * @param offset
      */
-    public static void recoverUpdate(Page pg, byte[] raw, short offset) {
+    public static void recoverUpdate(Page pg, byte[] raw, int offset) {
         pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
     }
@@ -0,0 +1,132 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 把数据文件按 CHUNK_SIZE 分块映射到内存的页面缓存，适合读多写少的场景
+ * 缓存未命中时直接从映射中拷贝页面，不经过 read 系统调用，由操作系统的页缓存承担大部分缓存。
+ * 页面仍在堆上修改，写线程在日志落盘之后才把页面写入映射，映射中的数据被操作系统写回时日志已经落盘，仍满足 WAL。
+ * 每块映射只覆盖文件当前已有的部分，访问到文件增长出来的部分时重新映射该块；
+ * 文件末尾之外的写入走普通的带位置写
+ */
+public class MappedPageCache extends PageCacheImpl {
+    /**
+     * 每块映射的大小，是页大小的整数倍
+     */
+    static final int CHUNK_SIZE = 1 << 26;
+
+    private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    /**
+     * 写入过、还没有落盘的映射块，只由写线程访问
+     */
+    private final BitSet dirtyChunks = new BitSet();
+
+    MappedPageCache(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy, int pageSize) {
+        super(file, fileChannel, maxResource, policy, pageSize);
+    }
+
+    @Override
+    protected void read(long offset, ByteBuffer buf) {
+        MappedByteBuffer chunk = chunkFor(offset, buf.remaining());
+        if(chunk == null) {
+            super.read(offset, buf);
+            return;
+        }
+        ByteBuffer src = chunk.duplicate();
+        int pos = (int) (offset % CHUNK_SIZE);
+        src.limit(pos + buf.remaining()).position(pos);
+        buf.put(src);
+    }
+
+    /**
+     * 文件范围内的页写入映射，超出文件末尾的部分用一次聚集写追加到文件
+     */
+    @Override
+    protected void write(long offset, ByteBuffer[] bufs) {
+        for(int i = 0; i < bufs.length; i++) {
+            long pageOffset = offset + (long) i * pageSize;
+            MappedByteBuffer chunk = chunkFor(pageOffset, pageSize);
+            if(chunk == null) {
+                super.write(pageOffset, Arrays.copyOfRange(bufs, i, bufs.length));
+                return;
+            }
+            ByteBuffer dst = chunk.duplicate();
+            dst.position((int) (pageOffset % CHUNK_SIZE));
+            dst.put(bufs[i]);
+            dirtyChunks.set((int) (pageOffset / CHUNK_SIZE));
+        }
+    }
+
+    @Override
+    protected void force() {
+        MappedByteBuffer[] cs = chunks;
+        for(int i = dirtyChunks.nextSetBit(0); i >= 0; i = dirtyChunks.nextSetBit(i + 1)) {
+            if(i < cs.length && cs[i] != null) {
+                cs[i].force();
+            }
+        }
+        dirtyChunks.clear();
+        super.force();
+    }
+
+    @Override
+    protected void truncate(long size) {
+        // 截断后不能再访问被截掉部分的映射
+        synchronized(this) {
+            chunks = new MappedByteBuffer[0];
+        }
+        super.truncate(size);
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        chunks = new MappedByteBuffer[0];
+    }
+
+    /**
+     * 取得覆盖 [offset, offset + length) 的映射块，映射不够大时按文件当前长度重新映射
+     * @return 该范围超出文件末尾时返回 null
+     */
+    private MappedByteBuffer chunkFor(long offset, int length) {
+        int idx = (int) (offset / CHUNK_SIZE);
+        int end = (int) (offset % CHUNK_SIZE) + length;
+        MappedByteBuffer[] cs = chunks;
+        if(idx < cs.length && cs[idx] != null && cs[idx].capacity() >= end) {
+            return cs[idx];
+        }
+        synchronized(this) {
+            cs = chunks;
+            if(idx < cs.length && cs[idx] != null && cs[idx].capacity() >= end) {
+                return cs[idx];
+            }
+            long chunkStart = (long) idx * CHUNK_SIZE;
+            MappedByteBuffer chunk = null;
+            try {
+                long size = Math.min(CHUNK_SIZE, fc.size() - chunkStart);
+                if(size < end) {
+                    return null;
+                }
+                chunk = fc.map(FileChannel.MapMode.READ_WRITE, chunkStart, size);
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+            if(idx >= cs.length) {
+                cs = Arrays.copyOf(cs, idx + 1);
+            } else {
+                cs = cs.clone();
+            }
+            cs[idx] = chunk;
+            chunks = cs;
+            return chunk;
+        }
+    }
+}
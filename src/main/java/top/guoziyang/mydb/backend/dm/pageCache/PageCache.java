@@ -2,10 +2,16 @@ package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.Map;
 
+import top.guoziyang.mydb.backend.common.CacheStats;
+import top.guoziyang.mydb.backend.common.EvictionPolicy;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
@@ -14,7 +20,20 @@ import top.guoziyang.mydb.common.Error;
  */
 public interface PageCache {
     
-    public static final int PAGE_SIZE = 1 << 13;  // 8192，定义一页的大小为 8KB
+    public static final int PAGE_SIZE = 1 << 13;  // 8192，默认页大小为 8KB，也是没有文件头的旧数据文件的页大小
+    /**
+     * 可选的页大小范围，页大小须为 2 的幂
+     */
+    public static final int MIN_PAGE_SIZE = 1 << 12;
+    public static final int MAX_PAGE_SIZE = 1 << 16;
+    /**
+     * 页面 I/O 方式：通过文件通道读写
+     */
+    public static final String IO_FILE = "file";
+    /**
+     * 页面 I/O 方式：把数据文件映射到内存
+     */
+    public static final String IO_MMAP = "mmap";
 
     int newPage(byte[] initData);
     Page getPage(int pgno) throws Exception;
@@ -23,7 +42,30 @@ public interface PageCache {
 
     void truncateByBgno(int maxPgno);
     int getPageNumber();
+    /**
+     * 数据文件的页大小，创建时选定，记录在第一页的文件头中
+     * @return
+     */
+    int getPageSize();
     void flushPage(Page pg);
+    CacheStats getStats();
+
+    /**
+     * 设置日志，写回脏页前先把该页对应的日志落盘
+     * @param lg
+     */
+    void setLogger(Logger lg);
+
+    /**
+     * 脏页表：页号 -> 使该页变脏的第一条日志的 LSN 下界，包括已被驱逐但还未写回的页
+     * @return
+     */
+    Map<Integer, Long> dirtyPages();
+
+    /**
+     * 写回所有当前没有在修改中的脏页，返回时这些页已经落盘
+     */
+    void flushDirtyPages();
 
     /**
      * 创建数据库时，创建页面缓存对象
@@ -32,6 +74,45 @@ public interface PageCache {
      * @return
      */
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, EvictionPolicy.CLOCK);
+    }
+
+    /**
+     * 创建数据库时，创建使用指定驱逐策略的页面缓存对象
+     * @param path
+     * @param memory
+     * @param policy 驱逐策略，clock 或 lru-k
+     * @return
+     */
+    public static PageCacheImpl create(String path, long memory, String policy) {
+        return create(path, memory, policy, IO_FILE);
+    }
+
+    /**
+     * 创建数据库时，创建使用指定驱逐策略和 I/O 方式的页面缓存对象
+     * @param path
+     * @param memory
+     * @param policy 驱逐策略，clock 或 lru-k
+     * @param io I/O 方式，file 或 mmap
+     * @return
+     */
+    public static PageCacheImpl create(String path, long memory, String policy, String io) {
+        return create(path, memory, policy, io, PAGE_SIZE);
+    }
+
+    /**
+     * 创建数据库时，创建指定页大小的页面缓存对象，页大小由调用方写入第一页的文件头
+     * @param path
+     * @param memory
+     * @param policy 驱逐策略，clock 或 lru-k
+     * @param io I/O 方式，file 或 mmap
+     * @param pageSize 页大小，4KB 到 64KB 之间的 2 的幂
+     * @return
+     */
+    public static PageCacheImpl create(String path, long memory, String policy, String io, int pageSize) {
+        if(!isValidPageSize(pageSize)) {
+            throw new IllegalArgumentException("Unsupported page size: " + pageSize);
+        }
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
             if(!f.createNewFile()) {
@@ -52,7 +133,7 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(raf, fc, (int)(memory/pageSize), policy, io, pageSize);
     }
 
     /**
@@ -62,6 +143,29 @@ public interface PageCache {
      * @return
      */
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, EvictionPolicy.CLOCK);
+    }
+
+    /**
+     * 打开数据库时，打开使用指定驱逐策略的页面缓存对象
+     * @param path
+     * @param memory
+     * @param policy 驱逐策略，clock 或 lru-k
+     * @return
+     */
+    public static PageCacheImpl open(String path, long memory, String policy) {
+        return open(path, memory, policy, IO_FILE);
+    }
+
+    /**
+     * 打开数据库时，打开使用指定驱逐策略和 I/O 方式的页面缓存对象，页大小从文件头中读出
+     * @param path
+     * @param memory
+     * @param policy 驱逐策略，clock 或 lru-k
+     * @param io I/O 方式，file 或 mmap
+     * @return
+     */
+    public static PageCacheImpl open(String path, long memory, String policy, String io) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -78,6 +182,45 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        int pageSize = readPageSize(raf);
+        return newPageCache(raf, fc, (int)(memory/pageSize), policy, io, pageSize);
+    }
+
+    static boolean isValidPageSize(int pageSize) {
+        return pageSize >= MIN_PAGE_SIZE && pageSize <= MAX_PAGE_SIZE && Integer.bitCount(pageSize) == 1;
+    }
+
+    /**
+     * 读取第一页的文件头，没有文件头的旧文件使用默认页大小
+     */
+    private static int readPageSize(RandomAccessFile raf) {
+        byte[] header = new byte[PageOne.HEADER_LENGTH];
+        try {
+            if(raf.length() < header.length) {
+                return PAGE_SIZE;
+            }
+            raf.seek(0);
+            raf.readFully(header);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        int pageSize = PageOne.parsePageSize(header);
+        if(pageSize == 0) {
+            return PAGE_SIZE;
+        }
+        if(!isValidPageSize(pageSize)) {
+            Panic.panic(Error.BadDataFileException);
+        }
+        return pageSize;
+    }
+
+    private static PageCacheImpl newPageCache(RandomAccessFile raf, FileChannel fc, int maxResource, String policy, String io, int pageSize) {
+        if(io == null || IO_FILE.equals(io)) {
+            return new PageCacheImpl(raf, fc, maxResource, policy, pageSize);
+        }
+        if(IO_MMAP.equals(io)) {
+            return new MappedPageCache(raf, fc, maxResource, policy, pageSize);
+        }
+        throw new IllegalArgumentException("Unknown page I/O: " + io);
     }
 }
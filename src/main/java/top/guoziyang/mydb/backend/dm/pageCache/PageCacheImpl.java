@@ -4,11 +4,23 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.EvictionPolicy;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -16,22 +28,66 @@ import top.guoziyang.mydb.common.Error;
 
 /**
  * 实现对数据页的缓存的管理
+ * 未被引用的页面会继续驻留在缓存中，缓存满时由驱逐策略（CLOCK / LRU-K）选出牺牲页；
+ * 脏的牺牲页交给后台写线程写回，写回完成前再次读取该页会直接使用待写回的数据
+ * <p/>
+ * 读页面使用带位置的读，不加锁；所有写都由同一个写线程完成：
+ * 写线程一次取出队列中的一批页面，先把这批页面最后一次修改的日志落盘（WAL），
+ * 再按页号排序，把相邻的页合并成一次聚集写。写回后不立即 force，
+ * 而是定期或在检查点、关闭等需要持久化时统一 force；在 force 之前页面仍登记为待写回，
+ * 驻留页与待写回页一起构成检查点使用的脏页表，持久性由日志保证
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     
     private static final int MEM_MIN_LIM = 10;
     public static final String DB_SUFFIX = ".db";
+    /**
+     * 写线程一次最多取出的页数
+     */
+    private static final int MAX_BATCH = 64;
+    /**
+     * 两次 force 的最长间隔
+     */
+    private static final long SYNC_INTERVAL_MS = 1000;
+    /**
+     * 写回但还未 force 的页达到这么多时 force 一次
+     */
+    private static final int SYNC_PAGES = 256;
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock fileLock;
+    protected final RandomAccessFile file;
+    protected final FileChannel fc;
+    protected final int pageSize;
     /**
      * 当前打开的数据页文件页数
      */
     private AtomicInteger pageNumbers;
+    /**
+     * 已被驱逐、正在等待后台写回或已写回但还未 force 的脏页数据
+     */
+    private final ConcurrentHashMap<Integer, PendingWrite> pendingWrites;
+    private final BlockingQueue<WriteTask> writeQueue;
+    private final Thread writer;
+    /**
+     * 限制待写回的页数，写线程跟不上时驱逐线程等待，避免待写回数据无限堆积。
+     * 每次驱逐之后在桶锁之外占用一个名额，干净页的名额在驱逐时立即归还，脏页的名额在写回后由写线程归还
+     */
+    private final Semaphore writeSlots;
+    /**
+     * 被驱逐的页面留下的页帧，加载页面时优先复用。
+     * 页帧数不超过缓存容量加上正在加载的页数，稳定运行后缓存未命中不再分配新的页数组，
+     * 这些长期存活的数组只在老年代中占据固定的空间，不会产生垃圾。
+     * 复用依赖于引用计数：只有引用计数归零的页面才会被驱逐，
+     * 凡是保存了页面数据的地方（如 DataItem 的 SubArray）都必须同时持有页面的引用，直到不再访问这些数据
+     */
+    private final ConcurrentLinkedQueue<byte[]> freeFrames;
+    private volatile Logger logger;
 
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(file, fileChannel, maxResource, EvictionPolicy.CLOCK, PAGE_SIZE);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, String policy, int pageSize) {
+        super(maxResource, EvictionPolicy.of(policy, Math.max(maxResource, 1)));
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -43,14 +99,25 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageSize = pageSize;
+        this.pageNumbers = new AtomicInteger((int)(length / pageSize));
+        this.pendingWrites = new ConcurrentHashMap<>();
+        this.writeSlots = new Semaphore(maxResource);
+        this.writeQueue = new LinkedBlockingQueue<>();
+        this.freeFrames = new ConcurrentLinkedQueue<>();
+        this.writer = new Thread(this::writeLoop, "page-writer");
+        writer.setDaemon(true);
+        writer.start();
     }
 
+    /**
+     * 新页面先登记为待写回，由写线程写入文件
+     */
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();
-        Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);
+        PendingWrite w = new PendingWrite(Arrays.copyOf(initData, pageSize), 0, 0);
+        pendingWrites.put(pgno, w);
+        writeQueue.add(new WriteTask(pgno, w, false));
         return pgno;
     }
 
@@ -64,70 +131,303 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     @Override
     protected Page getForCache(long key) throws Exception {
         int pgno = (int)key;
-        long offset = PageCacheImpl.pageOffset(pgno);
+        PendingWrite pending = pendingWrites.get(pgno);
+        if(pending != null) {
+            // 该页的数据还未写回或还未 force，直接使用
+            byte[] frame = takeFrame();
+            System.arraycopy(pending.data, 0, frame, 0, pageSize);
+            PageImpl pg = new PageImpl(pgno, frame, this);
+            if(pending.recLsn != 0) {
+                pg.setDirty(true);
+                pg.setLsn(pending.recLsn, pending.lastLsn);
+            }
+            return pg;
+        }
+        byte[] frame = takeFrame();
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        read(pageOffset(pgno), buf);
+        if(buf.hasRemaining()) {
+            Arrays.fill(frame, buf.position(), pageSize, (byte) 0);
+        }
+        return new PageImpl(pgno, frame, this);
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+    private byte[] takeFrame() {
+        byte[] frame = freeFrames.poll();
+        return frame != null ? frame : new byte[pageSize];
+    }
+
+    /**
+     * 从 offset 处读满 buf，超出文件末尾的部分保持为 0，可以被多个线程同时调用
+     */
+    protected void read(long offset, ByteBuffer buf) {
+        long start = offset - buf.position();
         try {
-            fc.position(offset);
-            fc.read(buf);
+            while(buf.hasRemaining()) {
+                if(fc.read(buf, start + buf.position()) < 0) {
+                    break;
+                }
+            }
         } catch(IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
     }
 
     /**
      * 驱逐页面。需要根据页面是否是脏页面，来决定是否需要写回文件系统
+     * 脏页面的数据被拷贝后交给后台写线程，驱逐本身不等待磁盘 I/O，页帧随即回收。
+     * 在缓存的桶锁内调用，不能阻塞，写线程跟不上时由 afterRelease 等待
      * @param pg
      */
     @Override
     protected void releaseForCache(Page pg) {
-        if(pg.isDirty()) {
-            flush(pg);
+        PendingWrite w = capture(pg);
+        if(w != null) {
+            writeQueue.add(new WriteTask(pg.getPageNumber(), w, true));
+        } else {
+            writeSlots.release();
+        }
+        freeFrames.offer(((PageImpl) pg).detachFrame());
+    }
+
+    @Override
+    protected void afterRelease(Page pg) {
+        writeSlots.acquireUninterruptibly();
+    }
+
+    /**
+     * 在页锁内拍下脏页的快照，并登记为待写回
+     * 登记先于清除页面的 recLsn，保证脏页表在任何时刻都不会漏掉这一页
+     * @param page
+     * @return 页面不脏或正在被修改时返回 null
+     */
+    private PendingWrite capture(Page page) {
+        PageImpl pg = (PageImpl) page;
+        pg.lock();
+        try {
+            if(!pg.isDirty() || pg.isModifying()) {
+                return null;
+            }
+            PendingWrite w = new PendingWrite(Arrays.copyOf(pg.getData(), pageSize), pg.getRecLsn(), pg.getLastLsn());
+            pendingWrites.put(pg.getPageNumber(), w);
             pg.setDirty(false);
+            return w;
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    public void setLogger(Logger lg) {
+        this.logger = lg;
+    }
+
+    public Map<Integer, Long> dirtyPages() {
+        Map<Integer, Long> dpt = new HashMap<>();
+        // 先读驻留页再读待写回页：页面的 recLsn 被清除之前，它已经登记在 pendingWrites 中
+        forEachResident(pg -> {
+            long recLsn = ((PageImpl) pg).getRecLsn();
+            if(recLsn != 0) {
+                dpt.merge(pg.getPageNumber(), recLsn, Math::min);
+            }
+        });
+        for(Map.Entry<Integer, PendingWrite> e : pendingWrites.entrySet()) {
+            if(e.getValue().recLsn != 0) {
+                dpt.merge(e.getKey(), e.getValue().recLsn, Math::min);
+            }
         }
+        return dpt;
+    }
+
+    /**
+     * 写回所有当前没有在修改中的脏页并 force，返回时这些页已经落盘
+     */
+    public void flushDirtyPages() {
+        List<Page> pages = new ArrayList<>();
+        forEachResident(pages::add);
+        for(Page pg : pages) {
+            PendingWrite w = capture(pg);
+            if(w != null) {
+                writeQueue.add(new WriteTask(pg.getPageNumber(), w, false));
+            }
+        }
+        sync();
     }
 
     public void release(Page page) {
         release((long)page.getPageNumber());
     }
 
+    /**
+     * 立即写回一页并 force，与后台写线程串行，避免旧数据覆盖新数据
+     * @param pg
+     */
     public void flushPage(Page pg) {
-        flush(pg);
+        int pgno = pg.getPageNumber();
+        PendingWrite w = new PendingWrite(Arrays.copyOf(pg.getData(), pageSize), 0, 0);
+        writeQueue.add(new WriteTask(pgno, w, false));
+        sync();
     }
 
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+    /**
+     * 等待队列中已有的写全部完成并 force
+     */
+    private void sync() {
+        WriteTask barrier = new WriteTask(0, null, false);
+        writeQueue.add(barrier);
+        try {
+            barrier.done.get();
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 写线程：成批取出写任务，合并写回，按需 force
+     */
+    private void writeLoop() {
+        List<WriteTask> batch = new ArrayList<>();
+        List<WriteTask> unsynced = new ArrayList<>();
+        long lastSync = System.currentTimeMillis();
+        while(true) {
+            WriteTask first = null;
+            try {
+                first = writeQueue.poll(SYNC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean needSync = false;
+            boolean stop = false;
+            if(first != null) {
+                batch.add(first);
+                writeQueue.drainTo(batch, MAX_BATCH - 1);
+                for(WriteTask t : batch) {
+                    if(t.w == null) {
+                        needSync = true;
+                        stop |= t.pgno < 0;
+                    }
+                }
+                writeBatch(batch);
+                for(WriteTask t : batch) {
+                    if(t.w != null) {
+                        unsynced.add(t);
+                    }
+                }
+            }
+            long now = System.currentTimeMillis();
+            if(!unsynced.isEmpty() && (needSync || unsynced.size() >= SYNC_PAGES || now - lastSync >= SYNC_INTERVAL_MS)) {
+                force();
+                for(WriteTask t : unsynced) {
+                    pendingWrites.remove(t.pgno, t.w);
+                }
+                unsynced.clear();
+                lastSync = now;
+            }
+            for(WriteTask t : batch) {
+                t.done.complete(null);
+            }
+            batch.clear();
+            if(stop) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 写回一批页面：其中最大的 LSN 还没有落盘时先刷日志，再按页号排序，相邻的页用一次聚集写写回
+     * 同一页出现多次时只写最后一次的数据
+     */
+    private void writeBatch(List<WriteTask> batch) {
+        Map<Integer, WriteTask> latest = new HashMap<>();
+        long maxLsn = 0;
+        for(WriteTask t : batch) {
+            if(t.w == null) {
+                continue;
+            }
+            latest.put(t.pgno, t);
+            maxLsn = Math.max(maxLsn, t.w.lastLsn);
+        }
+        Logger lg = logger;
+        if(lg != null && maxLsn != 0 && lg.flushedLsn() <= maxLsn) {
+            lg.flush(maxLsn);
+        }
+        int[] pgnos = new int[latest.size()];
+        int n = 0;
+        for(int pgno : latest.keySet()) {
+            pgnos[n++] = pgno;
+        }
+        Arrays.sort(pgnos);
+        for(int i = 0; i < n; ) {
+            int j = i + 1;
+            while(j < n && pgnos[j] == pgnos[j - 1] + 1) {
+                j++;
+            }
+            ByteBuffer[] bufs = new ByteBuffer[j - i];
+            for(int k = i; k < j; k++) {
+                bufs[k - i] = ByteBuffer.wrap(latest.get(pgnos[k]).w.data);
+            }
+            write(pgnos[i], bufs);
+            i = j;
+        }
+        for(WriteTask t : batch) {
+            if(t.slot) {
+                writeSlots.release();
+            }
+        }
+    }
 
-        fileLock.lock();
+    private void write(int pgno, ByteBuffer[] bufs) {
+        write(pageOffset(pgno), bufs);
+    }
+
+    /**
+     * 从 offset 开始连续写入若干页，只在写线程中调用，只有写线程使用通道的位置
+     */
+    protected void write(long offset, ByteBuffer[] bufs) {
         try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
             fc.position(offset);
-            fc.write(buf);
+            while(bufs[bufs.length - 1].hasRemaining()) {
+                fc.write(bufs);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 把已写回的页面落盘，只在写线程中调用
+     */
+    protected void force() {
+        try {
             fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        truncate(pageOffset(maxPgno + 1));
+        pageNumbers.set(maxPgno);
+    }
+
+    protected void truncate(long size) {
         try {
             file.setLength(size);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
     public void close() {
         super.close();
+        WriteTask stop = new WriteTask(-1, null, false);
+        writeQueue.add(stop);
+        try {
+            stop.done.get();
+            writer.join();
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
         try {
             fc.close();
             file.close();
@@ -140,8 +440,46 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
-        return (long) (pgno - 1) * PAGE_SIZE;
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    long pageOffset(int pgno) {
+        return (long) (pgno - 1) * pageSize;
+    }
+
+    /**
+     * 已从页面拍下、等待写回的数据
+     */
+    private static class PendingWrite {
+        final byte[] data;
+        final long recLsn;
+        final long lastLsn;
+
+        PendingWrite(byte[] data, long recLsn, long lastLsn) {
+            this.data = data;
+            this.recLsn = recLsn;
+            this.lastLsn = lastLsn;
+        }
+    }
+
+    /**
+     * 写线程的任务，w 为 null 时是一个要求 force 的屏障，pgno 为负数时写线程随后退出
+     */
+    private static class WriteTask {
+        final int pgno;
+        final PendingWrite w;
+        /**
+         * 是否占用了 writeSlots 的名额
+         */
+        final boolean slot;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        WriteTask(int pgno, PendingWrite w, boolean slot) {
+            this.pgno = pgno;
+            this.w = w;
+            this.slot = slot;
+        }
     }
     
 }
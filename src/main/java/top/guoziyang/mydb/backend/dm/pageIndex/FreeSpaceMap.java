@@ -0,0 +1,164 @@
+package top.guoziyang.mydb.backend.dm.pageIndex;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
+
+/**
+ * 空闲空间映射（FSM），保存在单独的 .fsm 文件中
+ * 文件由 8KB 的 FSM 页组成，每个数据页占一个字节，记录其空闲空间除以 unit 的值，
+ * 第 k 个 FSM 页的第 i 个字节对应页号 k * PAGES_PER_FSM_PAGE + i。FSM 页的大小与数据页大小无关。
+ * FSM 只是提示，不写日志：在检查点和关闭时写回，崩溃恢复后整体重建。
+ * 非线程安全，由 PageIndex 加锁
+ */
+public class FreeSpaceMap {
+    public static final String FSM_SUFFIX = ".fsm";
+    /**
+     * 一个 FSM 页覆盖的数据页数
+     */
+    public static final int PAGES_PER_FSM_PAGE = 1 << 13;
+
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    private final boolean isNew;
+    /**
+     * 一个字节表示的空闲空间粒度，为数据页大小的 1/256，记录时向下取整，读出的是空闲空间的下界
+     */
+    private final int unit;
+    /**
+     * 已经读入的 FSM 页
+     */
+    private final Map<Integer, byte[]> pages = new HashMap<>();
+    private final Set<Integer> dirty = new HashSet<>();
+
+    FreeSpaceMap(RandomAccessFile file, FileChannel fc, boolean isNew, int pageSize) {
+        this.file = file;
+        this.fc = fc;
+        this.isNew = isNew;
+        this.unit = pageSize / 256;
+    }
+
+    /**
+     * 创建数据库时创建 FSM 文件，已存在的旧文件被清空
+     * @param path
+     * @param pageSize 数据页大小
+     * @return
+     */
+    public static FreeSpaceMap create(String path, int pageSize) {
+        File f = new File(path + FSM_SUFFIX);
+        return newFreeSpaceMap(f, true, pageSize);
+    }
+
+    /**
+     * 打开 FSM 文件，不存在时创建一个空的，此时 isNew 为 true，需要调用方重建
+     * @param path
+     * @param pageSize 数据页大小
+     * @return
+     */
+    public static FreeSpaceMap open(String path, int pageSize) {
+        File f = new File(path + FSM_SUFFIX);
+        return newFreeSpaceMap(f, !f.exists(), pageSize);
+    }
+
+    private static FreeSpaceMap newFreeSpaceMap(File f, boolean isNew, int pageSize) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(f, "rw");
+            if (isNew) {
+                raf.setLength(0);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        if (!f.canRead() || !f.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+        return new FreeSpaceMap(raf, raf.getChannel(), isNew, pageSize);
+    }
+
+    /**
+     * 文件是新创建的，其中没有任何页面的记录
+     */
+    public boolean isNew() {
+        return isNew;
+    }
+
+    /**
+     * 页面空闲空间的下界，没有记录时为 0
+     * @param pgno
+     * @return
+     */
+    public int get(int pgno) {
+        return (page(pgno / PAGES_PER_FSM_PAGE)[pgno % PAGES_PER_FSM_PAGE] & 0xff) * unit;
+    }
+
+    public void set(int pgno, int freeSpace) {
+        int fsmPgno = pgno / PAGES_PER_FSM_PAGE;
+        byte value = (byte) Math.min(255, freeSpace / unit);
+        byte[] page = page(fsmPgno);
+        if (page[pgno % PAGES_PER_FSM_PAGE] != value) {
+            page[pgno % PAGES_PER_FSM_PAGE] = value;
+            dirty.add(fsmPgno);
+        }
+    }
+
+    /**
+     * 写回修改过的 FSM 页
+     */
+    public void flush() {
+        if (dirty.isEmpty()) {
+            return;
+        }
+        try {
+            for (int fsmPgno : dirty) {
+                fc.write(ByteBuffer.wrap(pages.get(fsmPgno)), (long) fsmPgno * PAGES_PER_FSM_PAGE);
+            }
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        dirty.clear();
+    }
+
+    public void close() {
+        flush();
+        try {
+            fc.close();
+            file.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 按需读入 FSM 页，超出文件末尾的部分为 0
+     */
+    private byte[] page(int fsmPgno) {
+        byte[] page = pages.get(fsmPgno);
+        if (page != null) {
+            return page;
+        }
+        page = new byte[PAGES_PER_FSM_PAGE];
+        ByteBuffer buf = ByteBuffer.wrap(page);
+        long offset = (long) fsmPgno * PAGES_PER_FSM_PAGE;
+        try {
+            int n;
+            do {
+                n = fc.read(buf, offset + buf.position());
+            } while (n > 0 && buf.hasRemaining());
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        pages.put(fsmPgno, page);
+        return page;
+    }
+}
@@ -3,58 +3,193 @@ package top.guoziyang.mydb.backend.dm.pageIndex;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * 按空闲空间分区间索引页面，供插入时选择页面
+ * 带有 FreeSpaceMap 时，每次修改同时记入 FSM；打开数据库时不读取数据页，
+ * 只在当前索引中找不到合适的页面时才从 FSM 中按 FSM 页逐段载入
+ */
 public class PageIndex {
     // 将一页划成40个区间
     private static final int INTERVALS_NO = 40;
-    private static final int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;  // 每个区间的大小，默认0.2KB
 
+    private final int threshold;  // 每个区间的大小，8KB 的页为0.2KB
     private final Lock lock;
     private final List<PageInfo>[] lists;
+    /**
+     * 当前在索引中的页面，被 select 取走、正在插入的页面不在其中
+     */
+    private final Map<Integer, PageInfo> present;
+    /**
+     * 被 select 取走、还没有放回的页面
+     */
+    private final BitSet selected;
+    private final FreeSpaceMap fsm;
+    /**
+     * 还没有从 FSM 载入的页号范围 [lazyNext, lazyEnd]
+     */
+    private int lazyNext, lazyEnd;
 
-    @SuppressWarnings("unchecked")
     public PageIndex() {
+        this(null, PageCache.PAGE_SIZE);
+    }
+
+    @SuppressWarnings("unchecked")
+    public PageIndex(FreeSpaceMap fsm, int pageSize) {
+        threshold = pageSize / INTERVALS_NO;
         lock = new ReentrantLock();
         lists = new List[INTERVALS_NO + 1];
         for (int i = 0; i < INTERVALS_NO + 1; i++) {
             lists[i] = new ArrayList<>();
         }
+        present = new HashMap<>();
+        selected = new BitSet();
+        this.fsm = fsm;
+    }
+
+    /**
+     * 页号在 [2, lastPgno] 之间的页面按需从 FSM 载入
+     * @param lastPgno
+     */
+    public void loadLazily(int lastPgno) {
+        lock.lock();
+        try {
+            lazyNext = 2;
+            lazyEnd = lastPgno;
+        } finally {
+            lock.unlock();
+        }
     }
 
     public void add(int pgno, int freeSpace) {
         lock.lock();
         try {
-            int number = freeSpace / THRESHOLD;
-            lists[number].add(new PageInfo(pgno, freeSpace));
+            selected.clear(pgno);
+            put(pgno, freeSpace);
+            if (fsm != null) {
+                fsm.set(pgno, freeSpace);
+            }
         } finally {
             lock.unlock();
         }
     }
 
     /**
-     * 获取页面（算出区间号，直接取即可）
+     * 更新页面的空闲空间，用于 VACUUM 回收空间之后。
+     * 页面正被插入时不做处理，插入结束后会重新计算并放回
+     * @param pgno
+     * @param freeSpace
+     */
+    public void update(int pgno, int freeSpace) {
+        lock.lock();
+        try {
+            if (fsm != null) {
+                fsm.set(pgno, freeSpace);
+            }
+            PageInfo pi = present.get(pgno);
+            if (pi == null) {
+                // 还没有从 FSM 载入的页面，载入时会读到新的值
+                if (!selected.get(pgno) && (pgno < lazyNext || pgno > lazyEnd)) {
+                    put(pgno, freeSpace);
+                }
+                return;
+            }
+            if (pi.freeSpace == freeSpace) {
+                return;
+            }
+            lists[pi.freeSpace / threshold].remove(pi);
+            pi.freeSpace = freeSpace;
+            lists[freeSpace / threshold].add(pi);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取页面（算出区间号，直接取即可），找不到时从 FSM 载入下一段再找
      * @param spaceSize
      * @return  PageInfo，其中包含页号和空闲空间大小的信息
      */
     public PageInfo select(int spaceSize) {
         lock.lock();
         try {
-            int number = spaceSize / THRESHOLD;
-            if (number < INTERVALS_NO) number++;
-            while (number <= INTERVALS_NO) {
-                if (lists[number].isEmpty()) {
-                    number++;
-                    continue;
+            while (true) {
+                int number = spaceSize / threshold;
+                if (number < INTERVALS_NO) number++;
+                while (number <= INTERVALS_NO) {
+                    if (lists[number].isEmpty()) {
+                        number++;
+                        continue;
+                    }
+                    PageInfo pi = lists[number].remove(0);
+                    present.remove(pi.pgno, pi);
+                    selected.set(pi.pgno);
+                    return pi;
                 }
-                return lists[number].remove(0);
+                if (lazyNext > lazyEnd) {
+                    return null;
+                }
+                loadNext();
             }
-            return null;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 把 FSM 写回磁盘
+     */
+    public void flush() {
+        if (fsm == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            fsm.flush();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() {
+        if (fsm == null) {
+            return;
+        }
+        lock.lock();
+        try {
+            fsm.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 从 FSM 载入一个 FSM 页覆盖的页面，只放入有空闲空间的页
+     */
+    private void loadNext() {
+        int end = Math.min(lazyEnd, (lazyNext / FreeSpaceMap.PAGES_PER_FSM_PAGE + 1) * FreeSpaceMap.PAGES_PER_FSM_PAGE - 1);
+        for (int pgno = lazyNext; pgno <= end; pgno++) {
+            if (present.containsKey(pgno) || selected.get(pgno)) {
+                continue;
+            }
+            int freeSpace = fsm.get(pgno);
+            if (freeSpace > 0) {
+                put(pgno, freeSpace);
+            }
+        }
+        lazyNext = end + 1;
+    }
+
+    private void put(int pgno, int freeSpace) {
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        lists[freeSpace / threshold].add(pi);
+        present.put(pgno, pi);
+    }
+
 }
@@ -4,13 +4,10 @@ import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.im.Node.InsertAndSplitRes;
-import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
-import top.guoziyang.mydb.backend.im.Node.SearchNextRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -23,8 +20,12 @@ public class BPlusTree {
 
     // 存储根节点 UID 的 DataItem 对象
     DataItem bootDataItem;
-    // 用于同步访问根节点 UID 的锁
+    // 用于同步修改根节点 UID 的锁
     Lock bootLock = new ReentrantLock();
+    // 根节点 UID 的缓存，查找时直接读取，只在持有 bootLock 更新根节点时修改
+    volatile long rootUid;
+    // 由页大小决定的节点容量
+    int balance;
 
     /**
      * 创建一个新的 B+树实例
@@ -33,7 +34,7 @@ public class BPlusTree {
      */
     public static long create(DataManager dm) throws Exception {
         // 创建一个空的根节点
-        byte[] rawRoot = Node.newNilRootRaw();
+        byte[] rawRoot = Node.newNilRootRaw(Node.balanceFor(dm.getPageSize()));
         // 插入根节点并获取 UID
         long rootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rawRoot);
         // 插入 DataItem 来存储根节点的 UID
@@ -55,6 +56,10 @@ public class BPlusTree {
         tree.dm = dm;
         tree.bootDataItem = bootDataItem;
         tree.bootLock = new ReentrantLock();
+        // 获取存储根节点 UID 的 DataItem 数据并解析 UID
+        SubArray sa = bootDataItem.data();
+        tree.rootUid = Parser.parseLong(sa.raw, sa.start);
+        tree.balance = Node.balanceFor(dm.getPageSize());
         return tree;
     }
 
@@ -63,15 +68,7 @@ public class BPlusTree {
      * @return 根节点 UID
      */
     private long rootUid() {
-        bootLock.lock();
-        try {
-            // 获取存储根节点 UID 的 DataItem 数据
-            SubArray sa = bootDataItem.data();
-            // 解析 UID
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8));
-        } finally {
-            bootLock.unlock();
-        }
+        return rootUid;
     }
 
     /**
@@ -84,19 +81,27 @@ public class BPlusTree {
         bootLock.lock();
         try {
             // 创建新的根节点
-            byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
+            byte[] rootRaw = Node.newRootRaw(balance, left, right, rightKey);
             // 插入新的根节点
             long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
-            // 更新存储根节点 UID 的 DataItem
-            bootDataItem.before();
-            SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
-            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+            setRootUid(newRootUid);
         } finally {
             bootLock.unlock();
         }
     }
 
+    /**
+     * 更新存储根节点 UID 的 DataItem，调用时持有 bootLock
+     * @param newRootUid
+     */
+    private void setRootUid(long newRootUid) {
+        bootDataItem.before();
+        SubArray diRaw = bootDataItem.data();
+        System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
+        bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        rootUid = newRootUid;
+    }
+
     /**
      * 查找叶子节点
      * @param nodeUid 节点 UID
@@ -104,31 +109,28 @@ public class BPlusTree {
      * @return 叶子节点的 UID
      */
     private long searchLeaf(long nodeUid, long key) throws Exception {
-        Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
-
-        if (isLeaf) {
-            return nodeUid;
-        } else {
-            long next = searchNext(nodeUid, key);
-            return searchLeaf(next, key);
+        while (true) {
+            Node node = Node.loadNode(this, nodeUid);
+            if (node.isLeaf()) {
+                node.release();
+                return nodeUid;
+            }
+            nodeUid = searchNext(node, key);
         }
     }
 
     /**
-     * 查找下一个节点
-     * @param nodeUid 节点 UID
+     * 在已加载的内部节点中查找下一个节点，必要时向右移动到兄弟节点，并释放 node
+     * @param node 已加载的内部节点
      * @param key 寻找的键值
      * @return 下一个节点的 UID
      */
-    private long searchNext(long nodeUid, long key) throws Exception {
+    private long searchNext(Node node, long key) throws Exception {
         while (true) {
-            Node node = Node.loadNode(this, nodeUid);
-            SearchNextRes res = node.searchNext(key);
+            long res = node.searchNext(key);
             node.release();
-            if (res.uid != 0) return res.uid;
-            nodeUid = res.siblingUid;
+            if (res >= 0) return res;
+            node = Node.loadNode(this, ~res);
         }
     }
 
@@ -148,23 +150,27 @@ public class BPlusTree {
      * @return 包含 UID 的列表
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);
+        RangeCursor cursor = cursor(leftKey, rightKey);
         List<Long> uids = new ArrayList<>();
-        while (true) {
-            Node leaf = Node.loadNode(this, leafUid);
-            LeafSearchRangeRes res = leaf.leafSearchRange(leftKey, rightKey);
-            leaf.release();
-            uids.addAll(res.uids);
-            if (res.siblingUid == 0) {
-                break;
-            } else {
-                leafUid = res.siblingUid;
-            }
+        while (cursor.hasNext()) {
+            uids.add(cursor.next());
         }
         return uids;
     }
 
+    /**
+     * 打开键值范围 [leftKey, rightKey] 上的游标，按需逐个读取叶子节点
+     * @param leftKey 左侧键值
+     * @param rightKey 右侧键值
+     * @return 范围游标
+     */
+    public RangeCursor cursor(long leftKey, long rightKey) throws Exception {
+        // 内部节点按“第一个大于 key 的分隔键”下降，相同的 key 跨越叶子节点时会越过左边的叶子；
+        // 用 leftKey - 1 下降，从可能含有 leftKey 的最左叶子开始，游标再沿兄弟指针向右读取
+        long leafUid = searchLeaf(rootUid(), leftKey == Long.MIN_VALUE ? leftKey : leftKey - 1);
+        return new RangeCursor(this, leafUid, leftKey, rightKey);
+    }
+
     /**
      * 插入键值对
      * @param key 键值
@@ -187,14 +193,13 @@ public class BPlusTree {
      */
     private InsertRes insert(long nodeUid, long uid, long key) throws Exception {
         Node node = Node.loadNode(this, nodeUid);
-        boolean isLeaf = node.isLeaf();
-        node.release();
 
         InsertRes res = null;
-        if (isLeaf) {
+        if (node.isLeaf()) {
+            node.release();
             res = insertAndSplit(nodeUid, uid, key);
         } else {
-            long next = searchNext(nodeUid, key);
+            long next = searchNext(node, key);
             InsertRes ir = insert(next, uid, key);
             if (ir.newNode != 0) {
                 res = insertAndSplit(nodeUid, ir.newNode, ir.newKey);
@@ -228,6 +233,106 @@ public class BPlusTree {
         }
     }
 
+    /**
+     * 删除键值对
+     * 从可能含有 key 的最左叶子开始，沿兄弟指针向右查找
+     * @param key 键值
+     * @param uid UID
+     * @return 是否找到并删除
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        long leafUid = searchLeaf(rootUid(), key == Long.MIN_VALUE ? key : key - 1);
+        while (leafUid != 0) {
+            Node leaf = Node.loadNode(this, leafUid);
+            Node.RemoveRes res = leaf.leafRemove(key, uid);
+            leaf.release();
+            if (res.removed) {
+                return true;
+            }
+            leafUid = res.siblingUid;
+        }
+        return false;
+    }
+
+    /**
+     * 合并同一父节点下相邻的稀疏节点，自下而上逐层进行，最后在根节点只剩一个儿子时降低树高
+     * 调用方需要保证期间没有插入和删除；并发的查找不受影响：
+     * 被合并的右节点内容不变，从旧的父节点或兄弟指针到达它仍能读到正确的结果，
+     * 因此它占用的空间不回收
+     * @return 合并的次数
+     */
+    public int compact() throws Exception {
+        // 每一层最左侧的节点
+        List<Long> leftmost = new ArrayList<>();
+        long uid = rootUid();
+        while (true) {
+            leftmost.add(uid);
+            Node node = Node.loadNode(this, uid);
+            boolean leaf = node.isLeaf();
+            long first = leaf ? 0 : node.son(0);
+            node.release();
+            if (leaf) {
+                break;
+            }
+            uid = first;
+        }
+
+        int merged = 0;
+        for (int level = leftmost.size() - 2; level >= 0; level--) {
+            long parentUid = leftmost.get(level);
+            while (parentUid != 0) {
+                Node parent = Node.loadNode(this, parentUid);
+                try {
+                    merged += mergeSons(parent);
+                    parentUid = parent.sibling();
+                } finally {
+                    parent.release();
+                }
+            }
+        }
+
+        bootLock.lock();
+        try {
+            while (true) {
+                Node root = Node.loadNode(this, rootUid());
+                long only = !root.isLeaf() && root.noKeys() == 1 ? root.son(0) : 0;
+                root.release();
+                if (only == 0) {
+                    break;
+                }
+                setRootUid(only);
+            }
+        } finally {
+            bootLock.unlock();
+        }
+        return merged;
+    }
+
+    /**
+     * 依次尝试把父节点中相邻的两个儿子合并为一个
+     */
+    private int mergeSons(Node parent) throws Exception {
+        int merged = 0;
+        int kth = 0;
+        while (kth + 1 < parent.noKeys()) {
+            Node left = Node.loadNode(this, parent.son(kth));
+            Node right = Node.loadNode(this, parent.son(kth + 1));
+            try {
+                // 先让左节点接管右节点的内容，再从父节点去掉右节点
+                if (left.absorb(right)) {
+                    parent.dropSon(kth + 1);
+                    merged++;
+                } else {
+                    kth++;
+                }
+            } finally {
+                left.release();
+                right.release();
+            }
+        }
+        return merged;
+    }
+
     /**
      * 关闭 B+树实例
      */
@@ -0,0 +1,167 @@
+package top.guoziyang.mydb.backend.im;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+/**
+ * 自底向上批量构建 B+ 树
+ * 先收集全部 (key, uid) 对并排序，再从右向左按填充因子写满叶子节点，
+ * 然后逐层向上构建内部节点。每个节点只写一次 DM（一条插入日志），
+ * 不像逐条插入那样反复修改和分裂节点
+ */
+public class BulkLoader {
+    public static final int DEFAULT_FILL_FACTOR = 90;
+
+    // 插入排序的阈值
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private long[] keys = new long[64];
+    private long[] uids = new long[64];
+    private int size;
+
+    public void add(long key, long uid) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size << 1);
+            uids = Arrays.copyOf(uids, size << 1);
+        }
+        keys[size] = key;
+        uids[size] = uid;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 排序后构建 B+ 树
+     * @param dm
+     * @param fillFactor 节点填充百分比，1 到 100
+     * @return 新树的 bootUid
+     * @throws Exception
+     */
+    public long build(DataManager dm, int fillFactor) throws Exception {
+        if (size == 0) {
+            return BPlusTree.create(dm);
+        }
+        sort(0, size - 1);
+        int balance = Node.balanceFor(dm.getPageSize());
+        int perNode = perNode(balance, fillFactor);
+
+        // 叶子层
+        int count = (size + perNode - 1) / perNode;
+        long[] nodeUids = new long[count];
+        long[] lowKeys = new long[count];
+        long sibling = 0;
+        for (int c = count - 1; c >= 0; c--) {
+            int from = c * perNode;
+            int to = Math.min(size, from + perNode);
+            sibling = dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw(balance, true, keys, uids, from, to, sibling));
+            nodeUids[c] = sibling;
+            lowKeys[c] = keys[from];
+        }
+
+        // 内部节点层，第 i 个儿子的 key 是第 i+1 个儿子的最小 key，最右侧为 MAX_VALUE
+        while (count > 1) {
+            long[] sonKeys = new long[count];
+            for (int i = 0; i < count; i++) {
+                sonKeys[i] = i == count - 1 ? Long.MAX_VALUE : lowKeys[i + 1];
+            }
+            int upper = (count + perNode - 1) / perNode;
+            long[] upperUids = new long[upper];
+            long[] upperLowKeys = new long[upper];
+            sibling = 0;
+            for (int c = upper - 1; c >= 0; c--) {
+                int from = c * perNode;
+                int to = Math.min(count, from + perNode);
+                sibling = dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw(balance, false, sonKeys, nodeUids, from, to, sibling));
+                upperUids[c] = sibling;
+                upperLowKeys[c] = lowKeys[from];
+            }
+            nodeUids = upperUids;
+            lowKeys = upperLowKeys;
+            count = upper;
+        }
+        return dm.insert(TransactionManagerImpl.SUPER_XID, Parser.long2Byte(nodeUids[0]));
+    }
+
+    /**
+     * 每个节点放入的 key 数，节点达到 2*balance 个 key 时会分裂，因此最多放 2*balance-1 个
+     */
+    static int perNode(int balance, int fillFactor) {
+        if (fillFactor < 1 || fillFactor > 100) {
+            throw new IllegalArgumentException("fill factor: " + fillFactor);
+        }
+        int n = balance * 2 * fillFactor / 100;
+        return Math.max(2, Math.min(balance * 2 - 1, n));
+    }
+
+    private static byte[] nodeRaw(int balance, boolean isLeaf, long[] keys, long[] sons, int from, int to, long sibling) {
+        int nodeSize = Node.nodeSize(balance);
+        SubArray raw = new SubArray(new byte[nodeSize], 0, nodeSize);
+        Node.setRawIsLeaf(raw, isLeaf);
+        Node.setRawNoKeys(raw, to - from);
+        Node.setRawSibling(raw, sibling);
+        for (int i = from; i < to; i++) {
+            Node.setRawKthSon(raw, sons[i], i - from);
+            Node.setRawKthKey(raw, keys[i], i - from);
+        }
+        return raw.raw;
+    }
+
+    /**
+     * 按 (key, uid) 对两个数组一起做快速排序，不装箱
+     */
+    private void sort(int lo, int hi) {
+        while (hi - lo >= INSERTION_SORT_THRESHOLD) {
+            int mid = (lo + hi) >>> 1;
+            if (less(mid, lo)) swap(mid, lo);
+            if (less(hi, lo)) swap(hi, lo);
+            if (less(hi, mid)) swap(hi, mid);
+            long pk = keys[mid], pu = uids[mid];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (compare(keys[i], uids[i], pk, pu) < 0) i++;
+                while (compare(keys[j], uids[j], pk, pu) > 0) j--;
+                if (i <= j) {
+                    swap(i++, j--);
+                }
+            }
+            // 先递归较短的一侧，栈深度为 O(log n)
+            if (j - lo < hi - i) {
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            for (int j = i; j > lo && less(j, j - 1); j--) {
+                swap(j, j - 1);
+            }
+        }
+    }
+
+    private boolean less(int a, int b) {
+        return compare(keys[a], uids[a], keys[b], uids[b]) < 0;
+    }
+
+    private static int compare(long k1, long u1, long k2, long u2) {
+        int c = Long.compare(k1, k2);
+        return c != 0 ? c : Long.compare(u1, u2);
+    }
+
+    private void swap(int a, int b) {
+        long k = keys[a];
+        keys[a] = keys[b];
+        keys[b] = k;
+        long u = uids[a];
+        uids[a] = uids[b];
+        uids[b] = u;
+    }
+}
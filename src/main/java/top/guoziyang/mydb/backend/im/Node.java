@@ -3,11 +3,10 @@ package top.guoziyang.mydb.backend.im;
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
-import top.guoziyang.mydb.backend.utils.Parser;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 
 /**
  * Node结构如下：
@@ -17,6 +16,8 @@ import java.util.List;
  * KeyNumber 为该节点中 key 的个数；
  * SiblingUid 是其兄弟节点存储在 DM 中的 UID。
  * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE，以此方便查找。
+ * 各字段以大端序通过 VarHandle 直接在页面数组上读写，节点内的 key 有序，查找使用二分。
+ * 节点容量（BalanceNumber）由页大小决定，每个节点的容量可以从它的长度算出，不另外存储。
  */
 public class Node {
     // 叶子节点标识
@@ -31,17 +32,46 @@ public class Node {
     // 子节点和 key 的偏移量
     static final int NODE_HEADER_SIZE = SIBLING_OFFSET + 8;
 
-    // 子节点和 key 的个数
+    // 8KB 的页中子节点和 key 的个数
     static final int BALANCE_NUMBER = 32;
 
-    // 子节点和 key 的偏移量
-    static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
+    // 内部节点乐观读失败后重试的次数，超过后改用读锁
+    static final int OPTIMISTIC_RETRIES = 3;
+
+    // 8KB 的页中节点的大小
+    static final int NODE_SIZE = nodeSize(BALANCE_NUMBER);
+
+    // 以大端序把 byte[] 视作 short/long 数组读写，不需要复制
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
 
     BPlusTree tree;
     DataItem dataItem;
     SubArray raw;
     long uid;
 
+    /**
+     * 页大小对应的 BalanceNumber，节点约占一页的 1/8
+     * @param pageSize
+     * @return
+     */
+    static int balanceFor(int pageSize) {
+        return pageSize / 256;
+    }
+
+    static int nodeSize(int balance) {
+        return NODE_HEADER_SIZE + (2 * 8) * (balance * 2 + 2);
+    }
+
+    /**
+     * 从节点的长度算出它的 BalanceNumber
+     * @param raw
+     * @return
+     */
+    static int balanceOf(SubArray raw) {
+        return ((raw.end - raw.start - NODE_HEADER_SIZE) / (2 * 8) - 2) / 2;
+    }
+
     /**
      * 设置节点为叶子节点和非叶子节点
      * @param raw
@@ -65,39 +95,39 @@ public class Node {
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        SHORT.set(raw.raw, raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return (short) SHORT.get(raw.raw, raw.start + NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        LONG.set(raw.raw, raw.start + SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return (long) LONG.get(raw.raw, raw.start + SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        LONG.set(raw.raw, offset, uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return (long) LONG.get(raw.raw, offset);
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        LONG.set(raw.raw, offset, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
         int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return (long) LONG.get(raw.raw, offset);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -105,23 +135,85 @@ public class Node {
         System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
     }
 
+    /**
+     * 把第 kth 个及之后的 [Son][Key] 整体后移一格
+     */
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
+        int end = raw.end;
+        if (begin < end) {
+            System.arraycopy(raw.raw, begin - (8 * 2), raw.raw, begin, end - begin);
+        }
+    }
+
+    /**
+     * 把第 kth 个之后的 [Son][Key] 整体前移一格，覆盖第 kth 个
+     */
+    static void unshiftRawKth(SubArray raw, int kth) {
+        int begin = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
+        int end = raw.end;
+        System.arraycopy(raw.raw, begin + (8 * 2), raw.raw, begin, end - begin - (8 * 2));
+    }
+
+    /**
+     * 二分查找第一个不小于 key 的位置，不存在时返回 noKeys
+     */
+    static int lowerBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getRawKthKey(raw, mid) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * 二分查找第一个大于 key 的位置，不存在时返回 noKeys
+     */
+    static int upperBound(SubArray raw, int noKeys, long key) {
+        int lo = 0, hi = noKeys;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getRawKthKey(raw, mid) <= key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
         }
+        return lo;
+    }
+
+    /**
+     * 在内部节点中寻找 key 所在的子节点
+     * @param raw
+     * @param key
+     * @return 子节点的 UID；key 不在本节点范围内时返回兄弟节点 UID 按位取反的结果（负数）
+     */
+    static long searchNextRaw(SubArray raw, long key) {
+        // 乐观读可能读到修改了一半的 KeyNumber，限制在节点容量内，结果由版本号校验丢弃
+        int noKeys = Math.min(Math.max(getRawNoKeys(raw), 0), balanceOf(raw) * 2);
+        int kth = upperBound(raw, noKeys, key);
+        if (kth < noKeys) {
+            return getRawKthSon(raw, kth);
+        }
+        return ~getRawSibling(raw);
     }
 
     /**
      * 生成一个根节点的数据
+     * @param balance
      * @param left
      * @param right
      * @param key
      * @return
      */
-    static byte[] newRootRaw(long left, long right, long key) {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newRootRaw(int balance, long left, long right, long key) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
@@ -136,10 +228,12 @@ public class Node {
 
     /**
      * 生成一个空的根节点数据
+     * @param balance
      * @return
      */
-    static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+    static byte[] newNilRootRaw(int balance) {
+        int size = nodeSize(balance);
+        SubArray raw = new SubArray(new byte[size], 0, size);
 
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
@@ -163,66 +257,58 @@ public class Node {
         dataItem.release();
     }
 
+    /**
+     * 节点创建后叶子标记不再改变（根节点分裂时生成新的根），因此不需要加锁
+     * @return
+     */
     public boolean isLeaf() {
-        dataItem.rLock();
-        try {
-            return getRawIfLeaf(raw);
-        } finally {
-            dataItem.rUnLock();
-        }
+        return getRawIfLeaf(raw);
     }
 
     /**
-     * 寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点的 UID
+     * 寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点 UID 按位取反的结果
+     * 先不加锁乐观读取，读完后校验 DataItem 的版本号；期间被修改过则重试，多次失败后改用读锁
      * @param key
      * @return
      */
-    public SearchNextRes searchNext(long key) {
+    public long searchNext(long key) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; i++) {
+            long version = dataItem.tryOptimisticRead();
+            if (version < 0) {
+                Thread.onSpinWait();
+                continue;
+            }
+            long res = searchNextRaw(raw, key);
+            if (dataItem.validate(version)) {
+                return res;
+            }
+        }
         dataItem.rLock();
         try {
-            SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
-            for (int i = 0; i < noKeys; i++) {
-                long ik = getRawKthKey(raw, i);
-                if (key < ik) {
-                    res.uid = getRawKthSon(raw, i);
-                    res.siblingUid = 0;
-                    return res;
-                }
-            }
-            res.uid = 0;
-            res.siblingUid = getRawSibling(raw);
-            return res;
-
+            return searchNextRaw(raw, key);
         } finally {
             dataItem.rUnLock();
         }
     }
 
     /**
-     * 在当前节点进行范围查找，范围是 [leftKey, rightKey]
+     * 在当前节点进行范围查找，范围是 [leftKey, rightKey]，结果写入调用方复用的 res 中
      * 如果 rightKey 大于等于该节点的最大的 key, 则同时返回兄弟节点的 UID，方便继续搜索下一个节点
      * @param leftKey
      * @param rightKey
-     * @return
+     * @param res
      */
-    LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
+    void leafSearchRange(long leftKey, long rightKey, LeafSearchRangeRes res) {
         dataItem.rLock();
         try {
             int noKeys = getRawNoKeys(raw);
-            int kth = 0;
-            while (kth < noKeys) {
-                long ik = getRawKthKey(raw, kth);
-                if (ik >= leftKey) {
-                    break;
-                }
-                kth++;
-            }
-            List<Long> uids = new ArrayList<>();
+            int kth = lowerBound(raw, noKeys, leftKey);
+            int size = 0;
             while (kth < noKeys) {
                 long ik = getRawKthKey(raw, kth);
                 if (ik <= rightKey) {
-                    uids.add(getRawKthSon(raw, kth));
+                    res.keys[size] = ik;
+                    res.uids[size++] = getRawKthSon(raw, kth);
                     kth++;
                 } else {
                     break;
@@ -232,15 +318,119 @@ public class Node {
             if (kth == noKeys) {
                 siblingUid = getRawSibling(raw);
             }
-            LeafSearchRangeRes res = new LeafSearchRangeRes();
-            res.uids = uids;
+            res.size = size;
             res.siblingUid = siblingUid;
-            return res;
         } finally {
             dataItem.rUnLock();
         }
     }
 
+    int noKeys() {
+        dataItem.rLock();
+        try {
+            return getRawNoKeys(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    long son(int kth) {
+        dataItem.rLock();
+        try {
+            return getRawKthSon(raw, kth);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    long sibling() {
+        dataItem.rLock();
+        try {
+            return getRawSibling(raw);
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 从叶子节点中删除 (key, uid)
+     * @param key
+     * @param uid
+     * @return 本节点中所有 key 都不大于 key 且没有找到时，返回兄弟节点以便继续向右查找
+     */
+    RemoveRes leafRemove(long key, long uid) {
+        RemoveRes res = new RemoveRes();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            for (int kth = lowerBound(raw, noKeys, key); kth < noKeys; kth++) {
+                if (getRawKthKey(raw, kth) != key) {
+                    return res;
+                }
+                if (getRawKthSon(raw, kth) == uid) {
+                    unshiftRawKth(raw, kth);
+                    setRawNoKeys(raw, noKeys - 1);
+                    res.removed = true;
+                    return res;
+                }
+            }
+            res.siblingUid = getRawSibling(raw);
+            return res;
+        } finally {
+            if (res.removed) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 把右兄弟节点的全部 [Son][Key] 追加到本节点，并接上右兄弟的兄弟指针
+     * 内部节点最后一个 key 就是右兄弟第一个儿子的下界，直接拼接即可保持有序
+     * @param right
+     * 合并后的 key 数不超过 BalanceNumber，合并后的节点还留有一半空间
+     * @return 合并后 key 数过多或 right 不是本节点的右兄弟时返回 false
+     */
+    boolean absorb(Node right) {
+        boolean success = false;
+        dataItem.before();
+        right.dataItem.rLock();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int rightKeys = getRawNoKeys(right.raw);
+            if (getRawSibling(raw) != right.uid || noKeys + rightKeys > balanceOf(raw)) {
+                return false;
+            }
+            System.arraycopy(right.raw.raw, right.raw.start + NODE_HEADER_SIZE,
+                    raw.raw, raw.start + NODE_HEADER_SIZE + noKeys * (8 * 2), rightKeys * (8 * 2));
+            setRawNoKeys(raw, noKeys + rightKeys);
+            setRawSibling(raw, getRawSibling(right.raw));
+            success = true;
+            return true;
+        } finally {
+            right.dataItem.rUnLock();
+            if (success) {
+                dataItem.after(TransactionManagerImpl.SUPER_XID);
+            } else {
+                dataItem.unBefore();
+            }
+        }
+    }
+
+    /**
+     * 从内部节点中去掉第 kth 个儿子（kth > 0），它的范围并入前一个儿子
+     * @param kth
+     */
+    void dropSon(int kth) {
+        dataItem.before();
+        int noKeys = getRawNoKeys(raw);
+        setRawKthKey(raw, getRawKthKey(raw, kth), kth - 1);
+        unshiftRawKth(raw, kth);
+        setRawNoKeys(raw, noKeys - 1);
+        dataItem.after(TransactionManagerImpl.SUPER_XID);
+    }
+
     InsertAndSplitRes insertAndSplit(long uid, long key) throws Exception {
         boolean success = false;
         Exception err = null;
@@ -277,15 +467,7 @@ public class Node {
 
     private boolean insert(long uid, long key) {
         int noKeys = getRawNoKeys(raw);
-        int kth = 0;
-        while (kth < noKeys) {
-            long ik = getRawKthKey(raw, kth);
-            if (ik < key) {
-                kth++;
-            } else {
-                break;
-            }
-        }
+        int kth = lowerBound(raw, noKeys, key);
         if (kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if (getRawIfLeaf(raw)) {
@@ -305,17 +487,19 @@ public class Node {
     }
 
     private boolean needSplit() {
-        return BALANCE_NUMBER * 2 == getRawNoKeys(raw);
+        return balanceOf(raw) * 2 == getRawNoKeys(raw);
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        int balance = balanceOf(raw);
+        int size = nodeSize(balance);
+        SubArray nodeRaw = new SubArray(new byte[size], 0, size);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
-        setRawNoKeys(nodeRaw, BALANCE_NUMBER);
+        setRawNoKeys(nodeRaw, balance);
         setRawSibling(nodeRaw, getRawSibling(raw));
-        copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
+        copyRawFromKth(raw, nodeRaw, balance);
         long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
-        setRawNoKeys(raw, BALANCE_NUMBER);
+        setRawNoKeys(raw, balance);
         setRawSibling(raw, son);
 
         SplitRes res = new SplitRes();
@@ -337,13 +521,21 @@ public class Node {
         return sb.toString();
     }
 
-    static class SearchNextRes {
-        long uid;
+    static class LeafSearchRangeRes {
+        // 一个节点最多 BalanceNumber * 2 个 key
+        final long[] keys;
+        final long[] uids;
+        int size;
         long siblingUid;
+
+        LeafSearchRangeRes(int balance) {
+            keys = new long[balance * 2];
+            uids = new long[balance * 2];
+        }
     }
 
-    static class LeafSearchRangeRes {
-        List<Long> uids;
+    static class RemoveRes {
+        boolean removed;
         long siblingUid;
     }
 
@@ -0,0 +1,65 @@
+package top.guoziyang.mydb.backend.im;
+
+import top.guoziyang.mydb.backend.im.Node.LeafSearchRangeRes;
+
+import java.util.NoSuchElementException;
+
+/**
+ * B+ 树的范围游标，按 key 升序沿兄弟指针惰性地逐个读取叶子节点
+ * 每次只缓存一个叶子节点中的 UID，内存占用与范围大小无关，调用方可以随时停止读取
+ */
+public class RangeCursor {
+    private final BPlusTree tree;
+    private final long leftKey;
+    private final long rightKey;
+    private final LeafSearchRangeRes res;
+    // 下一个要读取的叶子节点，0 表示已经读完
+    private long nextLeaf;
+    private int pos;
+
+    RangeCursor(BPlusTree tree, long leafUid, long leftKey, long rightKey) {
+        this.tree = tree;
+        this.leftKey = leftKey;
+        this.rightKey = rightKey;
+        this.nextLeaf = leafUid;
+        this.res = new LeafSearchRangeRes(tree.balance);
+    }
+
+    /**
+     * 是否还有下一个 UID，当前叶子读完时才加载下一个叶子
+     * @return
+     * @throws Exception
+     */
+    public boolean hasNext() throws Exception {
+        while (pos == res.size) {
+            if (nextLeaf == 0) {
+                return false;
+            }
+            Node leaf = Node.loadNode(tree, nextLeaf);
+            leaf.leafSearchRange(leftKey, rightKey, res);
+            leaf.release();
+            nextLeaf = res.siblingUid;
+            pos = 0;
+        }
+        return true;
+    }
+
+    /**
+     * 返回下一个 UID，调用前需要先调用 hasNext
+     * @return
+     */
+    public long next() {
+        if (pos == res.size) {
+            throw new NoSuchElementException();
+        }
+        return res.uids[pos++];
+    }
+
+    /**
+     * 上一次 next 返回的 UID 对应的 key
+     * @return
+     */
+    public long key() {
+        return res.keys[pos - 1];
+    }
+}
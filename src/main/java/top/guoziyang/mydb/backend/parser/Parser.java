@@ -49,6 +49,12 @@ public class Parser {
                 case "help":
                     stat = parseHelp(tokenizer);
                     break;
+                case "load":
+                    stat = parseLoad(tokenizer);
+                    break;
+                case "vacuum":
+                    stat = parseVacuum(tokenizer);
+                    break;
                 default:
                     throw Error.InvalidCommandException;
             }
@@ -226,10 +232,37 @@ public class Parser {
             select.where = null;
             return select;
         }
-        select.where = parseWhere(tokenizer);
+        if (!"limit".equals(tmp)) {
+            select.where = parseWhere(tokenizer);
+        }
+        select.limit = parseLimit(tokenizer);
         return select;
     }
 
+    /**
+     * 解析可选的 limit 子句
+     * @param tokenizer
+     * @return 行数，没有 limit 子句时返回 0
+     * @throws Exception
+     */
+    private static int parseLimit(Tokenizer tokenizer) throws Exception {
+        if (!"limit".equals(tokenizer.peek())) {
+            return 0;
+        }
+        tokenizer.pop();
+        int limit;
+        try {
+            limit = Integer.parseInt(tokenizer.peek());
+        } catch (NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+        if (limit <= 0) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return limit;
+    }
+
     private static Where parseWhere(Tokenizer tokenizer) throws Exception {
         Where where = new Where();
 
@@ -243,8 +276,8 @@ public class Parser {
 
         // 逻辑运算符
         String logicOp = tokenizer.peek();
-        if ("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        if ("".equals(logicOp) || "limit".equals(logicOp)) {
+            where.logicOp = "";
             return where;
         }
         if (!isLogicOp(logicOp)) {
@@ -255,7 +288,7 @@ public class Parser {
         // 运算对象2
         tokenizer.pop();
         where.singleExp2 = parseSingleExp(tokenizer);
-        if (!"".equals(tokenizer.peek())) {
+        if (!"".equals(tokenizer.peek()) && !"limit".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
         return where;
@@ -313,7 +346,116 @@ public class Parser {
         return drop;
     }
 
-    private static Create parseCreate(Tokenizer tokenizer) throws Exception {
+    private static Vacuum parseVacuum(Tokenizer tokenizer) throws Exception {
+        if (!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return new Vacuum();
+    }
+
+    private static Load parseLoad(Tokenizer tokenizer) throws Exception {
+        Load load = new Load();
+
+        if (!"into".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        // 表名
+        tokenizer.pop();
+        String tableName = tokenizer.peek();
+        if (!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        load.tableName = tableName;
+
+        // 数据文件
+        tokenizer.pop();
+        if (!"from".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String path = tokenizer.peek();
+        if ("".equals(path)) {
+            throw Error.InvalidCommandException;
+        }
+        load.path = path;
+
+        tokenizer.pop();
+        load.fillFactor = parseFillFactor(tokenizer);
+        if (!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return load;
+    }
+
+    private static CreateIndex parseCreateIndex(Tokenizer tokenizer) throws Exception {
+        CreateIndex create = new CreateIndex();
+
+        if (!"on".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        // 表名
+        tokenizer.pop();
+        String tableName = tokenizer.peek();
+        if (!isName(tableName)) {
+            throw Error.InvalidCommandException;
+        }
+        create.tableName = tableName;
+
+        // 字段名
+        tokenizer.pop();
+        if (!"(".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        String field = tokenizer.peek();
+        if (!isName(field)) {
+            throw Error.InvalidCommandException;
+        }
+        create.fieldName = field;
+        tokenizer.pop();
+        if (!")".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+
+        tokenizer.pop();
+        create.fillFactor = parseFillFactor(tokenizer);
+        if (!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return create;
+    }
+
+    /**
+     * 解析可选的 fillfactor 子句
+     * @param tokenizer
+     * @return 填充百分比，没有 fillfactor 子句时返回 0
+     * @throws Exception
+     */
+    private static int parseFillFactor(Tokenizer tokenizer) throws Exception {
+        if (!"fillfactor".equals(tokenizer.peek())) {
+            return 0;
+        }
+        tokenizer.pop();
+        int fillFactor;
+        try {
+            fillFactor = Integer.parseInt(tokenizer.peek());
+        } catch (NumberFormatException e) {
+            throw Error.InvalidCommandException;
+        }
+        if (fillFactor < 1 || fillFactor > 100) {
+            throw Error.InvalidCommandException;
+        }
+        tokenizer.pop();
+        return fillFactor;
+    }
+
+    private static Object parseCreate(Tokenizer tokenizer) throws Exception {
+        if ("index".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            return parseCreateIndex(tokenizer);
+        }
         if (!"table".equals(tokenizer.peek())) {
             throw Error.InvalidCommandException;
         }
@@ -417,6 +559,9 @@ public class Parser {
         if ("".equals(isolation)) {
             return begin;
         }
+        if ("read".equals(isolation) || "lock".equals(isolation)) {
+            return parseBeginOptions(tokenizer, begin);
+        }
         if (!"isolation".equals(isolation)) {
             throw Error.InvalidCommandException;
         }
@@ -434,10 +579,7 @@ public class Parser {
             String tmp2 = tokenizer.peek();
             if ("committed".equals(tmp2)) {
                 tokenizer.pop();
-                if (!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseBeginOptions(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -447,10 +589,7 @@ public class Parser {
             if ("read".equals(tmp2)) {
                 begin.isRepeatableRead = true;
                 tokenizer.pop();
-                if (!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseBeginOptions(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -459,6 +598,46 @@ public class Parser {
         }
     }
 
+    /**
+     * 解析 begin 语句末尾可选的 read only 和 lock timeout N（毫秒）
+     * @param tokenizer
+     * @param begin
+     * @return
+     * @throws Exception
+     */
+    private static Begin parseBeginOptions(Tokenizer tokenizer, Begin begin) throws Exception {
+        if ("read".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if (!"only".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            begin.isReadOnly = true;
+        }
+        if ("lock".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            if (!"timeout".equals(tokenizer.peek())) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            long timeout;
+            try {
+                timeout = Long.parseLong(tokenizer.peek());
+            } catch (NumberFormatException e) {
+                throw Error.InvalidCommandException;
+            }
+            if (timeout < 0) {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+            begin.lockTimeoutMillis = timeout;
+        }
+        if (!"".equals(tokenizer.peek())) {
+            throw Error.InvalidCommandException;
+        }
+        return begin;
+    }
+
     private static boolean isName(String name) {
         return !(name.length() == 1 && !Tokenizer.isAlphaBeta(name.getBytes()[0]));
     }
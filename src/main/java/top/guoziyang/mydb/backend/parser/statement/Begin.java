@@ -2,4 +2,9 @@ package top.guoziyang.mydb.backend.parser.statement;
 
 public class Begin {
     public boolean isRepeatableRead;
+    public boolean isReadOnly;
+    /**
+     * 本事务中语句等待行锁的最长时间（毫秒），0 表示一直等待，-1 表示使用服务器的默认值
+     */
+    public long lockTimeoutMillis = -1;
 }
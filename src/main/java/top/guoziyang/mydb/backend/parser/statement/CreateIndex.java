@@ -0,0 +1,10 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class CreateIndex {
+    public String tableName;
+    public String fieldName;
+    /**
+     * 索引节点的填充百分比，0 表示使用默认值
+     */
+    public int fillFactor;
+}
@@ -0,0 +1,13 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Load {
+    public String tableName;
+    /**
+     * 数据文件路径，每行一条记录，字段之间以逗号分隔
+     */
+    public String path;
+    /**
+     * 索引节点的填充百分比，0 表示使用默认值
+     */
+    public int fillFactor;
+}
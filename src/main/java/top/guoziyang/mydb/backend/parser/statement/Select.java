@@ -4,4 +4,8 @@ public class Select {
     public String tableName;
     public String[] fields;
     public Where where;
+    /**
+     * 最多返回的行数，0 表示不限制
+     */
+    public int limit;
 }
@@ -0,0 +1,4 @@
+package top.guoziyang.mydb.backend.parser.statement;
+
+public class Vacuum {
+}
@@ -80,7 +80,12 @@ public class Executor {
         Exception e = null;
         if (xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            // 自动提交的只读语句使用只读事务，不分配 XID，也不写 XID 文件
+            Begin begin = new Begin();
+            // vacuum 只做物理清理，也不需要 XID
+            begin.isReadOnly = stat instanceof Select || stat instanceof Show || stat instanceof ShowTables || stat instanceof Help
+                    || stat instanceof Vacuum;
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
         }
         try {
@@ -100,17 +105,26 @@ public class Executor {
                 res = tbm.delete(xid, (Delete) stat);
             } else if (stat instanceof Update) {
                 res = tbm.update(xid, (Update) stat);
+            } else if (stat instanceof CreateIndex) {
+                res = tbm.createIndex(xid, (CreateIndex) stat);
+            } else if (stat instanceof Load) {
+                res = tbm.load(xid, (Load) stat);
+            } else if (stat instanceof Vacuum) {
+                res = tbm.vacuum();
             } else if (stat instanceof Help) {
                 res = ("*******************************************************************************************\n"
                         + "Here are some commands you can use:\n"
                         + "\n"
                         + "   CREATE TABLE <table_name> <column_name> <type>, ... (<index_name column_name>)\n"
+                        + "   CREATE INDEX ON <table_name> (<column_name>) [FILLFACTOR <percent>]\n"
                         + "   DROP TABLE <table_name>\n"
                         + "   SHOW TABLES\n"
                         + "   SELECT * FROM <table_name>\n"
                         + "   INSERT INTO <table_name> VALUES (<value>, ...)\n"
                         + "   DELETE FROM <table_name> WHERE <condition>\n"
                         + "   UPDATE <table_name> SET <column_name> = <value> WHERE <condition>\n"
+                        + "   LOAD INTO <table_name> FROM \"<file>\" [FILLFACTOR <percent>]\n"
+                        + "   VACUUM\n"
                         + "   HELP\n"
                         + "   EXIT\n"
                         + "\n"
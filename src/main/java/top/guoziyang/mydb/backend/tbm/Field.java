@@ -1,7 +1,11 @@
 package top.guoziyang.mydb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.RangeCursor;
 import top.guoziyang.mydb.backend.parser.statement.SingleExpression;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -15,19 +19,30 @@ import java.util.List;
 /**
  * 管理表和字段的结构数据，例如表名、表字段信息和字段索引等
  * 二进制格式为：
- * [FieldName][TypeName][IndexUid]
+ * [FieldName][TypeName][KeyFormat][IndexUid]
  * 如果field无索引，IndexUid为0
  * FieldName 为字段的名称，
  * TypeName 为字段的类型，限定为 int32、int64 和 string 类型。
+ * KeyFormat 为索引 key 的格式，占一个字节，旧版本写入的记录没有这一项。
  * 如果这个字段有索引，那个 IndexUID 指向了索引二叉树的根，否则该字段为 0。
  */
 public class Field {
+    /**
+     * 旧格式，string 字段的 key 是字符串的哈希
+     */
+    static final byte KEY_FORMAT_HASH = 0;
+    /**
+     * string 字段的 key 是保序的前缀，见 Parser.str2Key
+     */
+    static final byte KEY_FORMAT_PREFIX = 1;
+
     long uid;
     String fieldName;
     String fieldType;
     private final Table tb;
+    private byte keyFormat = KEY_FORMAT_PREFIX;
     private long index;
-    private BPlusTree bt;
+    private volatile BPlusTree bt;
 
     public Field(long uid, Table tb) {
         this.uid = uid;
@@ -99,6 +114,12 @@ public class Field {
         res = Parser.parseString(Arrays.copyOfRange(raw, position, raw.length));
         fieldType = res.str;
         position += res.next;
+        if (raw.length - position > 8) {
+            keyFormat = raw[position];
+            position++;
+        } else {
+            keyFormat = KEY_FORMAT_HASH;
+        }
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
         if (index != 0) {
             try {
@@ -119,13 +140,59 @@ public class Field {
         byte[] nameRaw = Parser.string2Byte(fieldName);
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
-        this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, new byte[]{keyFormat}, indexRaw));
+    }
+
+    /**
+     * 记录是否由旧版本写入，其中 string 索引的 key 与当前的 str2Key 不一致
+     * @return
+     */
+    boolean isLegacyKeyFormat() {
+        return keyFormat < KEY_FORMAT_PREFIX;
+    }
+
+    /**
+     * 以当前的 key 格式重新写一条字段记录，索引需要调用方事先重建
+     * 旧记录长度固定，无法原地加入 KeyFormat
+     * @return 新记录的 UID
+     * @throws Exception
+     */
+    long upgradeKeyFormat() throws Exception {
+        keyFormat = KEY_FORMAT_PREFIX;
+        persistSelf(TransactionManagerImpl.SUPER_XID);
+        return uid;
     }
 
     public boolean isIndexed() {
         return index != 0;
     }
 
+    /**
+     * 换用一棵新建好的索引树，直接修改字段记录末尾的 IndexUid
+     * 调用方需要持有表的索引写锁（打开表时单线程升级除外），保证期间没有其他线程向该字段的索引插入，也没有正在进行的 VACUUM 扫描
+     * @param index 新树的 bootUid
+     * @throws Exception
+     */
+    void resetIndex(long index) throws Exception {
+        DataManager dm = ((TableManagerImpl) tb.tbm).dm;
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(Parser.long2Byte(index), 0, sa.raw, sa.end - 8, 8);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+        BPlusTree old = bt;
+        bt = BPlusTree.load(index, dm);
+        this.index = index;
+        tb.indexVersion++;
+        if (old != null) {
+            old.close();
+        }
+    }
+
     public void insert(Object key, long uid) throws Exception {
         long uKey = value2Uid(key);
         bt.insert(uKey, uid);
@@ -135,6 +202,18 @@ public class Field {
         return bt.searchRange(left, right);
     }
 
+    public RangeCursor cursor(long left, long right) throws Exception {
+        return bt.cursor(left, right);
+    }
+
+    public boolean removeIndex(long key, long uid) throws Exception {
+        return bt.delete(key, uid);
+    }
+
+    public int compactIndex() throws Exception {
+        return bt.compact();
+    }
+
     public Object string2Value(String str) {
         switch (fieldType) {
             case "int32":
@@ -151,7 +230,7 @@ public class Field {
         long uid = 0;
         switch (fieldType) {
             case "string":
-                uid = Parser.str2Uid((String) key);
+                uid = Parser.str2Key((String) key);
                 break;
             case "int32":
                 int uint = (int) key;
@@ -225,15 +304,32 @@ public class Field {
                 ")";
     }
 
+    /**
+     * 索引 key 是否与值一一对应
+     * string 字段的 key 只保留了前 8 个字节，key 相同的记录需要再比较完整的值
+     * @return
+     */
+    public boolean isExactKey() {
+        return !"string".equals(fieldType);
+    }
+
+    /**
+     * 计算表达式对应的索引 key 范围
+     * 对于 string 字段，范围包含与边界值前缀相同的 key，结果要再用 matches 过滤
+     * @param exp
+     * @return
+     * @throws Exception
+     */
     public FieldCalRes calExp(SingleExpression exp) throws Exception {
         Object v = null;
         FieldCalRes res = new FieldCalRes();
+        boolean exact = isExactKey();
         switch (exp.compareOp) {
             case "<":
-                res.left = 0;
+                res.left = Long.MIN_VALUE;
                 v = string2Value(exp.value);
                 res.right = value2Uid(v);
-                if (res.right > 0) {
+                if (exact && res.right > Long.MIN_VALUE) {
                     res.right--;
                 }
                 break;
@@ -245,12 +341,46 @@ public class Field {
             case ">":
                 res.right = Long.MAX_VALUE;
                 v = string2Value(exp.value);
-                res.left = value2Uid(v) + 1;
+                res.left = value2Uid(v);
+                if (exact && res.left < Long.MAX_VALUE) {
+                    res.left++;
+                }
                 break;
         }
         return res;
     }
 
+    /**
+     * 判断字段值 v 是否满足表达式
+     * @param v
+     * @param exp
+     * @return
+     */
+    public boolean matches(Object v, SingleExpression exp) {
+        Object target = string2Value(exp.value);
+        int c;
+        switch (fieldType) {
+            case "int32":
+                c = Integer.compare((int) v, (int) target);
+                break;
+            case "int64":
+                c = Long.compare((long) v, (long) target);
+                break;
+            default:
+                c = Parser.compareStr((String) v, (String) target);
+                break;
+        }
+        switch (exp.compareOp) {
+            case "<":
+                return c < 0;
+            case "=":
+                return c == 0;
+            case ">":
+                return c > 0;
+        }
+        return false;
+    }
+
     static class ParseValueRes {
         Object v;
         int shift;
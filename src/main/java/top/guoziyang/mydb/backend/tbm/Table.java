@@ -1,15 +1,28 @@
 package top.guoziyang.mydb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import top.guoziyang.mydb.backend.common.LongHashMap;
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.im.BulkLoader;
+import top.guoziyang.mydb.backend.im.RangeCursor;
 import top.guoziyang.mydb.backend.parser.statement.*;
 import top.guoziyang.mydb.backend.tbm.Field.ParseValueRes;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.ParseStringRes;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.Entry;
+import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
 
+import java.io.BufferedReader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * 维护了表结构
@@ -23,6 +36,12 @@ public class Table {
     String name;
     long nextUid;
     List<Field> fields = new ArrayList<>();
+    // 插入索引时持有读锁，批量重建索引时持有写锁
+    private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+    /**
+     * 索引树被整棵替换的次数，持有写锁时修改
+     */
+    int indexVersion;
 
     public Table(TableManager tbm, long uid) {
         this.tbm = tbm;
@@ -76,9 +95,65 @@ public class Table {
             position += 8;
             fields.add(Field.loadField(this, uid));
         }
+        try {
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.get(i).isLegacyKeyFormat()) {
+                    upgradeKeyFormat(i);
+                }
+            }
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
         return this;
     }
 
+    /**
+     * 升级旧版本写入的字段记录
+     * 旧的 string 索引按哈希建 key，先按当前的 key 重建，再把表记录中的字段 UID 换成新记录
+     * 中途崩溃时表记录仍指向旧记录，下次打开会重新升级
+     * @param i
+     * @throws Exception
+     */
+    private void upgradeKeyFormat(int i) throws Exception {
+        Field field = fields.get(i);
+        if (field.isIndexed() && !field.isExactKey()) {
+            BulkLoader loader = new BulkLoader();
+            RangeCursor cursor = field.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+            while (cursor.hasNext()) {
+                long uid = cursor.next();
+                Entry e = Entry.loadEntry(((TableManagerImpl) tbm).vm, uid);
+                if (e == null) continue;
+                byte[] raw;
+                try {
+                    raw = e.data();
+                } finally {
+                    e.remove();
+                }
+                loader.add(field.value2Uid(parseEntry(raw).get(field.fieldName)), uid);
+            }
+            field.resetIndex(loader.build(((TableManagerImpl) tbm).dm, BulkLoader.DEFAULT_FILL_FACTOR));
+        }
+        replaceFieldUid(i, field.upgradeKeyFormat());
+    }
+
+    /**
+     * 直接修改表记录中第 i 个字段的 UID
+     * @param i
+     * @param fieldUid
+     * @throws Exception
+     */
+    void replaceFieldUid(int i, long fieldUid) throws Exception {
+        DataItem di = ((TableManagerImpl) tbm).dm.read(uid);
+        try {
+            di.before();
+            SubArray sa = di.data();
+            System.arraycopy(Parser.long2Byte(fieldUid), 0, sa.raw, sa.end - 8 * (fields.size() - i), 8);
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+    }
+
     private Table persistSelf(long xid) throws Exception {
         byte[] nameRaw = Parser.string2Byte(name);
         byte[] nextRaw = Parser.long2Byte(nextUid);
@@ -91,9 +166,14 @@ public class Table {
     }
 
     public int delete(long xid, Delete delete) throws Exception {
-        List<Long> uids = parseWhere(delete.where);
+        UidScan scan = parseWhere(delete.where);
         int count = 0;
-        for (Long uid : uids) {
+        while (scan.hasNext()) {
+            long uid = scan.next();
+            if (scan.filter != null) {
+                byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
+                if (raw == null || !matches(scan.filter, parseEntry(raw))) continue;
+            }
             if (((TableManagerImpl) tbm).vm.delete(xid, uid)) {
                 count++;
             }
@@ -102,26 +182,29 @@ public class Table {
     }
 
     public int update(long xid, Update update) throws Exception {
-        List<Long> uids = parseWhere(update.where);
-        Field fd = null;
-        for (Field f : fields) {
-            if (f.fieldName.equals(update.fieldName)) {
-                fd = f;
-                break;
-            }
-        }
-        if (fd == null) {
-            throw Error.FieldNotFoundException;
+        indexLock.readLock().lock();
+        try {
+            return doUpdate(xid, update);
+        } finally {
+            indexLock.readLock().unlock();
         }
+    }
+
+    private int doUpdate(long xid, Update update) throws Exception {
+        // 更新会向同一个索引插入新版本，先取出全部 UID，避免游标读到刚插入的版本
+        UidScan scan = parseWhere(update.where);
+        long[] uids = scan.toArray();
+        Field fd = getField(update.fieldName);
         Object value = fd.string2Value(update.value);
         int count = 0;
-        for (Long uid : uids) {
+        for (long uid : uids) {
             byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
             if (raw == null) continue;
+            Map<String, Object> entry = parseEntry(raw);
+            if (!matches(scan.filter, entry)) continue;
 
             ((TableManagerImpl) tbm).vm.delete(xid, uid);
 
-            Map<String, Object> entry = parseEntry(raw);
             entry.put(fd.fieldName, value);
             raw = entry2Raw(entry);
             long uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
@@ -138,13 +221,17 @@ public class Table {
     }
 
     public String read(long xid, Select read) throws Exception {
-        List<Long> uids = parseWhere(read.where);
+        UidScan scan = parseWhere(read.where);
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
+        int rows = 0;
+        // 边读索引边取记录，达到 limit 后不再读取后面的叶子节点
+        while ((read.limit == 0 || rows < read.limit) && scan.hasNext()) {
+            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, scan.next());
             if (raw == null) continue;
             Map<String, Object> entry = parseEntry(raw);
+            if (!matches(scan.filter, entry)) continue;
             sb.append(printEntry(entry)).append("\n");
+            rows++;
         }
         return sb.toString();
     }
@@ -152,12 +239,217 @@ public class Table {
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
         byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+        indexLock.readLock().lock();
+        try {
+            long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+            for (Field field : fields) {
+                if (field.isIndexed()) {
+                    field.insert(entry.get(field.fieldName), uid);
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 为已有数据的字段建立索引
+     * 沿已有索引读出全部记录版本（包括对当前事务不可见的版本，与普通插入时一致），
+     * 排序后自底向上批量构建，再把字段指向新树
+     * @param create
+     * @throws Exception
+     */
+    public void createIndex(CreateIndex create) throws Exception {
+        Field fd = getField(create.fieldName);
+        indexLock.writeLock().lock();
+        try {
+            if (fd.isIndexed()) {
+                throw Error.FieldAlreadyIndexedException;
+            }
+            Field base = null;
+            for (Field field : fields) {
+                if (field.isIndexed()) {
+                    base = field;
+                    break;
+                }
+            }
+            BulkLoader loader = new BulkLoader();
+            RangeCursor cursor = base.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+            while (cursor.hasNext()) {
+                long uid = cursor.next();
+                Entry e = Entry.loadEntry(((TableManagerImpl) tbm).vm, uid);
+                if (e == null) continue;
+                byte[] raw;
+                try {
+                    raw = e.data();
+                } finally {
+                    e.remove();
+                }
+                loader.add(fd.value2Uid(parseEntry(raw).get(fd.fieldName)), uid);
+            }
+            fd.resetIndex(loader.build(((TableManagerImpl) tbm).dm, fillFactor(create.fillFactor)));
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从文件批量导入记录
+     * 记录逐条写入 VM，索引项先收集起来，导入结束后与原有索引项合并，批量重建每个索引
+     * @param xid
+     * @param load
+     * @return 导入的记录数
+     * @throws Exception
+     */
+    public int load(long xid, Load load) throws Exception {
+        List<Field> indexed = new ArrayList<>();
+        List<BulkLoader> loaders = new ArrayList<>();
         for (Field field : fields) {
             if (field.isIndexed()) {
-                field.insert(entry.get(field.fieldName), uid);
+                indexed.add(field);
+                loaders.add(new BulkLoader());
+            }
+        }
+        int count = 0;
+        indexLock.writeLock().lock();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(load.path))) {
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().isEmpty()) continue;
+                    String[] values = line.split(",", -1);
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = values[i].trim();
+                    }
+                    Map<String, Object> entry = string2Entry(values);
+                    long uid = ((TableManagerImpl) tbm).vm.insert(xid, entry2Raw(entry));
+                    for (int i = 0; i < indexed.size(); i++) {
+                        Field field = indexed.get(i);
+                        loaders.get(i).add(field.value2Uid(entry.get(field.fieldName)), uid);
+                    }
+                    count++;
+                }
+            } finally {
+                // 中途出错时已经写入的记录也要进入索引
+                for (int i = 0; i < indexed.size(); i++) {
+                    rebuildIndex(indexed.get(i), loaders.get(i), load.fillFactor);
+                }
             }
+        } finally {
+            indexLock.writeLock().unlock();
         }
+        return count;
+    }
+
+    /**
+     * 把字段原有的索引项并入 loader，批量构建新树并替换
+     */
+    private void rebuildIndex(Field field, BulkLoader loader, int fillFactor) throws Exception {
+        if (loader.size() == 0) {
+            return;
+        }
+        RangeCursor cursor = field.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (cursor.hasNext()) {
+            long uid = cursor.next();
+            loader.add(cursor.key(), uid);
+        }
+        field.resetIndex(loader.build(((TableManagerImpl) tbm).dm, fillFactor(fillFactor)));
+    }
+
+    /**
+     * 清理对所有事务都不可见的记录版本
+     * 先在读锁下逐个扫描索引，收集指向失效版本的索引项，期间插入和更新照常进行：
+     * 界限以下的失效版本不会复活，新插入的版本也不会是失效的。
+     * 再在写锁下删除收集到的索引项，合并变得稀疏的索引节点，最后释放堆中的数据项
+     * 每个 UID 只判断一次，保证所有索引对同一个版本的判断一致
+     * @param horizon
+     * @return 清理的记录版本数
+     * @throws Exception
+     */
+    public int vacuum(long horizon) throws Exception {
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        LongHashMap<Boolean> decided = new LongHashMap<>();
+        long[] dead = new long[16];
+        int deadSize = 0;
+        List<Field> indexed = new ArrayList<>();
+        List<long[]> keyLists = new ArrayList<>();
+        List<long[]> uidLists = new ArrayList<>();
+        int version;
+        indexLock.readLock().lock();
+        try {
+            version = indexVersion;
+            for (Field field : fields) {
+                if (!field.isIndexed()) continue;
+                long[] keys = new long[16];
+                long[] uids = new long[16];
+                int size = 0;
+                RangeCursor cursor = field.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+                while (cursor.hasNext()) {
+                    long uid = cursor.next();
+                    Boolean d = decided.get(uid);
+                    if (d == null) {
+                        d = vm.isDead(uid, horizon);
+                        decided.put(uid, d);
+                        if (d) {
+                            if (deadSize == dead.length) {
+                                dead = Arrays.copyOf(dead, deadSize << 1);
+                            }
+                            dead[deadSize++] = uid;
+                        }
+                    }
+                    if (!d) continue;
+                    if (size == keys.length) {
+                        keys = Arrays.copyOf(keys, size << 1);
+                        uids = Arrays.copyOf(uids, size << 1);
+                    }
+                    keys[size] = cursor.key();
+                    uids[size++] = uid;
+                }
+                if (size > 0) {
+                    indexed.add(field);
+                    keyLists.add(Arrays.copyOf(keys, size));
+                    uidLists.add(Arrays.copyOf(uids, size));
+                }
+            }
+        } finally {
+            indexLock.readLock().unlock();
+        }
+        // 删除索引项和合并节点时不能有并发的插入
+        indexLock.writeLock().lock();
+        try {
+            if (version != indexVersion) {
+                // 扫描之后有索引被重建，新树中可能仍有指向这些版本的项，留到下一轮清理
+                return 0;
+            }
+            for (int i = 0; i < indexed.size(); i++) {
+                Field field = indexed.get(i);
+                long[] keys = keyLists.get(i);
+                long[] uids = uidLists.get(i);
+                for (int j = 0; j < keys.length; j++) {
+                    field.removeIndex(keys[j], uids[j]);
+                }
+                field.compactIndex();
+            }
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+        // 所有索引都不再指向这些版本之后才释放
+        DataManager dm = ((TableManagerImpl) tbm).dm;
+        dm.free(Arrays.copyOf(dead, deadSize));
+        return deadSize;
+    }
+
+    private static int fillFactor(int fillFactor) {
+        return fillFactor == 0 ? BulkLoader.DEFAULT_FILL_FACTOR : fillFactor;
+    }
+
+    private Field getField(String fieldName) throws Exception {
+        for (Field field : fields) {
+            if (field.fieldName.equals(fieldName)) {
+                return field;
+            }
+        }
+        throw Error.FieldNotFoundException;
     }
 
     private Map<String, Object> string2Entry(String[] values) throws Exception {
@@ -173,7 +465,7 @@ public class Table {
         return entry;
     }
 
-    private List<Long> parseWhere(Where where) throws Exception {
+    private UidScan parseWhere(Where where) throws Exception {
         long l0 = 0, r0 = 0, l1 = 0, r1 = 0;
         boolean single = false;
         Field fd = null;
@@ -184,7 +476,7 @@ public class Table {
                     break;
                 }
             }
-            l0 = 0;
+            l0 = Long.MIN_VALUE;
             r0 = Long.MAX_VALUE;
             single = true;
         } else {
@@ -207,12 +499,38 @@ public class Table {
             r1 = res.r1;
             single = res.single;
         }
-        List<Long> uids = fd.search(l0, r0);
-        if (!single) {
-            List<Long> tmp = fd.search(l1, r1);
-            uids.addAll(tmp);
+        UidScan scan = single ? new UidScan(fd.cursor(l0, r0)) : new UidScan(fd.cursor(l0, r0), fd.cursor(l1, r1));
+        if (where != null && !fd.isExactKey()) {
+            scan.filter = where;
         }
-        return uids;
+        return scan;
+    }
+
+    /**
+     * 用完整的字段值检查记录是否满足 where 条件
+     * @param where 为 null 时不检查
+     * @param entry
+     * @return
+     * @throws Exception
+     */
+    private boolean matches(Where where, Map<String, Object> entry) throws Exception {
+        if (where == null) {
+            return true;
+        }
+        boolean m = matches(where.singleExp1, entry);
+        switch (where.logicOp) {
+            case "and":
+                return m && matches(where.singleExp2, entry);
+            case "or":
+                return m || matches(where.singleExp2, entry);
+            default:
+                return m;
+        }
+    }
+
+    private boolean matches(SingleExpression exp, Map<String, Object> entry) throws Exception {
+        Field fd = getField(exp.field);
+        return fd.matches(entry.get(fd.fieldName), exp);
     }
 
     private CalWhereRes calWhere(Field fd, Where where) throws Exception {
@@ -298,6 +616,46 @@ public class Table {
         return sb.toString();
     }
 
+    /**
+     * 依次读取 where 条件对应的一个或两个索引范围
+     */
+    static class UidScan {
+        private final RangeCursor[] cursors;
+        private int i;
+        // 索引 key 不能精确表示值时，需要用完整的值再检查的条件
+        Where filter;
+
+        UidScan(RangeCursor... cursors) {
+            this.cursors = cursors;
+        }
+
+        boolean hasNext() throws Exception {
+            while (i < cursors.length) {
+                if (cursors[i].hasNext()) {
+                    return true;
+                }
+                i++;
+            }
+            return false;
+        }
+
+        long next() {
+            return cursors[i].next();
+        }
+
+        long[] toArray() throws Exception {
+            long[] uids = new long[16];
+            int size = 0;
+            while (hasNext()) {
+                if (size == uids.length) {
+                    uids = Arrays.copyOf(uids, size << 1);
+                }
+                uids[size++] = next();
+            }
+            return Arrays.copyOf(uids, size);
+        }
+    }
+
     class CalWhereRes {
         long l0, r0, l1, r1;
         boolean single;
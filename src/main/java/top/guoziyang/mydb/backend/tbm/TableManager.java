@@ -30,8 +30,22 @@ public interface TableManager {
      * @return
      */
     static TableManager open(String path, VersionManager vm, DataManager dm) {
+        return open(path, vm, dm, 0);
+    }
+
+    /**
+     * 打开一个现有的表管理器实例，并在后台定期清理失效的记录版本
+     * @param path
+     * @param vm
+     * @param dm
+     * @param vacuumIntervalMillis 清理间隔，0 表示不在后台清理
+     * @return
+     */
+    static TableManager open(String path, VersionManager vm, DataManager dm, long vacuumIntervalMillis) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tbm = new TableManagerImpl(vm, dm, booter);
+        tbm.startVacuum(vacuumIntervalMillis);
+        return tbm;
     }
 
     // 开始一个事务
@@ -63,4 +77,13 @@ public interface TableManager {
 
     // 删除记录
     byte[] delete(long xid, Delete delete) throws Exception;
+
+    // 为已有的表建立索引
+    byte[] createIndex(long xid, CreateIndex create) throws Exception;
+
+    // 从文件批量导入记录
+    byte[] load(long xid, Load load) throws Exception;
+
+    // 清理所有表中对任何事务都不可见的记录版本和索引项
+    byte[] vacuum() throws Exception;
 }
@@ -2,6 +2,7 @@ package top.guoziyang.mydb.backend.tbm;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.parser.statement.*;
+import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.backend.vm.VersionManager;
 import top.guoziyang.mydb.common.Error;
@@ -20,7 +21,7 @@ public class TableManagerImpl implements TableManager {
     VersionManager vm;
     DataManager dm;
     private final Booter booter;
-    private final Map<String, Table> tableCache;
+    final Map<String, Table> tableCache;
     private final Map<Long, List<Table>> xidTableCache;
     private final Lock lock;
 
@@ -60,7 +61,7 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead ? 1 : 0;
-        res.xid = vm.begin(level);
+        res.xid = begin.isReadOnly ? vm.beginReadOnly(level) : vm.begin(level, begin.lockTimeoutMillis);
         res.result = "begin".getBytes();
         return res;
     }
@@ -163,6 +164,63 @@ public class TableManagerImpl implements TableManager {
         return ("delete " + count).getBytes();
     }
 
+    @Override
+    public byte[] createIndex(long xid, CreateIndex create) throws Exception {
+        Table table = getTable(create.tableName);
+        table.createIndex(create);
+        return ("create index on " + create.tableName + "(" + create.fieldName + ")").getBytes();
+    }
+
+    @Override
+    public byte[] load(long xid, Load load) throws Exception {
+        Table table = getTable(load.tableName);
+        int count = table.load(xid, load);
+        return ("load " + count).getBytes();
+    }
+
+    @Override
+    public byte[] vacuum() throws Exception {
+        long horizon = vm.vacuumHorizon();
+        List<Table> tables;
+        lock.lock();
+        try {
+            tables = new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+        int count = 0;
+        for (Table table : tables) {
+            count += table.vacuum(horizon);
+        }
+        return ("vacuum " + count).getBytes();
+    }
+
+    /**
+     * 启动后台清理线程，清理出错说明数据或索引已经不一致，直接 panic
+     * @param intervalMillis 清理间隔，不大于 0 时不启动
+     */
+    void startVacuum(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            return;
+        }
+        Thread vacuumer = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    vacuum();
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+            }
+        }, "vacuumer");
+        vacuumer.setDaemon(true);
+        vacuumer.start();
+    }
+
     // 获取表名
     private Table getTable(String tableName) throws Exception {
         lock.lock();
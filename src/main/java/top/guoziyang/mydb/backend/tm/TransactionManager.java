@@ -19,6 +19,18 @@ public interface TransactionManager {
     boolean isAborted(long xid);
     void close();
 
+    /**
+     * 故障恢复之后，把所有仍处于 active 状态的事务标记为 aborted
+     */
+    void abortActive();
+
+    /**
+     * 下一个将被分配的 XID，不分配 XID，也不做任何 I/O
+     * 只读事务以它作为快照的上界
+     * @return
+     */
+    long nextXid();
+
     /**
      * 数据库初始化，创建空的事务管理文件
      * @param path
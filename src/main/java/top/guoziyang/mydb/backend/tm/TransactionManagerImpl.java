@@ -4,6 +4,11 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -13,6 +18,12 @@ import top.guoziyang.mydb.common.Error;
 
 /**
  * 事务管理器，负责管理数据库中所有的事务
+ * 打开时把 XID 文件的状态全部读入内存（每个 XID 2 位），查询状态不再读文件；
+ * 状态变化先写入文件并落盘，再更新内存，文件格式保持不变
+ * <p/>
+ * 开始事务只是内存操作：XID 文件按批预留状态位置，文件头记录的是预留的高水位，
+ * 只有高水位推进时才需要落盘；重启后高水位以内仍为 active 的 XID 在恢复完成后被标记为 aborted。
+ * 提交和回滚写入状态后合并落盘，同时到达的多个提交只调用一次 force
  */
 public class TransactionManagerImpl implements TransactionManager {
 
@@ -36,22 +47,36 @@ public class TransactionManagerImpl implements TransactionManager {
     private static final byte FIELD_TRAN_COMMITTED = 1;
     // 2，aborted，已撤销（回滚）
     private static final byte FIELD_TRAN_ABORTED = 2;
-    // xid的计数
-    private long xidCounter;
+    // 每次推进高水位时预留的 XID 个数
+    static final int XID_PREALLOC = 1024;
+    // 已经分配出去的最大 XID
+    private final AtomicLong xidCounter = new AtomicLong();
+    // XID 文件头记录的高水位，文件中已经为这之前的 XID 预留了状态位置
+    private volatile long highWater;
     private RandomAccessFile file;
     private FileChannel fc;
     private Lock counterLock;
+    // 合并落盘：writeSeq 为已写入的状态变化个数，syncedSeq 为已经落盘的个数
+    private final AtomicLong writeSeq = new AtomicLong();
+    private final Lock syncLock = new ReentrantLock();
+    private final Condition synced = syncLock.newCondition();
+    private long syncedSeq;
+    private boolean syncing;
+    // XID 状态的内存副本
+    private final XidStatusTable statusTable = new XidStatusTable();
 
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
         checkXIDCounter();
+        loadStatus();
     }
 
     /**
      * 检查XID文件是否合法
-     * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度；
+     * 推进高水位时先扩展文件再写文件头，文件比文件头记录的长说明推进到一半时崩溃，截掉多余部分即可
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -71,11 +96,49 @@ public class TransactionManagerImpl implements TransactionManager {
         } catch (IOException e) {
             Panic.panic(e);
         }
-        this.xidCounter = Parser.parseLong(buf.array());
-        long end = getXidPosition(this.xidCounter + 1);
-        if(end != fileLen) {
+        this.highWater = Parser.parseLong(buf.array());
+        this.xidCounter.set(highWater);
+        long end = getXidPosition(this.highWater + 1);
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen) {
+            try {
+                fc.truncate(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 把 XID 文件中所有事务的状态读入内存
+     */
+    private void loadStatus() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = 1;
+        long offset = getXidPosition(xid);
+        long end = getXidPosition(highWater + 1);
+        try {
+            while (offset < end) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), end - offset));
+                int n = fc.read(buf, offset);
+                if (n <= 0) {
+                    Panic.panic(Error.BadXIDFileException);
+                }
+                for (int i = 0; i < n; i++) {
+                    byte status = buf.get(i);
+                    if (status != FIELD_TRAN_ACTIVE) {
+                        statusTable.set(xid, status);
+                    }
+                    xid++;
+                }
+                offset += n;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
     }
 
     /**
@@ -93,55 +156,130 @@ public class TransactionManagerImpl implements TransactionManager {
      * @param status
      */
     private void updateXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        tmp[0] = status;
+        writeStatus(xid, 1, status);
+        groupForce(writeSeq.incrementAndGet());
+        // 落盘之后才对其他线程可见
+        statusTable.set(xid, status);
+    }
+
+    /**
+     * 把从 xid 开始的 count 个事务的状态写入文件，不落盘
+     */
+    private void writeStatus(long xid, int count, byte status) {
+        byte[] tmp = new byte[count * XID_FIELD_SIZE];
+        Arrays.fill(tmp, status);
         ByteBuffer buf = ByteBuffer.wrap(tmp);
+        long offset = getXidPosition(xid);
         try {
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        try {
-            fc.force(false);
+            while (buf.hasRemaining()) {
+                offset += fc.write(buf, offset);
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
     /**
-     * 将XID加一，并更新XID Header
+     * 等待第 seq 次状态变化落盘
+     * 没有线程在落盘时由当前线程执行 force，覆盖到此刻为止的所有写入；否则等待正在进行的 force
+     * @param seq
      */
-    private void incrXIDCounter() {
-        xidCounter ++;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    private void groupForce(long seq) {
+        syncLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while (syncedSeq < seq) {
+                if (syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = writeSeq.get();
+                syncLock.unlock();
+                try {
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    syncLock.lock();
+                }
+                syncing = false;
+                syncedSeq = target;
+                synced.signalAll();
+            }
+        } finally {
+            syncLock.unlock();
         }
+    }
+
+    /**
+     * 推进高水位：先扩展文件（新增位置为 0，即 active）并落盘，再更新文件头
+     * @param newHighWater
+     */
+    private void preallocate(long newHighWater) {
         try {
+            file.setLength(getXidPosition(newHighWater + 1));
+            fc.force(true);
+            fc.write(ByteBuffer.wrap(Parser.long2Byte(newHighWater)), 0);
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        highWater = newHighWater;
     }
 
     /**
      * 开始一个事务，并返回XID
+     * XID 在预留的范围内时不需要任何 I/O
      * @return
      */
     public long begin() {
-        counterLock.lock();
-        try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXIDCounter();
-            return xid;
-        } finally {
-            counterLock.unlock();
+        long xid = xidCounter.incrementAndGet();
+        if (xid > highWater) {
+            counterLock.lock();
+            try {
+                while (xid > highWater) {
+                    preallocate(highWater + XID_PREALLOC);
+                }
+            } finally {
+                counterLock.unlock();
+            }
+        }
+        return xid;
+    }
+
+    public long nextXid() {
+        return xidCounter.get() + 1;
+    }
+
+    /**
+     * 把所有仍处于 active 状态的事务标记为 aborted
+     * 重启后没有事务能够继续执行，在故障恢复之后、开始新事务之前调用，
+     * 覆盖崩溃时未结束的事务以及预留了但从未使用的 XID
+     */
+    public void abortActive() {
+        long max = xidCounter.get();
+        List<long[]> runs = new ArrayList<>();
+        long xid = 1;
+        while (xid <= max) {
+            if (statusTable.get(xid) != FIELD_TRAN_ACTIVE) {
+                xid++;
+                continue;
+            }
+            long start = xid;
+            while (xid <= max && statusTable.get(xid) == FIELD_TRAN_ACTIVE) {
+                xid++;
+            }
+            writeStatus(start, (int) (xid - start), FIELD_TRAN_ABORTED);
+            runs.add(new long[]{start, xid});
+        }
+        if (runs.isEmpty()) {
+            return;
+        }
+        groupForce(writeSeq.incrementAndGet());
+        for (long[] run : runs) {
+            for (long x = run[0]; x < run[1]; x++) {
+                statusTable.set(x, FIELD_TRAN_ABORTED);
+            }
         }
     }
 
@@ -168,15 +306,7 @@ public class TransactionManagerImpl implements TransactionManager {
      * @return
      */
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return statusTable.get(xid) == status;
     }
 
     public boolean isActive(long xid) {
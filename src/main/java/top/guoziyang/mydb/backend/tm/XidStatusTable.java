@@ -0,0 +1,78 @@
+package top.guoziyang.mydb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * XID 状态在内存中的副本，每个 XID 占 2 位，取值与 XID 文件中的状态字节相同
+ * 按块分配，读取不加锁；只有扩容时才加锁并替换块目录
+ */
+class XidStatusTable {
+    private static final int BITS_PER_XID = 2;
+    private static final int XIDS_PER_WORD = Long.SIZE / BITS_PER_XID;
+    private static final long STATUS_MASK = (1L << BITS_PER_XID) - 1;
+    /**
+     * 每块 2^14 个 long，可容纳 52 万个 XID
+     */
+    private static final int CHUNK_SHIFT = 14;
+    private static final int CHUNK_WORDS = 1 << CHUNK_SHIFT;
+
+    private volatile AtomicLongArray[] chunks = new AtomicLongArray[0];
+
+    /**
+     * 读取 xid 的状态，从未设置过的 XID 返回 0（active）
+     * @param xid
+     * @return
+     */
+    byte get(long xid) {
+        long word = xid / XIDS_PER_WORD;
+        AtomicLongArray[] cs = chunks;
+        int chunk = (int) (word >>> CHUNK_SHIFT);
+        if (chunk >= cs.length) {
+            return 0;
+        }
+        long w = cs[chunk].get((int) (word & (CHUNK_WORDS - 1)));
+        return (byte) ((w >>> shiftOf(xid)) & STATUS_MASK);
+    }
+
+    /**
+     * 设置 xid 的状态
+     * @param xid
+     * @param status
+     */
+    void set(long xid, byte status) {
+        long word = xid / XIDS_PER_WORD;
+        int chunk = (int) (word >>> CHUNK_SHIFT);
+        AtomicLongArray[] cs = chunks;
+        if (chunk >= cs.length) {
+            cs = grow(chunk);
+        }
+        AtomicLongArray arr = cs[chunk];
+        int idx = (int) (word & (CHUNK_WORDS - 1));
+        int shift = shiftOf(xid);
+        while (true) {
+            long old = arr.get(idx);
+            long w = (old & ~(STATUS_MASK << shift)) | ((long) status << shift);
+            if (arr.compareAndSet(idx, old, w)) {
+                return;
+            }
+        }
+    }
+
+    private synchronized AtomicLongArray[] grow(int chunk) {
+        AtomicLongArray[] cs = chunks;
+        if (chunk < cs.length) {
+            return cs;
+        }
+        AtomicLongArray[] grown = Arrays.copyOf(cs, chunk + 1);
+        for (int i = cs.length; i < grown.length; i++) {
+            grown[i] = new AtomicLongArray(CHUNK_WORDS);
+        }
+        chunks = grown;
+        return grown;
+    }
+
+    private static int shiftOf(long xid) {
+        return (int) (xid % XIDS_PER_WORD) * BITS_PER_XID;
+    }
+}
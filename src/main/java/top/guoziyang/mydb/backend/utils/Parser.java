@@ -2,7 +2,11 @@ package top.guoziyang.mydb.backend.utils;
 
 import com.google.common.primitives.Bytes;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
@@ -10,6 +14,10 @@ import java.util.Arrays;
  */
 public class Parser {
 
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
     public static byte[] short2Byte(short value) {
         return ByteBuffer.allocate(Short.SIZE / Byte.SIZE).putShort(value).array();
     }
@@ -19,6 +27,13 @@ public class Parser {
         return buffer.getShort();
     }
 
+    /**
+     * 直接从 buf 的 offset 处读取，不复制
+     */
+    public static short parseShort(byte[] buf, int offset) {
+        return (short) SHORT.get(buf, offset);
+    }
+
     public static byte[] int2Byte(int value) {
         return ByteBuffer.allocate(Integer.SIZE / Byte.SIZE).putInt(value).array();
     }
@@ -28,11 +43,25 @@ public class Parser {
         return buffer.getInt();
     }
 
+    /**
+     * 直接从 buf 的 offset 处读取，不复制
+     */
+    public static int parseInt(byte[] buf, int offset) {
+        return (int) INT.get(buf, offset);
+    }
+
     public static long parseLong(byte[] buf) {
         ByteBuffer buffer = ByteBuffer.wrap(buf, 0, 8);
         return buffer.getLong();
     }
 
+    /**
+     * 直接从 buf 的 offset 处读取，不复制
+     */
+    public static long parseLong(byte[] buf, int offset) {
+        return (long) LONG.get(buf, offset);
+    }
+
     public static byte[] long2Byte(long value) {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
@@ -48,13 +77,40 @@ public class Parser {
         return Bytes.concat(l, str.getBytes());
     }
 
-    public static long str2Uid(String key) {
-        long seed = 13331;
-        long res = 0;
-        for (byte b : key.getBytes()) {
-            res = res * seed + (long) b;
+    /**
+     * 把字符串转换为保序的索引 key
+     * 取 UTF-8 编码的前 8 个字节（不足补 0）按大端序拼成 long，再翻转符号位，
+     * 使 long 的有符号比较与字节串的无符号字典序一致。
+     * 前 8 个字节相同的字符串得到相同的 key，需要再比较完整的值
+     * @param str
+     * @return
+     */
+    public static long str2Key(String str) {
+        byte[] raw = str.getBytes(StandardCharsets.UTF_8);
+        long key = 0;
+        for (int i = 0; i < 8; i++) {
+            key = (key << 8) | (i < raw.length ? raw[i] & 0xFF : 0);
+        }
+        return key ^ Long.MIN_VALUE;
+    }
+
+    /**
+     * 按 UTF-8 编码的无符号字典序比较两个字符串，与 str2Key 的顺序一致
+     * @param a
+     * @param b
+     * @return
+     */
+    public static int compareStr(String a, String b) {
+        byte[] ra = a.getBytes(StandardCharsets.UTF_8);
+        byte[] rb = b.getBytes(StandardCharsets.UTF_8);
+        int n = Math.min(ra.length, rb.length);
+        for (int i = 0; i < n; i++) {
+            int c = (ra[i] & 0xFF) - (rb[i] & 0xFF);
+            if (c != 0) {
+                return c;
+            }
         }
-        return res;
+        return ra.length - rb.length;
     }
 
 }
@@ -1,7 +1,7 @@
 package top.guoziyang.mydb.backend.utils;
 
 public class Types {
-    public static long addressToUid(int pgno, short offset) {
+    public static long addressToUid(int pgno, int offset) {
         return (long) pgno << 32 | (long) offset;
     }
 }
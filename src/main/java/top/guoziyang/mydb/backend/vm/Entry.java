@@ -5,8 +5,6 @@ import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.utils.Parser;
 
-import java.util.Arrays;
-
 /**
  * VM向上层抽象出entry
  * entry结构：
@@ -94,7 +92,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX));
+            return Parser.parseLong(sa.raw, sa.start + OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -108,7 +106,7 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_DATA));
+            return Parser.parseLong(sa.raw, sa.start + OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
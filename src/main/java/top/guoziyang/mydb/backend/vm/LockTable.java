@@ -1,67 +1,179 @@
 package top.guoziyang.mydb.backend.vm;
 
+import top.guoziyang.mydb.backend.common.LongHashMap;
 import top.guoziyang.mydb.common.Error;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * 维护了一个依赖等待图，以进行死锁检测
+ * UID 和 XID 按哈希分到若干条带上，每个条带一把锁，互不干扰；
+ * 等待图的边（XID 等待的行锁、行锁的持有者）保存在 volatile 字段中，
+ * 死锁检测只从新加入的边出发沿等待链行走，不需要持有任何条带锁。
+ * 每个行锁上的等待者按 FIFO 排队，释放时由释放者授予队首并 unpark 它
  */
 public class LockTable {
-    private final Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private final Map<Long, Long> u2x;        // UID被某个XID持有
-    private final Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private final Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private final Map<Long, Long> waitU;      // XID正在等待的UID
-    private final Lock lock;
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    private static final int STRIPES = 64;
+    /**
+     * 沿等待链最多行走的步数，超过时说明前方的环与当前事务无关，交给环上的事务处理
+     */
+    private static final int MAX_WAIT_CHAIN = 1 << 16;
+
+    /**
+     * 一个 UID 上的行锁
+     */
+    static class RowLock {
+        final long uid;
+        volatile XidLocks owner;
+        final ArrayDeque<XidLocks> waiters = new ArrayDeque<>();
+
+        RowLock(long uid) {
+            this.uid = uid;
+        }
+    }
+
+    /**
+     * 一个 XID 的加锁状态
+     */
+    static class XidLocks {
+        final long xid;
+        long[] held = new long[4];  // 已经获得的资源的UID列表
+        int heldSize;
+        volatile RowLock waitingFor; // XID正在等待的行锁
+        Waiter waiter;               // 正在等待资源时的等待者
+
+        XidLocks(long xid) {
+            this.xid = xid;
+        }
+
+        synchronized void hold(long uid) {
+            if (heldSize == held.length) {
+                held = Arrays.copyOf(held, heldSize << 1);
+            }
+            held[heldSize++] = uid;
+        }
+
+        synchronized long[] heldUids() {
+            return Arrays.copyOf(held, heldSize);
+        }
+    }
+
+    static class Stripe {
+        final Lock lock = new ReentrantLock();
+        final LongHashMap<RowLock> rows = new LongHashMap<>();
+        final LongHashMap<XidLocks> xids = new LongHashMap<>();
+    }
+
+    /**
+     * 一次等待，由等待的线程 park，授予行锁的线程负责唤醒
+     */
+    public class Waiter {
+        final XidLocks x;
+        final RowLock row;
+        final long start;
+        volatile Thread thread;
+        volatile boolean granted;
+
+        Waiter(XidLocks x, RowLock row) {
+            this.x = x;
+            this.row = row;
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * 等待行锁被授予，超时则退出等待队列并抛出异常
+         * @param timeoutMillis 最长等待时间，0 表示一直等待
+         * @throws Exception
+         */
+        public void await(long timeoutMillis) throws Exception {
+            thread = Thread.currentThread();
+            long deadline = start + timeoutMillis * 1000000;
+            while (!granted) {
+                if (timeoutMillis <= 0) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    if (cancel(this)) {
+                        timeouts.incrementAndGet();
+                        recordWait(System.nanoTime() - start);
+                        throw Error.LockWaitTimeoutException;
+                    }
+                    break;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+            recordWait(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 等待时间直方图的桶数，第 i 个桶统计 [2^i, 2^(i+1)) 微秒的等待
+     */
+    static final int WAIT_BUCKETS = 32;
+
+    private final Stripe[] stripes;
+    private final AtomicLongArray waitBuckets;
+    private final AtomicLong waitNanos;
+    private final AtomicLong timeouts;
+    private final AtomicLong deadlocks;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
-        lock = new ReentrantLock();
+        stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        waitBuckets = new AtomicLongArray(WAIT_BUCKETS);
+        waitNanos = new AtomicLong();
+        timeouts = new AtomicLong();
+        deadlocks = new AtomicLong();
     }
 
     /**
-     * 不需要等待则返回null，否则返回锁对象
+     * 不需要等待则返回null，否则返回等待者，调用方随后在其上 await
      * 会造成死锁则抛出异常
      * @param xid
      * @param uid
      * @return
      * @throws Exception
      */
-    public Lock add(long xid, long uid) throws Exception {
-        lock.lock();
+    public Waiter add(long xid, long uid) throws Exception {
+        XidLocks x = xidLocks(xid);
+        Stripe s = stripeOf(uid);
+        s.lock.lock();
         try {
-            if (isInList(x2u, xid, uid)) {
+            RowLock r = s.rows.get(uid);
+            if (r == null) {
+                r = new RowLock(uid);
+                r.owner = x;
+                s.rows.put(uid, r);
+                x.hold(uid);
                 return null;
             }
-            if (!u2x.containsKey(uid)) {
-                u2x.put(uid, xid);
-                putIntoList(x2u, xid, uid);
+            if (r.owner == x) {
                 return null;
             }
-            waitU.put(xid, uid);
-            //putIntoList(wait, xid, uid);
-            putIntoList(wait, uid, xid);
-            if (hasDeadLock()) {
-                waitU.remove(xid);
-                removeFromList(wait, uid, xid);
+            // 先发布自己的等待边再检测，两个事务同时成环时至少有一方能看到对方的边
+            x.waitingFor = r;
+            r.waiters.addLast(x);
+            if (hasDeadLock(x, r)) {
+                r.waiters.removeLastOccurrence(x);
+                x.waitingFor = null;
+                deadlocks.incrementAndGet();
                 throw Error.DeadlockException;
             }
-            Lock l = new ReentrantLock();
-            l.lock();
-            waitLock.put(xid, l);
-            return l;
-
+            Waiter w = new Waiter(x, r);
+            x.waiter = w;
+            return w;
         } finally {
-            lock.unlock();
+            s.lock.unlock();
         }
     }
 
@@ -70,124 +182,147 @@ public class LockTable {
      * @param xid
      */
     public void remove(long xid) {
-        lock.lock();
+        Stripe xs = stripeOf(xid);
+        XidLocks x;
+        xs.lock.lock();
         try {
-            List<Long> l = x2u.get(xid);
-            if (l != null) {
-                while (!l.isEmpty()) {
-                    Long uid = l.remove(0);
-                    selectNewXID(uid);
-                }
+            x = xs.xids.remove(xid);
+        } finally {
+            xs.lock.unlock();
+        }
+        if (x == null) {
+            return;
+        }
+
+        RowLock waiting = x.waitingFor;
+        if (waiting != null) {
+            Stripe s = stripeOf(waiting.uid);
+            s.lock.lock();
+            try {
+                waiting.waiters.remove(x);
+                x.waitingFor = null;
+                x.waiter = null;
+            } finally {
+                s.lock.unlock();
             }
-            waitU.remove(xid);
-            x2u.remove(xid);
-            waitLock.remove(xid);
+        }
 
-        } finally {
-            lock.unlock();
+        for (long uid : x.heldUids()) {
+            Stripe s = stripeOf(uid);
+            s.lock.lock();
+            try {
+                selectNewXID(s, uid);
+            } finally {
+                s.lock.unlock();
+            }
         }
     }
 
     /**
      * 强制释放线程持有的死锁，从等待队列中选择一个xid来占用uid
+     * 调用时持有 uid 所在条带的锁
+     * @param s
      * @param uid
      */
-    private void selectNewXID(long uid) {
-        u2x.remove(uid);
-        List<Long> l = wait.get(uid);
-        if (l == null) return;
-        assert !l.isEmpty();
-
-        while (!l.isEmpty()) {
-            long xid = l.remove(0);
-            if (!waitLock.containsKey(xid)) {
-                continue;
-            } else {
-                u2x.put(uid, xid);
-                Lock lo = waitLock.remove(xid);
-                waitU.remove(xid);
-                lo.unlock();
-                break;
-            }
+    private void selectNewXID(Stripe s, long uid) {
+        RowLock r = s.rows.get(uid);
+        if (r == null) return;
+        XidLocks next = r.waiters.pollFirst();
+        if (next == null) {
+            s.rows.remove(uid);
+            return;
+        }
+        r.owner = next;
+        next.hold(uid);
+        next.waitingFor = null;
+        Waiter w = next.waiter;
+        next.waiter = null;
+        // 先置 granted 再读 thread，与 await 中先写 thread 再读 granted 配合，不会丢失唤醒
+        w.granted = true;
+        Thread t = w.thread;
+        if (t != null) {
+            LockSupport.unpark(t);
         }
-
-        if (l.isEmpty()) wait.remove(uid);
     }
 
     /**
-     * 检查死锁
-     * @return
+     * 超时的等待者退出等待队列
+     * @param w
+     * @return false 表示在退出之前已经被授予了行锁
      */
-    private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for (long xid : x2u.keySet()) {
-            Integer s = xidStamp.get(xid);
-            if (s != null && s > 0) {
-                continue;
-            }
-            stamp++;
-            if (dfs(xid)) {
-                return true;
+    private boolean cancel(Waiter w) {
+        Stripe s = stripeOf(w.row.uid);
+        s.lock.lock();
+        try {
+            if (w.granted) {
+                return false;
             }
+            w.row.waiters.remove(w.x);
+            w.x.waitingFor = null;
+            w.x.waiter = null;
+            return true;
+        } finally {
+            s.lock.unlock();
         }
-        return false;
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : Math.min(WAIT_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros));
+        waitBuckets.incrementAndGet(bucket);
     }
 
     /**
-     * 深度优先搜索
-     * @param xid
+     * 锁等待的统计信息
      * @return
      */
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if (stp != null && stp == stamp) {
-            return true;
+    public LockWaitStats stats() {
+        long[] buckets = new long[WAIT_BUCKETS];
+        for (int i = 0; i < WAIT_BUCKETS; i++) {
+            buckets[i] = waitBuckets.get(i);
         }
-        if (stp != null && stp < stamp) {
-            return false;
-        }
-        xidStamp.put(xid, stamp);
-
-        Long uid = waitU.get(xid);
-        if (uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+        return new LockWaitStats(buckets, waitNanos.get(), timeouts.get(), deadlocks.get());
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return;
-        Iterator<Long> i = l.iterator();
-        while (i.hasNext()) {
-            long e = i.next();
-            if (e == uid1) {
-                i.remove();
-                break;
+    /**
+     * 检查死锁：从 x 刚加入的等待边出发，沿“行锁持有者 -> 其等待的行锁”前进，回到 x 即成环
+     * @param x
+     * @param r x 正在等待的行锁
+     * @return
+     */
+    private boolean hasDeadLock(XidLocks x, RowLock r) {
+        for (int i = 0; i < MAX_WAIT_CHAIN && r != null; i++) {
+            XidLocks owner = r.owner;
+            if (owner == null) {
+                return false;
             }
+            if (owner == x) {
+                return true;
+            }
+            r = owner.waitingFor;
         }
-        if (l.isEmpty()) {
-            listMap.remove(uid0);
-        }
+        return false;
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if (!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private XidLocks xidLocks(long xid) {
+        Stripe s = stripeOf(xid);
+        s.lock.lock();
+        try {
+            XidLocks x = s.xids.get(xid);
+            if (x == null) {
+                x = new XidLocks(xid);
+                s.xids.put(xid, x);
+            }
+            return x;
+        } finally {
+            s.lock.unlock();
         }
-        listMap.get(uid0).add(0, uid1);
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
-        if (l == null) return false;
-        for (long e : l) {
-            if (e == uid1) {
-                return true;
-            }
-        }
-        return false;
+    private Stripe stripeOf(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return stripes[(int) (h >>> 58)];
     }
 
 }
@@ -0,0 +1,51 @@
+package top.guoziyang.mydb.backend.vm;
+
+/**
+ * 锁等待统计，包括按 2 的幂划分的等待时间直方图
+ */
+public class LockWaitStats {
+    /**
+     * 第 i 个元素是等待时间在 [2^i, 2^(i+1)) 微秒内的等待次数，第 0 个桶还包括不足 1 微秒的等待
+     */
+    public final long[] buckets;
+    public final long waits;
+    public final long waitNanos;
+    public final long timeouts;
+    public final long deadlocks;
+
+    public LockWaitStats(long[] buckets, long waitNanos, long timeouts, long deadlocks) {
+        this.buckets = buckets;
+        long n = 0;
+        for (long b : buckets) {
+            n += b;
+        }
+        this.waits = n;
+        this.waitNanos = waitNanos;
+        this.timeouts = timeouts;
+        this.deadlocks = deadlocks;
+    }
+
+    /**
+     * 等待时间的近似分位数，返回所在桶的上界（微秒）
+     * @param q 0 到 1 之间
+     * @return
+     */
+    public long percentileMicros(double q) {
+        long rank = (long) Math.ceil(q * waits);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                return 1L << (i + 1);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("waits=%d, avgMicros=%d, p50<=%dus, p99<=%dus, timeouts=%d, deadlocks=%d",
+                waits, waits == 0 ? 0 : waitNanos / waits / 1000, percentileMicros(0.5), percentileMicros(0.99),
+                timeouts, deadlocks);
+    }
+}
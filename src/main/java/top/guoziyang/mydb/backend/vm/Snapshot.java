@@ -0,0 +1,63 @@
+package top.guoziyang.mydb.backend.vm;
+
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务的快照
+ * 记录快照建立时仍在执行的 XID，按升序存放在 long 数组中
+ */
+public class Snapshot {
+    /**
+     * 快照中最小的活跃 XID，小于它的事务在快照建立时都已结束
+     */
+    public long xmin;
+    /**
+     * 快照上界，XID 不小于它的事务在快照建立时还未开始
+     */
+    public long xmax;
+    /**
+     * 快照建立时仍在执行的 XID，升序
+     */
+    public long[] xids;
+
+    /**
+     * 根据活跃事务集合创建快照，复杂度为 O(活跃事务数)
+     * @param active 活跃事务的 XID
+     * @param self   创建快照的事务自身，不放入快照
+     * @param xmax   快照上界
+     * @return
+     */
+    public static Snapshot create(Iterable<Long> active, long self, long xmax) {
+        long[] xids = new long[16];
+        int size = 0;
+        for (long xid : active) {
+            if (xid == TransactionManagerImpl.SUPER_XID || xid == self || xid >= xmax) {
+                continue;
+            }
+            if (size == xids.length) {
+                xids = Arrays.copyOf(xids, size << 1);
+            }
+            xids[size++] = xid;
+        }
+        Snapshot s = new Snapshot();
+        s.xids = Arrays.copyOf(xids, size);
+        Arrays.sort(s.xids);
+        s.xmax = xmax;
+        s.xmin = size == 0 ? xmax : s.xids[0];
+        return s;
+    }
+
+    /**
+     * 判断 xid 在快照建立时是否仍在执行
+     * @param xid
+     * @return
+     */
+    public boolean contains(long xid) {
+        if (xid < xmin || xid >= xmax) {
+            return false;
+        }
+        return Arrays.binarySearch(xids, xid) >= 0;
+    }
+}
@@ -1,10 +1,5 @@
 package top.guoziyang.mydb.backend.vm;
 
-import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
-
-import java.util.HashMap;
-import java.util.Map;
-
 /**
  * 事务类，由VM层调用
  * 每个事务对应一个Transaction对象
@@ -18,10 +13,22 @@ public class Transaction {
      * 事务的隔离级别，0:READ_COMMITTED，1:REPEATABLE_READ
      */
     public int level;
+    /**
+     * 是否为只读事务，只读事务没有持久化的 XID，xid 字段是一个负数的临时编号
+     */
+    public boolean readOnly;
+    /**
+     * 本事务中语句等待行锁的最长时间（毫秒），0 表示一直等待
+     */
+    public long lockTimeoutMillis;
+    /**
+     * 只读事务开始时下一个将被分配的 XID，读已提交的只读事务没有快照，以它参与计算清理界限
+     */
+    public long startXid;
     /**
      * 快照
      */
-    public Map<Long, Boolean> snapshot;
+    public Snapshot snapshot;
     /**
      * 错误信息
      */
@@ -31,23 +38,37 @@ public class Transaction {
      */
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, Iterable<Long> active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
         if (level != 0) {
-            t.snapshot = new HashMap<>();
-            for (Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = Snapshot.create(active, xid, xid + 1);
         }
         return t;
     }
 
-    public boolean isInSnapshot(long xid) {
-        if (xid == TransactionManagerImpl.SUPER_XID) {
-            return false;
+    /**
+     * 创建只读事务，不分配 XID，以 nextXid 作为快照上界
+     * @param id       临时编号，为负数
+     * @param level
+     * @param nextXid  建立快照时下一个将被分配的 XID
+     * @param active
+     * @return
+     */
+    public static Transaction newReadOnlyTransaction(long id, int level, long nextXid, Iterable<Long> active) {
+        Transaction t = new Transaction();
+        t.xid = id;
+        t.level = level;
+        t.readOnly = true;
+        t.startXid = nextXid;
+        if (level != 0) {
+            t.snapshot = Snapshot.create(active, id, nextXid);
         }
-        return snapshot.containsKey(xid);
+        return t;
+    }
+
+    public boolean isInSnapshot(long xid) {
+        return snapshot.contains(xid);
     }
 }
@@ -16,8 +16,38 @@ public interface VersionManager {
 
     long begin(int level);
 
+    /**
+     * 开启一个事务，并指定其中语句等待行锁的最长时间
+     * @param level
+     * @param lockTimeoutMillis 毫秒，0 表示一直等待，负数表示使用默认值
+     * @return
+     */
+    long begin(int level, long lockTimeoutMillis);
+
+    /**
+     * 开启一个只读事务，返回负数的临时编号，提交和回滚都不产生 I/O
+     * @param level
+     * @return
+     */
+    long beginReadOnly(int level);
+
     void commit(long xid) throws Exception;
 
     void abort(long xid);
 
+    /**
+     * 清理的界限：删除事务已提交且 XID 小于该值的记录版本，对当前和以后的所有事务都不可见
+     * @return
+     */
+    long vacuumHorizon();
+
+    /**
+     * 判断记录版本是否对所有事务都不可见，可以从索引和堆中清理
+     * @param uid
+     * @param horizon vacuumHorizon 的返回值
+     * @return
+     * @throws Exception
+     */
+    boolean isDead(long uid, long horizon) throws Exception;
+
 }
@@ -7,27 +7,60 @@ import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
 
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
+    /**
+     * 只读事务建立快照时，乐观读失败后重试的次数，超过后改用读锁
+     */
+    private static final int SNAPSHOT_OPTIMISTIC_RETRIES = 2;
+    /**
+     * 默认的锁等待超时时间（毫秒）
+     */
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 10000;
+
     TransactionManager tm;
     DataManager dm;
+    /**
+     * 活跃事务表，语句执行时无锁查找
+     */
     Map<Long, Transaction> activeTransaction;
-    Lock lock;
+    /**
+     * 只读事务不进入 activeTransaction，以负数的临时编号单独存放
+     */
+    Map<Long, Transaction> readOnlyTransaction;
+    AtomicLong readOnlyId;
+    /**
+     * 保证分配 XID 与登记到 activeTransaction 对快照是原子的：
+     * begin 持有写锁，只读事务建立快照时使用乐观读
+     */
+    StampedLock beginLock;
     LockTable lt;
+    /**
+     * 没有指定时，语句等待行锁的最长时间（毫秒），0 表示一直等待
+     */
+    volatile long lockTimeoutMillis = DEFAULT_LOCK_TIMEOUT_MILLIS;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        this.activeTransaction = new HashMap<>();
+        this.activeTransaction = new ConcurrentHashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
-        this.lock = new ReentrantLock();
+        this.readOnlyTransaction = new ConcurrentHashMap<>();
+        this.readOnlyId = new AtomicLong();
+        this.beginLock = new StampedLock();
         this.lt = new LockTable();
+        dm.setReuseHorizon(this::vacuumHorizon);
+    }
+
+    private Transaction getTransaction(long xid) {
+        return xid < 0 ? readOnlyTransaction.get(xid) : activeTransaction.get(xid);
     }
 
     /**
@@ -39,9 +72,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = getTransaction(xid);
 
         if (t.err != null) {
             throw t.err;
@@ -77,13 +108,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = getTransaction(xid);
 
         if (t.err != null) {
             throw t.err;
         }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
         return dm.insert(xid, raw);
@@ -91,13 +123,14 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
+        Transaction t = getTransaction(xid);
 
         if (t.err != null) {
             throw t.err;
         }
+        if (t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
         Entry entry;
         try {
             entry = super.get(uid);
@@ -112,19 +145,17 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if (!Visibility.isVisible(tm, t, entry)) {
                 return false;
             }
-            Lock l;
             try {
-                l = lt.add(xid, uid);
+                LockTable.Waiter w = lt.add(xid, uid);
+                if (w != null) {
+                    w.await(t.lockTimeoutMillis);
+                }
             } catch (Exception e) {
-                t.err = Error.ConcurrentUpdateException;
+                t.err = e == Error.LockWaitTimeoutException ? e : Error.ConcurrentUpdateException;
                 internAbort(xid, true);
                 t.autoAborted = true;
                 throw t.err;
             }
-            if (l != null) {
-                l.lock();
-                l.unlock();
-            }
 
             if (entry.getXmax() == xid) {
                 return false;
@@ -152,27 +183,74 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public long begin(int level) {
-        lock.lock();
+        return begin(level, -1);
+    }
+
+    @Override
+    public long begin(int level, long lockTimeoutMillis) {
+        long stamp = beginLock.writeLock();
         try {
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            Transaction t = Transaction.newTransaction(xid, level, activeTransaction.keySet());
+            t.lockTimeoutMillis = lockTimeoutMillis < 0 ? this.lockTimeoutMillis : lockTimeoutMillis;
             activeTransaction.put(xid, t);
             return xid;
         } finally {
-            lock.unlock();
+            beginLock.unlockWrite(stamp);
         }
     }
 
     /**
-     * 提交一个事务，释放资源和持有的锁，并修改 TM 状态
+     * 开启一个只读事务，不分配 XID，不写 XID 文件，也不进入 activeTransaction
+     * 读已提交级别不需要快照；可重复读级别以乐观读建立快照，期间有事务开始则重试
+     * 建立快照之前先以 xmin 为 0 的空快照登记，期间计算的清理界限不会越过尚未登记的快照
+     * @param level
+     * @return 负数的临时编号
+     */
+    @Override
+    public long beginReadOnly(int level) {
+        long id = -readOnlyId.incrementAndGet();
+        Transaction t = null;
+        if (level == 0) {
+            t = Transaction.newReadOnlyTransaction(id, level, tm.nextXid(), null);
+        } else {
+            readOnlyTransaction.put(id, Transaction.newReadOnlyTransaction(id, level, TransactionManagerImpl.SUPER_XID, Collections.emptyList()));
+            for (int i = 0; i < SNAPSHOT_OPTIMISTIC_RETRIES && t == null; i++) {
+                long stamp = beginLock.tryOptimisticRead();
+                if (stamp == 0) {
+                    continue;
+                }
+                Transaction snap = Transaction.newReadOnlyTransaction(id, level, tm.nextXid(), activeTransaction.keySet());
+                if (beginLock.validate(stamp)) {
+                    t = snap;
+                }
+            }
+            if (t == null) {
+                long stamp = beginLock.readLock();
+                try {
+                    t = Transaction.newReadOnlyTransaction(id, level, tm.nextXid(), activeTransaction.keySet());
+                } finally {
+                    beginLock.unlockRead(stamp);
+                }
+            }
+        }
+        readOnlyTransaction.put(id, t);
+        return id;
+    }
+
+    /**
+     * 提交一个事务，修改 TM 状态，再释放资源和持有的锁
+     * 先提交再移出活跃表，保证快照不会漏掉尚未提交的事务
      * @param xid
      * @throws Exception
      */
     @Override
     public void commit(long xid) throws Exception {
-        lock.lock();
+        if (xid < 0) {
+            readOnlyTransaction.remove(xid);
+            return;
+        }
         Transaction t = activeTransaction.get(xid);
-        lock.unlock();
 
         try {
             if (t.err != null) {
@@ -184,12 +262,9 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(n);
         }
 
-        lock.lock();
+        tm.commit(xid);
         activeTransaction.remove(xid);
-        lock.unlock();
-
         lt.remove(xid);
-        tm.commit(xid);
     }
 
     /**
@@ -203,16 +278,85 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     private void internAbort(long xid, boolean autoAborted) {
-        lock.lock();
+        if (xid < 0) {
+            readOnlyTransaction.remove(xid);
+            return;
+        }
         Transaction t = activeTransaction.get(xid);
+        if (t.autoAborted) {
+            activeTransaction.remove(xid);
+            return;
+        }
+        tm.abort(xid);
         if (!autoAborted) {
             activeTransaction.remove(xid);
         }
-        lock.unlock();
-
-        if (t.autoAborted) return;
         lt.remove(xid);
-        tm.abort(xid);
+    }
+
+    /**
+     * 界限取以下各项的最小值：
+     * 下一个将分配的 XID（之后开始的事务都能看到已提交的删除）、
+     * 活跃事务的最小 XID（它们提交后，此后建立的快照可能仍把它们当作活跃）、
+     * 活跃快照的 xmin（快照中的事务即使已经提交，对该快照也不可见）
+     * 持有 beginLock 的读锁读取下一个 XID 和活跃事务，begin 分配 XID 与登记之间的事务不会被漏掉
+     * 只读事务在建立快照之前已经登记，遍历时漏掉的只读事务，其快照晚于上面读到的状态，xmin 不会小于界限
+     * 读已提交的只读事务没有快照，以开始时的下一个 XID 计算，保证它持有的 UID 指向的空洞不会被复用
+     * @return
+     */
+    @Override
+    public long vacuumHorizon() {
+        long horizon;
+        long stamp = beginLock.readLock();
+        try {
+            horizon = tm.nextXid();
+            for (Transaction t : activeTransaction.values()) {
+                if (t.xid != TransactionManagerImpl.SUPER_XID) {
+                    horizon = Math.min(horizon, t.xid);
+                }
+                if (t.snapshot != null) {
+                    horizon = Math.min(horizon, t.snapshot.xmin);
+                }
+            }
+        } finally {
+            beginLock.unlockRead(stamp);
+        }
+        for (Transaction t : readOnlyTransaction.values()) {
+            horizon = Math.min(horizon, t.snapshot != null ? t.snapshot.xmin : t.startXid);
+        }
+        return horizon;
+    }
+
+    @Override
+    public boolean isDead(long uid, long horizon) throws Exception {
+        Entry entry;
+        try {
+            entry = super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                // 已经被释放，只剩索引项
+                return true;
+            } else {
+                throw e;
+            }
+        }
+        try {
+            if (tm.isAborted(entry.getXmin())) {
+                return true;
+            }
+            long xmax = entry.getXmax();
+            return xmax != TransactionManagerImpl.SUPER_XID && xmax < horizon && tm.isCommitted(xmax);
+        } finally {
+            entry.release();
+        }
+    }
+
+    public void setLockTimeout(long millis) {
+        this.lockTimeoutMillis = millis;
+    }
+
+    public LockWaitStats getLockWaitStats() {
+        return lt.stats();
     }
 
     public void releaseEntry(Entry entry) {
@@ -107,10 +107,10 @@ public class Visibility {
         if (xmin == xid && xmax == 0) return true;
 
         // 如果记录已经被 t 提交，…………
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if (tm.isCommitted(xmin) && xmin < t.snapshot.xmax && !t.isInSnapshot(xmin)) {
             if (xmax == 0) return true;
             if (xmax != xid) {
-                if (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if (!tm.isCommitted(xmax) || xmax >= t.snapshot.xmax || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
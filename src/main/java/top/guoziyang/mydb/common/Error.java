@@ -12,19 +12,23 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception BadDataFileException = new RuntimeException("Bad data file!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
 
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
+    public static final Exception LockWaitTimeoutException = new RuntimeException("Lock wait timeout!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Cannot write in a read-only transaction!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
     public static final Exception FieldNotFoundException = new RuntimeException("Field not found!");
     public static final Exception FieldNotIndexedException = new RuntimeException("Field not indexed!");
+    public static final Exception FieldAlreadyIndexedException = new RuntimeException("Field already indexed!");
     public static final Exception InvalidLogOpException = new RuntimeException("Invalid logic operation!");
     public static final Exception InvalidValuesException = new RuntimeException("Invalid values!");
     public static final Exception DuplicatedTableException = new RuntimeException("Duplicated table!");
@@ -31,6 +31,60 @@ public class CacheTest {
         }
     }
 
+    @Test
+    public void testCacheSingleLoad() throws Exception {
+        cache = new MockCache();
+        cdl = new CountDownLatch(50);
+        for(int i = 0; i < 50; i ++) {
+            new Thread(() -> {
+                try {
+                    long h = cache.get(7);
+                    assert h == 7;
+                } catch (Exception e) {
+                    Panic.panic(e);
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        assert cache.loads.get() == 1;
+        for(int i = 0; i < 50; i ++) {
+            cache.release(7);
+        }
+        cache.get(7);
+        assert cache.loads.get() == 2;
+        cache.release(7);
+    }
+
+    @Test
+    public void testEvictionChurn() throws Exception {
+        // 少量热点 key 在小缓存中反复驱逐和重新加载，每个元素都必须一直可以被驱逐
+        for(String name : new String[]{EvictionPolicy.CLOCK, EvictionPolicy.LRU_K}) {
+            MockCache c = new MockCache(8, EvictionPolicy.of(name, 8));
+            CountDownLatch done = new CountDownLatch(16);
+            Exception[] failure = new Exception[1];
+            for(int t = 0; t < 16; t ++) {
+                new Thread(() -> {
+                    Random r = new Random();
+                    try {
+                        for(int i = 0; i < 500; i ++) {
+                            long key = r.nextInt(32);
+                            long h = c.get(key);
+                            assert h == key;
+                            c.release(key);
+                        }
+                    } catch (Exception e) {
+                        failure[0] = e;
+                    }
+                    done.countDown();
+                }).start();
+            }
+            done.await();
+            assert failure[0] == null : failure[0];
+            assert c.getStats().resident <= 8;
+        }
+    }
+
     private void work() {
         for(int i = 0; i < 1000; i++) {
             long uid = random.nextInt();
@@ -0,0 +1,35 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongHashMapTest {
+
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(1);
+        LongHashMap<Long> map = new LongHashMap<>();
+        Map<Long, Long> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = random.nextInt(2000);
+            switch (random.nextInt(3)) {
+                case 0:
+                    assert Objects.equals(map.put(key, (long) i), expected.put(key, (long) i));
+                    break;
+                case 1:
+                    assert Objects.equals(map.remove(key), expected.remove(key));
+                    break;
+                default:
+                    assert Objects.equals(map.get(key), expected.get(key));
+            }
+            assert map.size() == expected.size();
+        }
+        for (Map.Entry<Long, Long> e : expected.entrySet()) {
+            assert Objects.equals(map.get(e.getKey()), e.getValue());
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package top.guoziyang.mydb.backend.common;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 public class MockCache extends AbstractCache<Long> {
 
+    AtomicInteger loads = new AtomicInteger(0);
+
     public MockCache() {
         super(50);
     }
 
+    public MockCache(int maxResource, EvictionPolicy policy) {
+        super(maxResource, policy);
+    }
+
     @Override
     protected Long getForCache(long key) throws Exception {
+        loads.incrementAndGet();
+        Thread.sleep(1);
         return key;
     }
 
@@ -7,6 +7,7 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -27,6 +28,15 @@ public class DataManagerTest {
 
     static Random random = new SecureRandom();
 
+    /**
+     * 模拟崩溃的测试不关闭数据管理器，不启动检查点线程，避免它在文件被删除之后重新写出日志
+     */
+    private static DMConfig noCheckpointer() {
+        DMConfig config = new DMConfig();
+        config.checkpointLogBytes = 0;
+        return config;
+    }
+
     private void initUids() {
         uids0 = new ArrayList<>();
         uids1 = new ArrayList<>();
@@ -64,6 +74,7 @@ public class DataManagerTest {
                     int tmp = Math.abs(random.nextInt()) % uids0.size();
                     long u0 = uids0.get(tmp);
                     long u1 = uids1.get(tmp);
+                    uidsLock.unlock();
                     DataItem data0 = null, data1 = null;
                     try {
                         data0 = dm0.read(u0);
@@ -110,6 +121,7 @@ public class DataManagerTest {
 
         new File("/tmp/TESTDMSingle.db").delete();
         new File("/tmp/TESTDMSingle.log").delete();
+        new File("/tmp/TESTDMSingle.fsm").delete();
     }
 
     @Test
@@ -130,6 +142,7 @@ public class DataManagerTest {
 
         new File("/tmp/TestDMMulti.db").delete();
         new File("/tmp/TestDMMulti.log").delete();
+        new File("/tmp/TestDMMulti.fsm").delete();
     }
 
     @Test
@@ -142,7 +155,7 @@ public class DataManagerTest {
         initUids();
         int workerNums = 10;
         for(int i = 0; i < 8; i ++) {
-            dm0 = DataManager.open("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE*10, tm0);
+            dm0 = DataManager.open("/tmp/TestRecoverySimple", PageCache.PAGE_SIZE*10, tm0, noCheckpointer());
             CountDownLatch cdl = new CountDownLatch(workerNums);
             for(int k = 0; k < workerNums; k ++) {
                 final DataManager dm = dm0;
@@ -156,6 +169,295 @@ public class DataManagerTest {
         new File("/tmp/TestRecoverySimple.db").delete();
         new File("/tmp/TestRecoverySimple.log").delete();
         new File("/tmp/TestRecoverySimple.xid").delete();
+        new File("/tmp/TestRecoverySimple.fsm").delete();
+
+    }
+
+    @Test
+    public void testCheckpointRecovery() throws Exception {
+        String path = "/tmp/TestDMCheckpoint";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*20, tm, noCheckpointer());
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 400; i ++) {
+            if(i == 200) {
+                long before = new File(path + ".log").length();
+                ((DataManagerImpl)dm).checkpoint();
+                assert new File(path + ".log").length() < before;
+            }
+            long xid = tm.begin();
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+            tm.commit(xid);
+        }
+
+        // 不关闭，模拟崩溃后从检查点恢复
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*20, tm);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testFreeAndReuse() throws Exception {
+        String path = "/tmp/TestDMFree";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*20, tm, noCheckpointer());
+        // 这里只测试空洞的复用和重做，不需要等待复用界限
+        dm.setReuseHorizon(() -> Long.MAX_VALUE);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm.begin();
+        for(int i = 0; i < 300; i ++) {
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+
+        // 释放同一页中相邻的 10 个数据项
+        long[] freed = new long[10];
+        for(int i = 0; i < 10; i ++) {
+            freed[i] = uids.get(10 + i);
+        }
+        dm.free(freed);
+        for(long uid : freed) {
+            assert dm.read(uid) == null;
+        }
+
+        // 比页尾剩余空间大的数据项只能放进空洞，剩余部分写成填充，填充与后面的空洞一起被复用
+        xid = tm.begin();
+        int[] sizes = {240, 197};
+        long expected = freed[0];
+        for(int i = 0; i < sizes.length; i ++) {
+            byte[] data = RandomUtil.randomBytes(sizes[i]);
+            long uid = dm.insert(xid, data);
+            assert uid == expected;
+            expected += sizes[i] + 3;
+            uids.add(uid);
+            datas.add(data);
+        }
+        tm.commit(xid);
+
+        // 不关闭，模拟崩溃后重做插入和释放
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*20, tm);
+        for(int i = 0; i < uids.size(); i ++) {
+            if(i >= 10 && i < 20) continue;
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testFreeWaitsForReuseHorizon() throws Exception {
+        String path = "/tmp/TestDMHorizon";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*20, tm, noCheckpointer());
+        AtomicLong horizon = new AtomicLong(0);
+        dm.setReuseHorizon(horizon::get);
+        List<Long> uids = new ArrayList<>();
+        long xid = tm.begin();
+        for(int i = 0; i < 300; i ++) {
+            uids.add(dm.insert(xid, RandomUtil.randomBytes(60)));
+        }
+        tm.commit(xid);
+
+        long[] freed = new long[10];
+        for(int i = 0; i < 10; i ++) {
+            freed[i] = uids.get(10 + i);
+        }
+        dm.free(freed);
+
+        // 界限还没有越过释放时的 XID，释放前开始的事务可能还持有这些 UID，空洞不能复用
+        xid = tm.begin();
+        assert dm.insert(xid, RandomUtil.randomBytes(240)) != freed[0];
+        tm.commit(xid);
+
+        // 界限越过之后，下一轮释放会重新计算这一页的空闲空间
+        horizon.set(tm.nextXid());
+        dm.free(new long[]{uids.get(uids.size() - 1)});
+        xid = tm.begin();
+        assert dm.insert(xid, RandomUtil.randomBytes(240)) == freed[0];
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testHeldItemKeepsFrame() throws Exception {
+        String path = "/tmp/TestDMFrame";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*10, tm, noCheckpointer());
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm.begin();
+        for(int i = 0; i < 300; i ++) {
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+
+        // 持有一个 DataItem，反复读取其他页面，使页面不断被驱逐和加载，页帧被复用
+        DataItem held = dm.read(uids.get(0));
+        for(int round = 0; round < 3; round ++) {
+            for(int i = 1; i < uids.size(); i ++) {
+                DataItem di = dm.read(uids.get(i));
+                SubArray sa = di.data();
+                assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+                di.release();
+            }
+        }
+        assert ((DataManagerImpl) dm).pc.getStats().evictions > 0;
+        SubArray sa = held.data();
+        assert sa.raw == held.page().getData();
+        assert Arrays.equals(datas.get(0), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        held.release();
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testFreeSpaceMap() throws Exception {
+        String path = "/tmp/TestDMFsm";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*20, tm);
+        long xid = tm.begin();
+        long last = 0;
+        for(int i = 0; i < 400; i ++) {
+            last = dm.insert(xid, RandomUtil.randomBytes(60));
+        }
+        tm.commit(xid);
+        dm.close();
+
+        // 正常关闭后重新打开，PageIndex 从 FSM 载入，只读了第一页
+        DataManagerImpl dm1 = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE*20, tm);
+        assert dm1.pc.getStats().misses == 1;
+        xid = tm.begin();
+        long uid = dm1.insert(xid, RandomUtil.randomBytes(60));
+        tm.commit(xid);
+        assert uid >>> 32 == last >>> 32;
+        dm1.close();
+
+        // FSM 丢失时读取所有页面重建
+        new File(path + ".fsm").delete();
+        DataManagerImpl dm2 = (DataManagerImpl) DataManager.open(path, PageCache.PAGE_SIZE*20, tm);
+        assert dm2.pc.getStats().misses == dm2.pc.getPageNumber();
+        xid = tm.begin();
+        uid = dm2.insert(xid, RandomUtil.randomBytes(60));
+        tm.commit(xid);
+        assert uid >>> 32 == last >>> 32;
+        dm2.close();
+        assert new File(path + ".fsm").exists();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testPageSize() throws Exception {
+        String path = "/tmp/TestDMPageSize";
+        int pageSize = PageCache.MAX_PAGE_SIZE;
+        DMConfig config = noCheckpointer();
+        config.pageSize = pageSize;
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, pageSize*20L, tm, config);
+        assert dm.getPageSize() == pageSize;
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        long xid = tm.begin();
+        for(int i = 0; i < 1000; i ++) {
+            // 偏移超过 32KB 的数据项和大于 32KB 的数据项
+            byte[] data = RandomUtil.randomBytes(i % 250 == 0 ? 40000 : 200);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+        }
+        tm.commit(xid);
+        assert uids.stream().anyMatch(uid -> (uid & 0xffffffffL) > Short.MAX_VALUE);
+
+        // 不关闭，崩溃后按文件头中的页大小打开并恢复
+        DataManager dm1 = DataManager.open(path, pageSize*20L, tm);
+        assert dm1.getPageSize() == pageSize;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
+    @Test
+    public void testRedoSkipsFlushedRecords() throws Exception {
+        String path = "/tmp/TestDMPageLsn";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*20, tm, noCheckpointer());
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 250; i ++) {
+            if(i == 200) {
+                // 写回脏页，页面带着页 LSN 落盘
+                ((DataManagerImpl)dm).pc.flushDirtyPages();
+            }
+            long xid = tm.begin();
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm.insert(xid, data));
+            datas.add(data);
+            tm.commit(xid);
+        }
+
+        // 不关闭，模拟崩溃；写回前的插入日志按页 LSN 跳过
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*20, tm);
+        RecoveryStats stats = ((DataManagerImpl)dm1).getRecoveryStats();
+        assert stats.redoRecords == 250;
+        assert stats.redoSkipped >= 200;
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
 
+        new File(path + ".db").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
     }
 }
@@ -5,10 +5,12 @@ import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.MockDataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 
 public class MockDataManager implements DataManager {
 
@@ -51,6 +53,26 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public int getPageSize() {
+        return PageCache.PAGE_SIZE;
+    }
+
+    @Override
+    public void free(long[] uids) throws Exception {
+        lock.lock();
+        try {
+            for (long uid : uids) {
+                cache.remove(uid);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void setReuseHorizon(LongSupplier horizon) {}
+
     @Override
     public void close() {}
     
@@ -0,0 +1,109 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import top.guoziyang.mydb.backend.common.CacheStats;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.RandomUtil;
+
+/**
+ * 用不同的页大小建库，对比装载、按页顺序扫描和随机点查的吞吐
+ * 缓存内存固定且小于数据量：页越大，每次未命中读入的数据越多，缓存中能放下的页越少
+ * 用法：PageSizeBenchmark [行数] [行大小] [缓存 MB]
+ */
+public class PageSizeBenchmark {
+
+    static final String[] SUFFIXES = {".db", ".log", ".xid", ".fsm"};
+    static final int LOAD_THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int rowSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        long cache = (args.length > 2 ? Long.parseLong(args[2]) : 4) << 20;
+
+        String path = "/tmp/mydb_pagesize_bench";
+        System.out.println("rows=" + rows + ", row size=" + rowSize + ", cache=" + (cache >> 20) + "MB");
+        for (int pageSize = PageCache.MIN_PAGE_SIZE; pageSize <= PageCache.MAX_PAGE_SIZE; pageSize <<= 1) {
+            delete(path);
+            DMConfig config = new DMConfig();
+            config.pageSize = pageSize;
+            config.checkpointLogBytes = 0;
+            TransactionManager tm = TransactionManager.create(path);
+
+            DataManager dm = DataManager.create(path, cache, tm, config);
+            long start = System.nanoTime();
+            long[] uids = load(dm, rows, rowSize);
+            long loadNanos = System.nanoTime() - start;
+            dm.close();
+
+            // 重新打开，从空缓存开始读
+            dm = DataManager.open(path, cache, tm, config);
+            Arrays.sort(uids);
+            start = System.nanoTime();
+            for (long uid : uids) {
+                read(dm, uid);
+            }
+            long scanNanos = System.nanoTime() - start;
+            CacheStats scanStats = ((DataManagerImpl) dm).pc.getStats();
+
+            Random random = new Random(1);
+            start = System.nanoTime();
+            for (int i = 0; i < rows; i++) {
+                read(dm, uids[random.nextInt(rows)]);
+            }
+            long randomNanos = System.nanoTime() - start;
+            CacheStats stats = ((DataManagerImpl) dm).pc.getStats();
+            int pages = ((DataManagerImpl) dm).pc.getPageNumber();
+            dm.close();
+            tm.close();
+
+            System.out.printf("%2dKB pages=%d  load %.0f rows/s  scan %.0f rows/s (%d page reads)  random %.0f reads/s (%d page reads)%n",
+                    pageSize >> 10, pages,
+                    rows * 1e9 / loadNanos,
+                    rows * 1e9 / scanNanos, scanStats.misses,
+                    rows * 1e9 / randomNanos, stats.misses - scanStats.misses);
+        }
+        delete(path);
+    }
+
+    /**
+     * 多个线程并发插入，插入日志由组提交合并落盘
+     */
+    static long[] load(DataManager dm, int rows, int rowSize) throws InterruptedException {
+        long[] uids = new long[rows];
+        Thread[] threads = new Thread[LOAD_THREADS];
+        for (int t = 0; t < LOAD_THREADS; t++) {
+            final int from = rows * t / LOAD_THREADS, to = rows * (t + 1) / LOAD_THREADS;
+            threads[t] = new Thread(() -> {
+                try {
+                    for (int i = from; i < to; i++) {
+                        uids[i] = dm.insert(TransactionManagerImpl.SUPER_XID, RandomUtil.randomBytes(rowSize));
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return uids;
+    }
+
+    static void read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        di.release();
+    }
+
+    static void delete(String path) {
+        for (String suffix : SUFFIXES) {
+            new File(path + suffix).delete();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.dataItem.MockDataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.page.MockPage;
+import top.guoziyang.mydb.backend.dm.page.PageX;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Types;
+
+/**
+ * 构造一个大的合成日志，对比旧的三遍扫描恢复与单遍并行重做恢复的耗时
+ * 用法：RecoverBenchmark [页数] [日志条数] [缓存页数]
+ */
+public class RecoverBenchmark {
+
+    static final String[] SUFFIXES = {".db", ".log", ".xid"};
+    static final int ACTIVE_XIDS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int records = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int cachePages = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        String path = "/tmp/mydb_recover_bench";
+        delete(path);
+        build(path, pages, records, 1);
+        copy(path, path + "_seq");
+        copy(path, path + "_par");
+
+        long start = System.nanoTime();
+        recover(path + "_seq", cachePages, false);
+        long seq = (System.nanoTime() - start) / 1000000;
+
+        start = System.nanoTime();
+        RecoveryStats stats = recover(path + "_par", cachePages, true);
+        long par = (System.nanoTime() - start) / 1000000;
+
+        boolean same = Arrays.equals(Files.readAllBytes(new File(path + "_seq.db").toPath()), Files.readAllBytes(new File(path + "_par.db").toPath()));
+        System.out.println("pages=" + pages + ", records=" + records + ", cache=" + cachePages);
+        System.out.println("sequential three-pass: " + seq + "ms");
+        System.out.println("single-pass parallel:  " + par + "ms (" + stats + ")");
+        System.out.println("identical pages: " + same);
+
+        delete(path);
+        delete(path + "_seq");
+        delete(path + "_par");
+    }
+
+    /**
+     * 构造一个未正常关闭的数据库：页面都是空页，日志中是对这些页面的插入和更新，
+     * 最后 ACTIVE_XIDS 个事务没有提交
+     */
+    static void build(String path, int pages, int records, long seed) {
+        Random random = new Random(seed);
+        TransactionManager tm = TransactionManager.create(path);
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 16L);
+        Logger lg = Logger.create(path);
+
+        MockPage[] images = new MockPage[pages + 1];
+        List<List<Integer>> items = new ArrayList<>();
+        items.add(null);
+        for (int i = 1; i <= pages; i++) {
+            pc.newPage(PageX.initRaw(PageCache.PAGE_SIZE));
+            images[i] = MockPage.newMockPage(i, PageX.initRaw(PageCache.PAGE_SIZE));
+            items.add(new ArrayList<>());
+        }
+
+        long[] xids = new long[64];
+        for (int i = 0; i < xids.length; i++) {
+            xids[i] = tm.begin();
+        }
+
+        long lsn = 0;
+        for (int k = 0; k < records; k++) {
+            long xid = xids[random.nextInt(xids.length)];
+            int pgno = 1 + random.nextInt(pages);
+            MockPage pg = images[pgno];
+            List<Integer> offsets = items.get(pgno);
+            byte[] data = new byte[32];
+            random.nextBytes(data);
+            byte[] raw = DataItem.wrapDataItemRaw(data);
+            if (offsets.isEmpty() || (random.nextInt(4) == 0 && PageX.getFreeSpace(pg) >= raw.length)) {
+                lsn = lg.append(Recover.insertLog(xid, pg, raw));
+                offsets.add(PageX.insert(pg, raw));
+            } else {
+                int offset = offsets.get(random.nextInt(offsets.size()));
+                System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+                SubArray sa = new SubArray(pg.getData(), offset, offset + raw.length);
+                lsn = lg.append(Recover.updateLog(xid, MockDataItem.newMockDataItem(Types.addressToUid(pgno, offset), sa)));
+            }
+        }
+        lg.flush(lsn);
+
+        for (int i = 0; i < xids.length - ACTIVE_XIDS; i++) {
+            tm.commit(xids[i]);
+        }
+        lg.close();
+        pc.close();
+        tm.close();
+    }
+
+    /**
+     * 对 path 上的数据库执行恢复
+     * @param parallel true 使用单遍并行重做，false 使用旧的三遍扫描
+     */
+    static RecoveryStats recover(String path, int cachePages, boolean parallel) {
+        TransactionManager tm = TransactionManager.open(path);
+        PageCache pc = PageCache.open(path, PageCache.PAGE_SIZE * (long) cachePages);
+        Logger lg = Logger.open(path);
+        RecoveryStats stats = null;
+        if (parallel) {
+            stats = Recover.recover(tm, lg, pc, 0);
+        } else {
+            SequentialRecover.recover(tm, lg, pc, 0);
+        }
+        pc.close();
+        lg.close();
+        tm.close();
+        return stats;
+    }
+
+    static void copy(String from, String to) throws IOException {
+        for (String suffix : SUFFIXES) {
+            Files.copy(new File(from + suffix).toPath(), new File(to + suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    static void delete(String path) {
+        for (String suffix : SUFFIXES) {
+            new File(path + suffix).delete();
+        }
+    }
+}
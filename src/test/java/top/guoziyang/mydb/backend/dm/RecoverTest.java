@@ -0,0 +1,30 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class RecoverTest {
+
+    @Test
+    public void testParallelRedoMatchesSequential() throws Exception {
+        String path = "/tmp/TestRecoverParallel";
+        RecoverBenchmark.build(path, 40, 5000, 7);
+        RecoverBenchmark.copy(path, path + "_seq");
+        RecoverBenchmark.copy(path, path + "_par");
+
+        RecoverBenchmark.recover(path + "_seq", 10, false);
+        RecoveryStats stats = RecoverBenchmark.recover(path + "_par", 10, true);
+
+        assert stats.records == 5000;
+        assert stats.undoTransactions == RecoverBenchmark.ACTIVE_XIDS;
+        assert stats.redoRecords + stats.undoRecords == stats.records;
+        assert Arrays.equals(Files.readAllBytes(new File(path + "_seq.db").toPath()), Files.readAllBytes(new File(path + "_par.db").toPath()));
+
+        RecoverBenchmark.delete(path);
+        RecoverBenchmark.delete(path + "_seq");
+        RecoverBenchmark.delete(path + "_par");
+    }
+}
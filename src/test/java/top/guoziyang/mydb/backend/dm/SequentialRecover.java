@@ -0,0 +1,182 @@
+package top.guoziyang.mydb.backend.dm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageX;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 旧的三遍扫描恢复流程：截断、重做、撤销各读一遍日志，逐条应用日志。
+ * 作为单遍并行恢复的对照，只用于 RecoverTest 和 RecoverBenchmark
+ */
+class SequentialRecover {
+
+    static void recover(TransactionManager tm, Logger lg, PageCache pc, long checkpointLsn) {
+        System.out.println("Recovering...");
+
+        long start = 0;
+        int pageCount = 0;
+        Recover.CheckpointLogInfo ci = Recover.readCheckpoint(lg, checkpointLsn);
+        if (ci != null) {
+            start = Recover.scanStart(ci.beginLsn, ci.activeXids, ci.dirtyPages);
+            pageCount = ci.pageCount;
+        }
+
+        // 找到日志文件中最大的页号，并截断日志文件
+        int maxPgno = handleBadPaperCache(lg, pc, start, pageCount);
+        System.out.println("Truncate to " + maxPgno + " pages.");
+
+        // 执行重做操作，回滚已完成的事务
+        redoTranscations(tm, lg, pc, start);
+        System.out.println("Redo Transactions Over.");
+
+        // 执行撤销操作，撤销未完成的事务
+        undoTranscations(tm, lg, pc, start);
+        System.out.println("Undo Transactions Over.");
+
+        System.out.println("Recovery Over.");
+    }
+
+    /**
+     * 截断日志文件
+     * @param lg
+     * @param pc
+     * @return
+     */
+    private static int handleBadPaperCache(Logger lg, PageCache pc, long start, int pageCount) {
+        // 重置日志文件指针到扫描起点
+        Recover.seekStart(lg, start);
+        // 检查点之前分配的页面不一定出现在剩余的日志中
+        int maxPgno = pageCount;
+        // 循环读取日志直到没有更多日志可读
+        while (true) {
+            byte[] log = lg.next();
+            if (log == null) break; // 如果没有更多的日志，退出循环
+            if (Recover.isCheckpointLog(log)) continue;
+            int pgno;
+            // 判断日志类型是插入还是更新
+            if (Recover.isInsertLog(log)) {
+                Recover.InsertLogInfo li = Recover.parseInsertLog(log);
+                pgno = li.pgno;
+            } else {
+                Recover.UpdateLogInfo li = Recover.parseUpdateLog(log);
+                pgno = li.pgno;
+            }
+            // 更新最大页号
+            if (pgno > maxPgno) {
+                maxPgno = pgno;
+            }
+        }
+        // 如果没有找到任何日志，设置最大页号为1
+        if (maxPgno == 0) {
+            maxPgno = 1;
+        }
+        // 根据最大页号截断文件，丢弃损坏数据
+        pc.truncateByBgno(maxPgno);
+        return maxPgno;
+    }
+    /**
+     * 重做所有已完成事务
+     * @param tm
+     * @param lg
+     * @param pc
+     */
+    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc, long start) {
+        Recover.seekStart(lg, start);
+        while(true) {
+            byte[] log = lg.next();
+            if(log == null) break;
+            if(Recover.isCheckpointLog(log)) continue;
+            if(!tm.isActive(Recover.xidOf(log))) {
+                redoLog(pc, log, lg.readLsn());
+            }
+        }
+    }
+
+    /**
+     * 重做一条日志，页 LSN 不小于该日志的 LSN 时跳过
+     */
+    private static void redoLog(PageCache pc, byte[] log, long lsn) {
+        Page pg = null;
+        try {
+            pg = pc.getPage(Recover.pgnoOf(log));
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if (lsn > PageX.getPageLsn(pg)) {
+                Recover.redo(pg, log, lsn);
+            }
+        } finally {
+            pg.release();
+        }
+    }
+
+    /**
+     * 撤销所有未完成事务
+     * @param tm
+     * @param lg
+     * @param pc
+     */
+    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc, long start) {
+        // 存储每个事务的日志列表
+        Map<Long, List<byte[]>> logCache = new HashMap<>();
+
+        // 重置日志文件指针到扫描起点
+        Recover.seekStart(lg, start);
+
+        // 循环读取日志直到没有更多日志可读
+        while (true) {
+            byte[] log = lg.next();
+            if (log == null) break; // 如果没有更多的日志，退出循环
+            if (Recover.isCheckpointLog(log)) continue;
+
+            // 如果是插入日志
+            if (Recover.isInsertLog(log)) {
+                Recover.InsertLogInfo li = Recover.parseInsertLog(log);
+                long xid = li.xid;
+                // 如果事务是活动状态，将日志存入缓存
+                if (tm.isActive(xid)) {
+                    if (!logCache.containsKey(xid)) {
+                        logCache.put(xid, new ArrayList<>());
+                    }
+                    logCache.get(xid).add(log);
+                }
+            } else {
+                // 如果是更新日志
+                Recover.UpdateLogInfo xi = Recover.parseUpdateLog(log);
+                long xid = xi.xid;
+                // 如果事务是活动状态，将日志存入缓存
+                if (tm.isActive(xid)) {
+                    if (!logCache.containsKey(xid)) {
+                        logCache.put(xid, new ArrayList<>());
+                    }
+                    logCache.get(xid).add(log);
+                }
+            }
+        }
+
+        // 对所有活动事务的日志进行逆序撤销操作
+        for (Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
+            List<byte[]> logs = entry.getValue();
+            for (int i = logs.size() - 1; i >= 0; i--) {
+                byte[] log = logs.get(i);
+                if (Recover.isInsertLog(log)) {
+                    Recover.doInsertLog(pc, log, Recover.UNDO);
+                } else {
+                    Recover.doUpdateLog(pc, log, Recover.UNDO);
+                }
+            }
+            // 终止事务
+            tm.abort(entry.getKey());
+        }
+    }
+}
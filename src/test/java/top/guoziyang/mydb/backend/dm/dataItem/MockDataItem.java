@@ -71,6 +71,16 @@ public class MockDataItem implements DataItem {
         rLock.unlock();
     }
 
+    @Override
+    public long tryOptimisticRead() {
+        return -1;
+    }
+
+    @Override
+    public boolean validate(long version) {
+        return false;
+    }
+
     @Override
     public Page page() {
         return null;
@@ -1,9 +1,16 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.utils.Parser;
+
 public class LoggerTest {
     @Test
     public void testLogger() {
@@ -45,4 +52,99 @@ public class LoggerTest {
 
         assert new File("/tmp/logger_test.log").delete();
     }
+
+    @Test
+    public void testBadTail() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_tail_test");
+        lg.log("aaa".getBytes());
+        lg.log("bbb".getBytes());
+        lg.close();
+
+        // 模拟崩溃时没有写完的日志
+        try (RandomAccessFile raf = new RandomAccessFile("/tmp/logger_tail_test.log", "rw")) {
+            raf.seek(raf.length());
+            raf.write(Parser.int2Byte(100));
+            raf.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+        }
+
+        lg = Logger.open("/tmp/logger_tail_test");
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.log("ccc".getBytes());
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_tail_test");
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert "ccc".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_tail_test.log").delete();
+    }
+
+    @Test
+    public void testLegacyMigration() throws Exception {
+        // 按旧格式写入：[XChecksum] [Size] [Checksum] [Data] ...
+        byte[] body = new byte[0];
+        int xCheck = 0;
+        for(String s : new String[]{"aaa", "bbb"}) {
+            byte[] data = s.getBytes();
+            byte[] log = Bytes.concat(Parser.int2Byte(data.length), Parser.int2Byte(legacyChecksum(0, data)), data);
+            xCheck = legacyChecksum(xCheck, log);
+            body = Bytes.concat(body, log);
+        }
+        try (FileOutputStream out = new FileOutputStream("/tmp/logger_legacy_test.log")) {
+            out.write(Parser.int2Byte(xCheck));
+            out.write(body);
+        }
+
+        Logger lg = Logger.open("/tmp/logger_legacy_test");
+        lg.rewind();
+        assert "aaa".equals(new String(lg.next()));
+        assert "bbb".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert new File("/tmp/logger_legacy_test.log").delete();
+        assert new File("/tmp/logger_legacy_test.log.v1").delete();
+    }
+
+    private int legacyChecksum(int xCheck, byte[] log) {
+        for (byte b : log) {
+            xCheck = xCheck * 13331 + b;
+        }
+        return xCheck;
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_group_test", 100, 1 << 10);
+        CountDownLatch cdl = new CountDownLatch(20);
+        for(int i = 0; i < 20; i ++) {
+            int id = i;
+            new Thread(() -> {
+                for(int j = 0; j < 50; j ++) {
+                    lg.log((id + ":" + j).getBytes());
+                }
+                cdl.countDown();
+            }).start();
+        }
+        cdl.await();
+        lg.close();
+
+        Logger lg2 = Logger.open("/tmp/logger_group_test");
+        lg2.rewind();
+        int count = 0;
+        while(lg2.next() != null) {
+            count ++;
+        }
+        assert count == 1000;
+        lg2.close();
+
+        assert new File("/tmp/logger_group_test.log").delete();
+    }
 }
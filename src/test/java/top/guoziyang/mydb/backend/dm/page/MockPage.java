@@ -46,5 +46,11 @@ public class MockPage implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public void beginModify(long recLsnHint) {}
+
+    @Override
+    public void endModify(long lsn) {}
     
 }
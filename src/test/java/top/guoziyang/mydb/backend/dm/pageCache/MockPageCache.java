@@ -6,6 +6,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.CacheStats;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.MockPage;
 import top.guoziyang.mydb.backend.dm.page.Page;
 
@@ -52,7 +54,28 @@ public class MockPageCache implements PageCache {
         return noPages.intValue();
     }
 
+    @Override
+    public int getPageSize() {
+        return PAGE_SIZE;
+    }
+
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public CacheStats getStats() {
+        return new CacheStats(0, 0, 0, noPages.intValue(), 0);
+    }
+
+    @Override
+    public void setLogger(Logger lg) {}
+
+    @Override
+    public Map<Integer, Long> dirtyPages() {
+        return new HashMap<>();
+    }
+
+    @Override
+    public void flushDirtyPages() {}
     
 }
@@ -1,8 +1,13 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -11,6 +16,8 @@ import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.Test;
 
+import top.guoziyang.mydb.backend.common.CacheStats;
+import top.guoziyang.mydb.backend.common.EvictionPolicy;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.RandomUtil;
@@ -43,6 +50,239 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testPageCacheEviction() throws Exception {
+        for(String policy : new String[]{EvictionPolicy.CLOCK, EvictionPolicy.LRU_K}) {
+            PageCache pc = PageCache.create("/tmp/pcacher_evict_test", PageCache.PAGE_SIZE * 10, policy);
+            for(int i = 0; i < 40; i ++) {
+                int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+                Page pg = pc.getPage(pgno);
+                pg.setDirty(true);
+                pg.getData()[0] = (byte)pgno;
+                pg.release();
+            }
+            for(int i = 1; i <= 40; i ++) {
+                Page pg = pc.getPage(i);
+                assert pg.getData()[0] == (byte)i;
+                pg.release();
+            }
+            // 反复访问驻留的页面应当命中
+            Page pg = pc.getPage(40);
+            pg.release();
+            CacheStats stats = pc.getStats();
+            assert stats.evictions > 0;
+            assert stats.hits > 0;
+            assert stats.resident <= 10;
+            pc.close();
+
+            assert new File("/tmp/pcacher_evict_test.db").delete();
+        }
+    }
+
+    @Test
+    public void testMappedPageCache() throws Exception {
+        String path = "/tmp/pcacher_mmap_test";
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 10, EvictionPolicy.CLOCK, PageCache.IO_MMAP);
+        assert pc instanceof MappedPageCache;
+        for(int i = 0; i < 40; i ++) {
+            int pgno = pc.newPage(new byte[PageCache.PAGE_SIZE]);
+            Page pg = pc.getPage(pgno);
+            pg.setDirty(true);
+            pg.getData()[0] = (byte)pgno;
+            pg.release();
+        }
+        pc.close();
+
+        // 已有的页面从映射中读出，修改后写回映射
+        pc = PageCache.open(path, PageCache.PAGE_SIZE * 10, EvictionPolicy.CLOCK, PageCache.IO_MMAP);
+        for(int i = 1; i <= 40; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            pg.setDirty(true);
+            pg.getData()[1] = (byte)-i;
+            pg.release();
+        }
+        pc.close();
+
+        pc = PageCache.open(path, PageCache.PAGE_SIZE * 10, EvictionPolicy.CLOCK, PageCache.IO_FILE);
+        for(int i = 1; i <= 40; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)i;
+            assert pg.getData()[1] == (byte)-i;
+            pg.release();
+        }
+        pc.close();
+
+        assert new File(path + ".db").delete();
+    }
+
+    /**
+     * 记录写线程的每次写回和 force；写到 gate 所在的位置时停住，等待放行，
+     * 期间提交的写任务会留在队列中，放行后被写线程一批取出
+     */
+    static class RecordingPageCache extends PageCacheImpl {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch opened = new CountDownLatch(1);
+        volatile long gate = -1;
+
+        RecordingPageCache(String path, int maxResource) throws Exception {
+            this(new RandomAccessFile(path, "rw"), maxResource);
+        }
+
+        private RecordingPageCache(RandomAccessFile raf, int maxResource) {
+            super(raf, raf.getChannel(), maxResource);
+        }
+
+        /**
+         * 新建一页，写线程写到这一页时停住
+         */
+        void blockWriter() throws InterruptedException {
+            gate = pageOffset(getPageNumber() + 1);
+            newPage(new byte[PAGE_SIZE]);
+            entered.await();
+        }
+
+        boolean resident(int pgno) {
+            return isCached(pgno);
+        }
+
+        @Override
+        protected void write(long offset, ByteBuffer[] bufs) {
+            if(offset == gate) {
+                entered.countDown();
+                try {
+                    opened.await();
+                } catch (InterruptedException e) {
+                    Panic.panic(e);
+                }
+            }
+            super.write(offset, bufs);
+            events.add("write " + (offset / PAGE_SIZE + 1) + " " + bufs.length);
+        }
+
+        @Override
+        protected void force() {
+            super.force();
+            events.add("force");
+        }
+    }
+
+    private static byte[] readPage(String path, int pgno) throws Exception {
+        byte[] buf = new byte[PageCache.PAGE_SIZE];
+        try(RandomAccessFile raf = new RandomAccessFile(path, "r")) {
+            raf.seek((long) (pgno - 1) * PageCache.PAGE_SIZE);
+            raf.readFully(buf);
+        }
+        return buf;
+    }
+
+    @Test
+    public void testWriteCoalescing() throws Exception {
+        String path = "/tmp/pcacher_coalesce_test.db";
+        RecordingPageCache pc = new RecordingPageCache(path, 20);
+        for(int i = 0; i < 4; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.flushDirtyPages();
+
+        pc.blockWriter();
+        Page[] pages = new Page[4];
+        for(int i = 0; i < 4; i ++) {
+            pages[i] = pc.getPage(i + 1);
+            pages[i].getData()[0] = (byte) (i + 1);
+            pages[i].setDirty(true);
+        }
+        Thread flusher = new Thread(pc::flushDirtyPages);
+        flusher.start();
+        // 等四个脏页进入队列
+        Thread.sleep(200);
+        pc.opened.countDown();
+        flusher.join();
+
+        // 相邻的四页用一次聚集写写回
+        assert pc.events.contains("write 1 4");
+        for(int i = 0; i < 4; i ++) {
+            assert readPage(path, i + 1)[0] == (byte) (i + 1);
+            pages[i].release();
+        }
+        pc.close();
+        assert new File(path).delete();
+    }
+
+    @Test
+    public void testFlushPageOrdering() throws Exception {
+        String path = "/tmp/pcacher_flush_test.db";
+        RecordingPageCache pc = new RecordingPageCache(path, 20);
+        for(int i = 0; i < 3; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.flushDirtyPages();
+
+        pc.blockWriter();
+        Page pg = pc.getPage(3);
+        pg.getData()[0] = 1;
+        pg.setDirty(true);
+        // 旧数据先进入队列
+        Thread older = new Thread(pc::flushDirtyPages);
+        older.start();
+        Thread.sleep(200);
+        pg.getData()[0] = 2;
+        Thread newer = new Thread(() -> pc.flushPage(pg));
+        newer.start();
+        Thread.sleep(200);
+        pc.opened.countDown();
+        newer.join();
+
+        // flushPage 返回时新数据已经写回并 force，没有被排在前面的旧数据覆盖
+        int lastWrite = pc.events.lastIndexOf("write 3 1");
+        assert lastWrite >= 0 && pc.events.subList(lastWrite, pc.events.size()).contains("force");
+        assert readPage(path, 3)[0] == 2;
+        older.join();
+        assert readPage(path, 3)[0] == 2;
+        pg.release();
+        pc.close();
+        assert new File(path).delete();
+    }
+
+    @Test
+    public void testReadPendingWrite() throws Exception {
+        String path = "/tmp/pcacher_pending_test.db";
+        RecordingPageCache pc = new RecordingPageCache(path, 10);
+        for(int i = 0; i < 30; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.flushDirtyPages();
+
+        pc.blockWriter();
+        // 新页面还没有写入文件，从待写回的数据读出
+        byte[] init = new byte[PageCache.PAGE_SIZE];
+        init[0] = 7;
+        int pgno = pc.newPage(init);
+        Page pg = pc.getPage(pgno);
+        assert pg.getData()[0] == 7;
+        pg.release();
+
+        // 被驱逐的脏页排在写线程后面，再次读取时使用待写回的数据
+        pg = pc.getPage(1);
+        pg.getData()[0] = 9;
+        pg.setDirty(true);
+        pg.release();
+        for(int i = 2; i <= 30 && pc.resident(1); i ++) {
+            pc.getPage(i).release();
+        }
+        assert !pc.resident(1);
+        assert readPage(path, 1)[0] == 0;
+        pg = pc.getPage(1);
+        assert pg.getData()[0] == 9;
+        pg.release();
+
+        pc.opened.countDown();
+        pc.close();
+        assert readPage(path, 1)[0] == 9;
+        assert new File(path).delete();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
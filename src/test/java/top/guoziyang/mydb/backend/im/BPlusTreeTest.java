@@ -2,6 +2,9 @@ package top.guoziyang.mydb.backend.im;
 
 import java.io.File;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.junit.Test;
 
@@ -30,7 +33,143 @@ public class BPlusTreeTest {
             assert uids.get(0) == i;
         }
 
+        tree.close();
+        dm.close();
         assert new File("/tmp/TestTreeSingle.db").delete();
         assert new File("/tmp/TestTreeSingle.log").delete();
+        new File("/tmp/TestTreeSingle.fsm").delete();
+    }
+
+    @Test
+    public void testTreeConcurrent() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeConcurrent", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int workers = 4, per = 2000;
+        AtomicBoolean ok = new AtomicBoolean(true);
+        CountDownLatch cdl = new CountDownLatch(workers);
+        for(int w = 0; w < workers; w ++) {
+            final int no = w;
+            new Thread(() -> {
+                try {
+                    // 每个线程插入交错的键，插入后立即能查到
+                    for(int i = 0; i < per; i ++) {
+                        long key = (long) i * workers + no;
+                        tree.insert(key, key);
+                        List<Long> uids = tree.search(key);
+                        if(uids.size() != 1 || uids.get(0) != key) {
+                            ok.set(false);
+                        }
+                    }
+                } catch (Exception e) {
+                    ok.set(false);
+                } finally {
+                    cdl.countDown();
+                }
+            }).start();
+        }
+        cdl.await();
+        assert ok.get();
+        assert tree.searchRange(0, Long.MAX_VALUE - 1).size() == workers * per;
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeConcurrent.db").delete();
+        assert new File("/tmp/TestTreeConcurrent.log").delete();
+        new File("/tmp/TestTreeConcurrent.fsm").delete();
+    }
+
+    @Test
+    public void testDeleteAndCompact() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeCompact", PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        int lim = 10000;
+        for(int i = 0; i < lim; i ++) {
+            tree.insert(i, i);
+        }
+        // 只保留 10 的倍数
+        for(int i = 0; i < lim; i ++) {
+            if(i % 10 != 0) {
+                assert tree.delete(i, i);
+            }
+        }
+        assert !tree.delete(1, 1);
+        assert tree.compact() > 0;
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == (i % 10 == 0 ? 1 : 0);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim / 10;
+
+        // 合并后的树上继续插入
+        for(int i = 1; i < lim; i += 10) {
+            tree.insert(i, i);
+        }
+        assert tree.searchRange(0, Long.MAX_VALUE).size() == lim / 5;
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeCompact.db").delete();
+        assert new File("/tmp/TestTreeCompact.log").delete();
+        new File("/tmp/TestTreeCompact.fsm").delete();
+    }
+
+    @Test
+    public void testBulkLoad() throws Exception {
+        TransactionManager tm = new MockTransactionManager();
+        DataManager dm = DataManager.create("/tmp/TestTreeBulkLoad", PageCache.PAGE_SIZE*10, tm);
+
+        // 乱序、带重复的键，每个键出现 key % 3 + 1 次
+        int lim = 5000;
+        BulkLoader loader = new BulkLoader();
+        Random random = new Random(1);
+        int[] order = new int[lim];
+        for(int i = 0; i < lim; i ++) order[i] = i;
+        for(int i = lim-1; i > 0; i --) {
+            int j = random.nextInt(i + 1);
+            int t = order[i]; order[i] = order[j]; order[j] = t;
+        }
+        for(int key : order) {
+            for(int c = 0; c <= key % 3; c ++) {
+                loader.add(key, (long) key * 10 + c);
+            }
+        }
+        int total = loader.size() + lim;
+        BPlusTree tree = BPlusTree.load(loader.build(dm, 100), dm);
+
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree.search(i);
+            assert uids.size() == i % 3 + 1;
+            assert uids.get(0) == (long) i * 10;
+        }
+
+        // 批量构建的树上继续插入，节点照常分裂
+        for(int i = lim; i < lim * 2; i ++) {
+            tree.insert(i, (long) i * 10);
+        }
+        RangeCursor cursor = tree.cursor(0, Long.MAX_VALUE);
+        long prev = -1;
+        int count = 0;
+        while(cursor.hasNext()) {
+            cursor.next();
+            assert cursor.key() >= prev;
+            prev = cursor.key();
+            count ++;
+        }
+        assert count == total;
+
+        tree.close();
+        dm.close();
+        assert new File("/tmp/TestTreeBulkLoad.db").delete();
+        assert new File("/tmp/TestTreeBulkLoad.log").delete();
+        new File("/tmp/TestTreeBulkLoad.fsm").delete();
     }
 }
@@ -0,0 +1,99 @@
+package top.guoziyang.mydb.backend.im;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.utils.Parser;
+
+/**
+ * 对比节点内旧的线性扫描（每个 key 复制一次再解析）与二分查找的耗时和内存分配
+ * 用法：NodeBenchmark [查找次数]
+ */
+public class NodeBenchmark {
+
+    public static void main(String[] args) {
+        int ops = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        SubArray raw = fullInnerNode();
+        long[] keys = new long[1024];
+        Random random = new Random(1);
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(Node.BALANCE_NUMBER * 2 * 10);
+        }
+
+        // 预热
+        long sink = 0;
+        for (int r = 0; r < 3; r++) {
+            sink += runLinear(raw, keys, ops / 10);
+            sink += runBinary(raw, keys, ops / 10);
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        sink += runLinear(raw, keys, ops);
+        long linearNanos = System.nanoTime() - start;
+        long linearBytes = allocatedBytes() - bytes;
+
+        bytes = allocatedBytes();
+        start = System.nanoTime();
+        sink += runBinary(raw, keys, ops);
+        long binaryNanos = System.nanoTime() - start;
+        long binaryBytes = allocatedBytes() - bytes;
+
+        System.out.println("ops=" + ops + ", keys per node=" + Node.getRawNoKeys(raw) + " (" + sink + ")");
+        System.out.printf("linear + copy: %.1f ns/op, %.1f B/op%n", (double) linearNanos / ops, (double) linearBytes / ops);
+        System.out.printf("binary search: %.1f ns/op, %.1f B/op%n", (double) binaryNanos / ops, (double) binaryBytes / ops);
+    }
+
+    /**
+     * 一个装满的内部节点，key 为 10, 20, ..., 最后一个为 MAX_VALUE
+     */
+    static SubArray fullInnerNode() {
+        SubArray raw = new SubArray(new byte[Node.NODE_SIZE], 0, Node.NODE_SIZE);
+        int n = Node.BALANCE_NUMBER * 2;
+        Node.setRawIsLeaf(raw, false);
+        Node.setRawNoKeys(raw, n);
+        Node.setRawSibling(raw, 0);
+        for (int i = 0; i < n; i++) {
+            Node.setRawKthSon(raw, i + 1, i);
+            Node.setRawKthKey(raw, i == n - 1 ? Long.MAX_VALUE : (i + 1) * 10L, i);
+        }
+        return raw;
+    }
+
+    static long runBinary(SubArray raw, long[] keys, int ops) {
+        long sink = 0;
+        for (int i = 0; i < ops; i++) {
+            sink += Node.searchNextRaw(raw, keys[i & (keys.length - 1)]);
+        }
+        return sink;
+    }
+
+    static long runLinear(SubArray raw, long[] keys, int ops) {
+        long sink = 0;
+        for (int i = 0; i < ops; i++) {
+            sink += linearSearchNext(raw, keys[i & (keys.length - 1)]);
+        }
+        return sink;
+    }
+
+    /**
+     * 旧的 searchNext：逐个复制 key 并用 ByteBuffer 解析
+     */
+    static long linearSearchNext(SubArray raw, long key) {
+        int noKeys = Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + Node.NO_KEYS_OFFSET, raw.start + Node.NO_KEYS_OFFSET + 2));
+        for (int i = 0; i < noKeys; i++) {
+            int offset = raw.start + Node.NODE_HEADER_SIZE + i * 16;
+            long ik = Parser.parseLong(Arrays.copyOfRange(raw.raw, offset + 8, offset + 16));
+            if (key < ik) {
+                return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+            }
+        }
+        return ~Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + Node.SIBLING_OFFSET, raw.start + Node.SIBLING_OFFSET + 8));
+    }
+
+    static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
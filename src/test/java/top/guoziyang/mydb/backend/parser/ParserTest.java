@@ -23,6 +23,31 @@ public class ParserTest {
         System.out.println("======================");
     }
 
+    @Test
+    public void testCreateIndexAndLoad() throws Exception {
+        String stat = "create index on student (name) fillfactor 70";
+        CreateIndex create = (CreateIndex)Parser.Parse(stat.getBytes());
+        assert "student".equals(create.tableName);
+        assert "name".equals(create.fieldName);
+        assert create.fillFactor == 70;
+
+        stat = "load into student from \"/tmp/student.csv\"";
+        Load load = (Load)Parser.Parse(stat.getBytes());
+        assert "student".equals(load.tableName);
+        assert "/tmp/student.csv".equals(load.path);
+        assert load.fillFactor == 0;
+
+        Exception err = null;
+        try {
+            Parser.Parse("create index on student (name) fillfactor 0".getBytes());
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err != null;
+
+        assert Parser.Parse("vacuum".getBytes()) instanceof Vacuum;
+    }
+
     @Test
     public void testBegin() throws Exception {
         String stat = "begin isolation level read committed";
@@ -39,6 +64,34 @@ public class ParserTest {
         res = Parser.Parse(stat.getBytes());
         begin = (Begin)res;
         assert begin.isRepeatableRead;
+        assert !begin.isReadOnly;
+
+        stat = "begin read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isReadOnly && !begin.isRepeatableRead;
+
+        stat = "begin isolation level repeatable read read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isReadOnly && begin.isRepeatableRead;
+        assert begin.lockTimeoutMillis == -1;
+
+        begin = (Begin) Parser.Parse("begin lock timeout 500".getBytes());
+        assert begin.lockTimeoutMillis == 500 && !begin.isReadOnly;
+
+        begin = (Begin) Parser.Parse("begin isolation level read committed lock timeout 0".getBytes());
+        assert begin.lockTimeoutMillis == 0 && !begin.isRepeatableRead;
+
+        for (String bad : new String[]{"begin lock timeout", "begin lock timeout -1", "begin lock 10", "begin lock timeout 10 read only"}) {
+            Exception err = null;
+            try {
+                Parser.Parse(bad.getBytes());
+            } catch (Exception e) {
+                err = e;
+            }
+            assert err != null;
+        }
     }
 
     @Test
@@ -52,6 +105,13 @@ public class ParserTest {
         System.out.println(gson.toJson(select.fields));
         System.out.println(gson.toJson(select.where));
         System.out.println("======================");
+
+        select = (Select) Parser.Parse("select * from student where id > 1 limit 10".getBytes());
+        assert select.limit == 10 && "".equals(select.where.logicOp);
+        select = (Select) Parser.Parse("select * from student limit 3".getBytes());
+        assert select.limit == 3 && select.where == null;
+        select = (Select) Parser.Parse("select * from student where id > 1 or id < 0".getBytes());
+        assert select.limit == 0;
     }
 
     @Test
@@ -1,6 +1,8 @@
 package top.guoziyang.mydb.backend.server;
 
 import java.io.File;
+import java.io.PrintWriter;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
@@ -9,6 +11,7 @@ import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.vm.VersionManager;
+import top.guoziyang.mydb.common.Error;
 
 public class ExecutorTest {
     String path = "/tmp/mydb";
@@ -17,9 +20,12 @@ public class ExecutorTest {
     byte[] CREATE_TABLE = "create table test_table id int32 (index id)".getBytes();
     byte[] INSERT = "insert into test_table values 2333".getBytes();
 
+    TransactionManager tm;
+    DataManager dm;
+
     private Executor testCreate() throws Exception {
-        TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, mem, tm);
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, mem, tm);
         VersionManager vm = VersionManager.newVersionManager(tm, dm);
         TableManager tbm = TableManager.create(path, vm, dm);
         Executor exe = new Executor(tbm);
@@ -27,6 +33,19 @@ public class ExecutorTest {
         return exe;
     }
 
+    /**
+     * 关闭数据管理器之后再删除文件，关闭时会停止检查点线程
+     */
+    private void cleanup() {
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+
     private void testInsert(Executor exe, int times, int no) throws Exception {
         for (int i = 0; i < times; i++) {
             System.out.print(no+":"+i + ":");
@@ -38,10 +57,7 @@ public class ExecutorTest {
     public void testInsert10000() throws Exception {
         Executor exe = testCreate();
         testInsert(exe, 10000, 1);
-        new File(path + ".db").delete();
-        new File(path + ".bt").delete();
-        new File(path + ".log").delete();
-        new File(path + ".xid").delete();
+        cleanup();
     }
 
     private void testMultiInsert(int total, int noWorkers) throws Exception {
@@ -64,12 +80,130 @@ public class ExecutorTest {
         cdl.await();
     }
 
+    @Test
+    public void testReadOnly() throws Exception {
+        Executor exe = testCreate();
+        testInsert(exe, 10, 0);
+
+        // 自动提交的 select 不分配 XID
+        long next = tm.nextXid();
+        String res = new String(exe.execute("select * from test_table where id = 2333".getBytes()));
+        assert res.split("\n").length == 10;
+        assert tm.nextXid() == next;
+        res = new String(exe.execute("select * from test_table limit 3".getBytes()));
+        assert res.split("\n").length == 3;
+
+        exe.execute("begin isolation level repeatable read read only".getBytes());
+        // 快照建立之后其他事务插入的记录不可见
+        new Executor(exe.tbm).execute(INSERT);
+        next = tm.nextXid();
+        res = new String(exe.execute("select * from test_table where id = 2333".getBytes()));
+        assert res.split("\n").length == 10;
+        Exception err = null;
+        try {
+            exe.execute(INSERT);
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.ReadOnlyTransactionException;
+        exe.execute("commit".getBytes());
+        assert tm.nextXid() == next;
+        cleanup();
+    }
+
+    @Test
+    public void testLoadAndCreateIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table load_table id int32, v int32 (index id)".getBytes());
+        testInsert(exe, 10, 0);
+
+        File csv = new File(path + "_load.csv");
+        try (PrintWriter w = new PrintWriter(csv)) {
+            for (int i = 0; i < 1000; i++) {
+                w.println(i + ", " + (i % 10));
+            }
+        }
+        String res = new String(exe.execute(("load into load_table from \"" + csv.getPath() + "\" fillfactor 80").getBytes()));
+        assert "load 1000".equals(res);
+        res = new String(exe.execute("select * from load_table where id > 499".getBytes()));
+        assert res.split("\n").length == 500;
+
+        Exception err = null;
+        try {
+            exe.execute("select * from load_table where v = 3".getBytes());
+        } catch (Exception e) {
+            err = e;
+        }
+        assert err == Error.FieldNotIndexedException;
+        exe.execute("create index on load_table (v)".getBytes());
+        res = new String(exe.execute("select * from load_table where v = 3".getBytes()));
+        assert res.split("\n").length == 100;
+        // 建立索引之后的插入同时进入两个索引
+        exe.execute("insert into load_table values 1000 3".getBytes());
+        res = new String(exe.execute("select * from load_table where v = 3".getBytes()));
+        assert res.split("\n").length == 101;
+
+        csv.delete();
+        cleanup();
+    }
+
+    private static String sortLines(String res) {
+        String[] lines = res.split("\n");
+        Arrays.sort(lines);
+        return String.join("\n", lines) + "\n";
+    }
+
+    @Test
+    public void testVacuum() throws Exception {
+        Executor exe = testCreate();
+        testInsert(exe, 10, 0);
+        byte[] select = "select * from test_table where id = 2333".getBytes();
+
+        // 可重复读的事务还能看到被删除的版本，不能清理
+        Executor reader = new Executor(exe.tbm);
+        reader.execute("begin isolation level repeatable read".getBytes());
+        assert new String(reader.execute(select)).split("\n").length == 10;
+        assert "delete 10".equals(new String(exe.execute("delete from test_table where id = 2333".getBytes())));
+        assert "vacuum 0".equals(new String(exe.execute("vacuum".getBytes())));
+        assert new String(reader.execute(select)).split("\n").length == 10;
+        reader.execute("commit".getBytes());
+
+        assert "vacuum 10".equals(new String(exe.execute("vacuum".getBytes())));
+        assert "vacuum 0".equals(new String(exe.execute("vacuum".getBytes())));
+        assert "".equals(new String(exe.execute(select)));
+        exe.execute(INSERT);
+        assert new String(exe.execute(select)).split("\n").length == 1;
+        cleanup();
+    }
+
+    @Test
+    public void testStringIndex() throws Exception {
+        Executor exe = testCreate();
+        exe.execute("create table str_table name string, age int32 (index name)".getBytes());
+        // applesauce、applesaucex、applesaucey 的前 8 个字节相同，索引 key 相同
+        String[] names = {"cherry", "applesaucey", "b", "apple", "applesauce", "banana", "applesaucex"};
+        for (int i = 0; i < names.length; i++) {
+            exe.execute(("insert into str_table values " + names[i] + " " + i).getBytes());
+        }
+        String res = new String(exe.execute("select * from str_table where name = applesaucex".getBytes()));
+        assert "[applesaucex, 6]\n".equals(res);
+        // key 相同的记录之间不按完整的值排序，比较时先排序
+        res = new String(exe.execute("select * from str_table where name > applesauce".getBytes()));
+        assert "[applesaucex, 6]\n[applesaucey, 1]\n[b, 2]\n[banana, 5]\n[cherry, 0]\n".equals(sortLines(res));
+        res = new String(exe.execute("select * from str_table where name < b".getBytes()));
+        assert "[apple, 3]\n[applesauce, 4]\n[applesaucex, 6]\n[applesaucey, 1]\n".equals(sortLines(res));
+        res = new String(exe.execute("select * from str_table where name > apple and name < banana".getBytes()));
+        assert res.split("\n").length == 4;
+        res = new String(exe.execute("delete from str_table where name = applesaucey".getBytes()));
+        assert "delete 1".equals(res);
+        res = new String(exe.execute("select * from str_table".getBytes()));
+        assert res.split("\n").length == names.length - 1;
+        cleanup();
+    }
+
     @Test
     public void test100000With4() throws Exception {
         testMultiInsert(10000, 4);
-        new File(path + ".db").delete();
-        new File(path + ".bt").delete();
-        new File(path + ".log").delete();
-        new File(path + ".xid").delete();
+        cleanup();
     }
 }
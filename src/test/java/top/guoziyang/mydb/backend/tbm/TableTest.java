@@ -0,0 +1,96 @@
+package top.guoziyang.mydb.backend.tbm;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.primitives.Bytes;
+
+import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.im.BPlusTree;
+import top.guoziyang.mydb.backend.im.RangeCursor;
+import top.guoziyang.mydb.backend.parser.statement.Begin;
+import top.guoziyang.mydb.backend.parser.statement.Create;
+import top.guoziyang.mydb.backend.parser.statement.Insert;
+import top.guoziyang.mydb.backend.parser.statement.Select;
+import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
+import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.backend.vm.VersionManager;
+
+public class TableTest {
+    String path = "/tmp/TestTable";
+    long mem = (1 << 20) * 16;
+
+    private byte[] execute(TableManager tbm, String stat) throws Exception {
+        long xid = tbm.begin(new Begin()).xid;
+        Object st = top.guoziyang.mydb.backend.parser.Parser.Parse(stat.getBytes());
+        byte[] res;
+        if (st instanceof Create) {
+            res = tbm.create(xid, (Create) st);
+        } else if (st instanceof Insert) {
+            res = tbm.insert(xid, (Insert) st);
+        } else {
+            res = tbm.read(xid, (Select) st);
+        }
+        tbm.commit(xid);
+        return res;
+    }
+
+    @Test
+    public void testUpgradeLegacyStringIndex() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        execute(tbm, "create table t name string, age int32 (index name)");
+        String[] names = {"cherry", "apple", "banana", "b"};
+        for (int i = 0; i < names.length; i++) {
+            execute(tbm, "insert into t values " + names[i] + " " + i);
+        }
+
+        // 模拟旧版本写入的字段：索引 key 不是保序前缀，字段记录没有 KeyFormat
+        Table tb = ((TableManagerImpl) tbm).tableCache.get("t");
+        Field field = tb.fields.get(0);
+        long boot = BPlusTree.create(dm);
+        BPlusTree legacy = BPlusTree.load(boot, dm);
+        RangeCursor cursor = field.cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+        while (cursor.hasNext()) {
+            long uid = cursor.next();
+            legacy.insert(Long.reverse(cursor.key()), uid);
+        }
+        legacy.close();
+        long legacyUid = vm.insert(TransactionManagerImpl.SUPER_XID,
+                Bytes.concat(Parser.string2Byte("name"), Parser.string2Byte("string"), Parser.long2Byte(boot)));
+        tb.replaceFieldUid(0, legacyUid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        assert !((TableManagerImpl) tbm).tableCache.get("t").fields.get(0).isLegacyKeyFormat();
+        assert "[b, 3]\n".equals(new String(execute(tbm, "select * from t where name = b")));
+        assert "[apple, 1]\n".equals(new String(execute(tbm, "select * from t where name < b")));
+        assert new String(execute(tbm, "select * from t where name > b")).split("\n").length == 2;
+        dm.close();
+        tm.close();
+
+        // 升级后的记录带有 KeyFormat，再次打开不需要重建
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, mem, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+        assert !((TableManagerImpl) tbm).tableCache.get("t").fields.get(0).isLegacyKeyFormat();
+        assert "[b, 3]\n".equals(new String(execute(tbm, "select * from t where name = b")));
+        dm.close();
+        tm.close();
+
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        new File(path + ".log").delete();
+        new File(path + ".xid").delete();
+        new File(path + ".fsm").delete();
+    }
+}
@@ -30,5 +30,13 @@ public class MockTransactionManager implements TransactionManager {
 
     @Override
     public void close() {}
+
+    @Override
+    public void abortActive() {}
+
+    @Override
+    public long nextXid() {
+        return 0;
+    }
     
 }
@@ -40,6 +40,48 @@ public class TransactionManagerTest {
         assert new File("/tmp/tranmger_test.xid").delete();
     }
 
+    @Test
+    public void testStatusReload() {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reload_test");
+        int n = 200;
+        for(int i = 1; i <= n; i ++) {
+            long xid = tm.begin();
+            if(i % 3 == 1) tm.commit(xid);
+            else if(i % 3 == 2) tm.abort(xid);
+        }
+        tm.close();
+
+        tm = TransactionManager.open("/tmp/tranmger_reload_test");
+        for(long xid = 1; xid <= n; xid ++) {
+            assert tm.isCommitted(xid) == (xid % 3 == 1);
+            assert tm.isAborted(xid) == (xid % 3 == 2);
+            assert tm.isActive(xid) == (xid % 3 == 0);
+        }
+        tm.close();
+        assert new File("/tmp/tranmger_reload_test.xid").delete();
+
+        // 预留的 XID：开始事务不改变文件，重启后未结束的 XID 被回滚，新 XID 从高水位之后分配
+        tm = TransactionManager.create("/tmp/tranmger_reload_test");
+        long first = tm.begin();
+        long len = new File("/tmp/tranmger_reload_test.xid").length();
+        for(int i = 0; i < 100; i ++) tm.begin();
+        assert new File("/tmp/tranmger_reload_test.xid").length() == len;
+        tm.commit(first);
+        tm.close();
+        tm = TransactionManager.open("/tmp/tranmger_reload_test");
+        tm.abortActive();
+        assert tm.isCommitted(first) && tm.isAborted(first + 1) && tm.isAborted(TransactionManagerImpl.XID_PREALLOC);
+        assert tm.begin() == TransactionManagerImpl.XID_PREALLOC + 1;
+        tm.close();
+        assert new File("/tmp/tranmger_reload_test.xid").delete();
+
+        // 跨越内存状态表的分块边界
+        XidStatusTable table = new XidStatusTable();
+        table.set(1L << 20, (byte) 2);
+        table.set((1L << 20) + 1, (byte) 1);
+        assert table.get(1L << 20) == 2 && table.get((1L << 20) + 1) == 1 && table.get(5) == 0;
+    }
+
     private void worker() {
         boolean inTrans = false;
         long transXID = 0;
@@ -2,7 +2,7 @@ package top.guoziyang.mydb.backend.vm;
 
 import static org.junit.Assert.assertThrows;
 
-import java.util.concurrent.locks.Lock;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Test;
 
@@ -39,11 +39,14 @@ public class LockTableTest {
         LockTable lt = new LockTable();
         for(long i = 1; i <= 100; i ++) {
             try {
-                Lock o = lt.add(i, i);
+                LockTable.Waiter o = lt.add(i, i);
                 if(o != null) {
                     Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
+                        try {
+                            o.await(0);
+                        } catch (Exception e) {
+                            Panic.panic(e);
+                        }
                     };
                     new Thread(r).start();
                 }
@@ -54,11 +57,14 @@ public class LockTableTest {
 
         for(long i = 1; i <= 99; i ++) {
             try {
-                Lock o = lt.add(i, i+1);
+                LockTable.Waiter o = lt.add(i, i+1);
                 if(o != null) {
                     Runnable r = () -> {
-                        o.lock();
-                        o.unlock();
+                        try {
+                            o.await(0);
+                        } catch (Exception e) {
+                            Panic.panic(e);
+                        }
                     };
                     new Thread(r).start();
                 }
@@ -76,4 +82,30 @@ public class LockTableTest {
             Panic.panic(e);
         }
     }
+
+    @Test
+    public void testWaitQueue() throws Exception {
+        LockTable lt = new LockTable();
+        assert lt.add(1, 1) == null;
+        LockTable.Waiter w2 = lt.add(2, 1);
+        LockTable.Waiter w3 = lt.add(3, 1);
+
+        // 超时的等待者退出队列，不影响后面的等待者
+        assertThrows(RuntimeException.class, () -> w2.await(50));
+        assert lt.stats().timeouts == 1;
+
+        CountDownLatch granted = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                w3.await(0);
+                granted.countDown();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }).start();
+        lt.remove(1);
+        granted.await();
+        assert lt.add(3, 1) == null;
+        assert lt.stats().waits == 2;
+    }
 }
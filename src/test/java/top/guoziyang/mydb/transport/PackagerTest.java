@@ -10,9 +10,9 @@ import top.guoziyang.mydb.backend.utils.Panic;
 public class PackagerTest {
     @Test
     public void testPackager() throws Exception {
+        ServerSocket ss = new ServerSocket(10345);
         new Thread(() -> {
             try {
-                ServerSocket ss = new ServerSocket(10345);
                 Socket socket = ss.accept();
                 Transporter t = new Transporter(socket);
                 Encoder e = new Encoder();